@@ -0,0 +1,75 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.util.JMeterUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation of the engine per sample after warm-up, to be run with profiler "-prof gc" and read
+ * from "gc.alloc.rate.norm" (bytes per operation). Method "urlAsString" is the control: the only work
+ * of add() which allocates is SampleResult.getUrlAsString() of JMeter, which builds a new string
+ * on every call. Allocation of the engine itself is the difference of both methods. Samples are added
+ * by the sampler thread (the pipeline is disabled), so all work of the engine is measured.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AllocationBenchmark {
+    private static final int POOL_SIZE = 4096; // Samples reused in a cycle
+
+    @Param({"striped", "thread_local"})
+    public String aggregation;
+
+    private WebGeneratorEngine engine;
+    private SampleResult[] samples;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticSamples.initJMeter();
+        JMeterUtils.setProperty("webgenerator.aggregation", aggregation);
+        engine = new WebGeneratorEngine();
+        engine.testStarted(false, null);
+        samples = new SyntheticSamples(10, 100, 1).pool(POOL_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.testEnded();
+    }
+
+    @Benchmark
+    public void add() {
+        engine.add(next());
+    }
+
+    @Benchmark
+    public String urlAsString() {
+        return next().getUrlAsString();
+    }
+
+    private SampleResult next() {
+        SampleResult sample = samples[next];
+        next = (next + 1) & (POOL_SIZE - 1);
+        return sample;
+    }
+}
@@ -0,0 +1,151 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scaling of the label aggregation with the number of sampler threads. Each method runs the same work
+ * with a different number of threads, so one run prints the whole scaling table. Mode "global_lock" is
+ * the former design of add(): one monitor around the label rows and the TOTAL row, which is updated
+ * on every sample. Throughput is summed over all threads, so a mode scales when its score grows
+ * with the number of threads (up to the number of cores of the machine).
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentionBenchmark {
+    private static final int POOL_SIZE = 4096; // Records of one thread, reused in a cycle
+
+    @Param({"global_lock", "striped", "thread_local"})
+    public String aggregation;
+
+    @Param({"10"})
+    public int labels;
+
+    private SampleAggregator aggregator;
+    private final AtomicLong seeds = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticSamples.initJMeter();
+        if ("global_lock".equals(aggregation)) {
+            aggregator = new GlobalLockAggregator();
+        } else if ("thread_local".equals(aggregation)) {
+            aggregator = new ThreadLocalAggregator("TOTAL");
+        } else {
+            aggregator = new StripedAggregator("TOTAL");
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads001(SamplerThread thread) {
+        aggregator.add(thread.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads004(SamplerThread thread) {
+        aggregator.add(thread.next());
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads016(SamplerThread thread) {
+        aggregator.add(thread.next());
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void threads064(SamplerThread thread) {
+        aggregator.add(thread.next());
+    }
+
+    /**
+     * Records of one sampler thread.
+     */
+    @State(Scope.Thread)
+    public static class SamplerThread {
+        private final SampleRecord[] records = new SampleRecord[POOL_SIZE];
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(ContentionBenchmark benchmark) {
+            SyntheticSamples samples = new SyntheticSamples(benchmark.labels, 100, benchmark.seeds.getAndIncrement());
+            for (int i = 0; i < POOL_SIZE; i++) {
+                SampleResult sample = samples.next();
+                records[i] = new SampleRecord().set(sample.getSampleLabel(), sample);
+            }
+        }
+
+        private SampleRecord next() {
+            SampleRecord record = records[next];
+            next = (next + 1) & (POOL_SIZE - 1);
+            return record;
+        }
+    }
+
+    /**
+     * Former aggregation: label rows and TOTAL row guarded by one monitor.
+     */
+    private static final class GlobalLockAggregator implements SampleAggregator {
+        private final Map<String, SampleStats> rows = new HashMap<>();
+        private final SampleStats total = new SampleStats("TOTAL");
+
+        @Override
+        public synchronized void add(SampleRecord record) {
+            rows.computeIfAbsent(record.label, SampleStats::new).addSample(record);
+            total.addSample(record);
+        }
+
+        @Override
+        public synchronized void merge(SampleStats stats) {
+            rows.computeIfAbsent(stats.getLabel(), SampleStats::new).merge(stats);
+            total.merge(stats);
+        }
+
+        @Override
+        public synchronized SampleStats get(String label) {
+            return rows.get(label);
+        }
+
+        @Override
+        public synchronized List<SampleStats> snapshot() {
+            return new ArrayList<>(rows.values());
+        }
+
+        @Override
+        public synchronized SampleStats total() {
+            return total;
+        }
+
+        @Override
+        public synchronized void clear() {
+            rows.clear();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.report.dashboard.GenerationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end time of website generation after a test (snapshot of statistics, assets, rendering of pages
+ * and data files). Engine is filled with synthetic samples before the measurement, so generation does not
+ * import the result file. Runs with 100M samples take minutes to prepare, select sizes by "-p samples=...".
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GenerateBenchmark {
+    @Param({"1000000", "10000000", "100000000"})
+    public long samples;
+
+    @Param({"100"})
+    public int labels;
+
+    @Param({"10000"})
+    public int urls;
+
+    private WebGeneratorEngine engine;
+    private File folder;
+    private String resultFile;
+    private String website;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticSamples.initJMeter();
+        folder = Files.createTempDirectory("webgenerator-bench").toFile();
+        resultFile = new File(folder, "results.csv").getPath();
+        engine = new WebGeneratorEngine();
+        engine.testStarted(false, resultFile);
+        SyntheticSamples generator = new SyntheticSamples(labels, urls, 0);
+        for (long i = 0; i < samples; i++) {
+            engine.add(generator.next());
+        }
+        engine.testEnded();
+    }
+
+    @Benchmark
+    public String generate() throws GenerationException {
+        website = engine.generateReport(resultFile);
+        return website;
+    }
+
+    /**
+     * Website of the next iteration is written to the same folder if it is generated in the same second.
+     */
+    @TearDown(Level.Iteration)
+    public void removeWebsite() throws IOException {
+        if (website != null) {
+            SyntheticSamples.delete(new File(website));
+            website = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticSamples.delete(folder);
+    }
+}
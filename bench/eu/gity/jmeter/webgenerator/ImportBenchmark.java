@@ -0,0 +1,100 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.reporters.ResultCollector;
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.save.CSVSaveService;
+import org.apache.jmeter.visualizers.Visualizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of import of a CSV result file into the engine. Mode "parallel" is the import of the engine
+ * (memory-mapped chunks parsed by "webgenerator.import.threads" threads), mode "visualizer" is the former
+ * path: JMeter reads the file into SampleResults and passes them one by one to the visualizer, which adds
+ * them to the engine. The file is written in setup with the columns saved by WebGeneratorCollector.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImportBenchmark {
+    @Param({"1000000"})
+    public int samples;
+
+    @Param({"parallel", "visualizer"})
+    public String importer;
+
+    private File folder;
+    private String resultFile;
+    private ResultCollector collector;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticSamples.initJMeter();
+        folder = Files.createTempDirectory("webgenerator-bench").toFile();
+        resultFile = new File(folder, "results.csv").getPath();
+        collector = new ResultCollector();
+        WebGeneratorCollector.configureSaving(collector);
+        SyntheticSamples generator = new SyntheticSamples(100, 10000, 0);
+        try (Writer out = new BufferedWriter(Files.newBufferedWriter(new File(resultFile).toPath(), StandardCharsets.UTF_8))) {
+            out.write(CSVSaveService.printableFieldNamesToString(collector.getSaveConfig()));
+            out.write('\n');
+            for (int i = 0; i < samples; i++) {
+                SampleResult sample = generator.next();
+                sample.setSaveConfig(collector.getSaveConfig());
+                out.write(CSVSaveService.resultToDelimitedString(new SampleEvent(sample, "Thread Group")));
+                out.write('\n');
+            }
+        }
+    }
+
+    @Benchmark
+    public WebGeneratorEngine importFile() throws IOException {
+        WebGeneratorEngine engine = new WebGeneratorEngine();
+        if ("visualizer".equals(importer)) {
+            CSVSaveService.processSamples(resultFile, new Visualizer() {
+                @Override
+                public void add(SampleResult sample) {
+                    engine.add(sample);
+                }
+
+                @Override
+                public boolean isStats() {
+                    return true;
+                }
+            }, collector);
+        } else {
+            engine.importResults(resultFile);
+        }
+        return engine;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticSamples.delete(folder);
+    }
+}
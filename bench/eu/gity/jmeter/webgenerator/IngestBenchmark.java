@@ -0,0 +1,95 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.util.JMeterUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the engine receiving samples from sampler threads (the work WebGeneratorCollector adds
+ * to every sample of the test). Number of sampler threads is set by JMH option -t (e.g. -t 1, -t 16, -t 256),
+ * allocation per sample is measured by profiler "-prof gc". Every thread cycles through its own samples,
+ * so number of distinct URLs of a thread is limited by their count (it still exceeds the limit of exactly
+ * tracked URLs, so the sketch of URLs is measured too).
+ *
+ * Mode "thread_local" holds a histogram per thread and label (16 kB), so -t 256 with 1000 labels needs about 4 GB
+ * of heap: the default heap of the fork ends in GC thrashing. Give the fork more heap ("-jvmArgsAppend -Xmx6g")
+ * or exclude the combination. With more threads than cores JMH can not synchronize iterations reliably,
+ * such scores vary by an order of magnitude between iterations.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IngestBenchmark {
+    private static final int POOL_SIZE = 4096; // Samples of one thread, reused in a cycle
+
+    @Param({"1", "100", "1000"})
+    public int labels;
+
+    @Param({"100", "100000"})
+    public int urls;
+
+    @Param({"striped", "thread_local"})
+    public String aggregation;
+
+    private WebGeneratorEngine engine;
+    private final AtomicLong seeds = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticSamples.initJMeter();
+        JMeterUtils.setProperty("webgenerator.aggregation", aggregation);
+        engine = new WebGeneratorEngine();
+        engine.testStarted(false, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.testEnded();
+    }
+
+    @Benchmark
+    public void add(SamplerThread thread) {
+        engine.add(thread.next());
+    }
+
+    /**
+     * Samples of one sampler thread.
+     */
+    @State(Scope.Thread)
+    public static class SamplerThread {
+        private SampleResult[] samples;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(IngestBenchmark benchmark) {
+            samples = new SyntheticSamples(benchmark.labels, benchmark.urls, benchmark.seeds.getAndIncrement())
+                    .pool(POOL_SIZE);
+        }
+
+        private SampleResult next() {
+            SampleResult sample = samples[next];
+            next = (next + 1) & (POOL_SIZE - 1);
+            return sample;
+        }
+    }
+}
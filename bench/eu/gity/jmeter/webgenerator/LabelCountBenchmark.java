@@ -0,0 +1,98 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.util.JMeterUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per sample by number of distinct labels of the test plan. Method "lookup" finds the row
+ * of the label in LabelIndex, "linearScan" is the former lookup which walked the list of rows and compared
+ * names. Method "add" is the whole engine.add(), it touches rows of more labels than fit into the caches
+ * of the CPU, so it is also a measure of the memory footprint of a label. The limit of labels is switched
+ * off, so every label has its own row.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LabelCountBenchmark {
+    private static final int POOL_SIZE = 16384; // Samples reused in a cycle, more than labels
+
+    @Param({"10", "100", "1000", "5000"})
+    public int labels;
+
+    private WebGeneratorEngine engine;
+    private SampleResult[] samples;
+    private String[] sampleLabels;
+    private final LabelIndex<SampleStats> index = new LabelIndex<>();
+    private final List<SampleStats> list = new ArrayList<>();
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticSamples.initJMeter();
+        JMeterUtils.setProperty("webgenerator.labels.max", "0");
+        engine = new WebGeneratorEngine();
+        engine.testStarted(false, null);
+        samples = new SyntheticSamples(labels, 100, 1).pool(POOL_SIZE);
+        sampleLabels = new String[POOL_SIZE];
+        for (int i = 0; i < POOL_SIZE; i++) {
+            engine.add(samples[i]); // Rows of all labels exist before measurement
+            sampleLabels[i] = samples[i].getSampleLabel();
+        }
+        for (int i = 0; i < labels; i++) {
+            String label = new String("Request " + i); // Own copies, so names are compared by content
+            list.add(index.getOrCreate(label, SampleStats::new));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.testEnded();
+    }
+
+    @Benchmark
+    public void add() {
+        engine.add(samples[next]);
+        next = (next + 1) & (POOL_SIZE - 1);
+    }
+
+    @Benchmark
+    public SampleStats lookup() {
+        SampleStats row = index.get(sampleLabels[next]);
+        next = (next + 1) & (POOL_SIZE - 1);
+        return row;
+    }
+
+    @Benchmark
+    public SampleStats linearScan() {
+        String label = sampleLabels[next];
+        next = (next + 1) & (POOL_SIZE - 1);
+        for (SampleStats row : list) {
+            if (row.getLabel().equals(label)) {
+                return row;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,122 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.util.JMeterUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Generator of synthetic samples for benchmarks. Samples look like results of HTTP samplers: labels and URLs
+ * are chosen from given numbers of distinct values, response times have log-normal distribution, 2 % of samples fail
+ * and timestamps advance by 1 ms per sample, so over-time graphs cover a realistic duration.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class SyntheticSamples {
+    private static final String[] CODES = {"200", "200", "200", "302", "404", "500"};
+
+    private final Random random;
+    private final String[] labels;
+    private final int urls;
+    private final String threadName;
+    private long time = System.currentTimeMillis() - 3600_000L;
+
+    /**
+     * @param labels number of distinct labels.
+     * @param urls number of distinct URLs.
+     * @param seed seed of the random generator (e.g. number of the thread).
+     */
+    SyntheticSamples(int labels, int urls, long seed) {
+        random = new Random(seed);
+        this.labels = new String[labels];
+        for (int i = 0; i < labels; i++) {
+            this.labels[i] = "Request " + i;
+        }
+        this.urls = urls;
+        threadName = "Thread Group 1-" + (seed + 1);
+    }
+
+    /**
+     * Initializes JMeter properties and resources from folder given by system property "jmeter.home",
+     * so benchmarks run without GUI and without JMeter engine.
+     */
+    static void initJMeter() {
+        String home = System.getProperty("jmeter.home");
+        if (home == null) {
+            throw new IllegalStateException("System property jmeter.home is not set");
+        }
+        JMeterUtils.setJMeterHome(home);
+        JMeterUtils.loadJMeterProperties(new File(home, "bin/jmeter.properties").getPath());
+        JMeterUtils.initLocale();
+    }
+
+    /**
+     * @return new sample.
+     */
+    SampleResult next() {
+        boolean success = random.nextInt(50) != 0;
+        long elapsed = Math.min(60_000L, (long) Math.exp(4.5 + 0.8 * random.nextGaussian()));
+        SampleResult sample = new SampleResult();
+        sample.setStampAndTime(time - elapsed, elapsed);
+        time++;
+        sample.setSampleLabel(labels[random.nextInt(labels.length)]);
+        sample.setURL(url("http://example.com/shop/item/" + random.nextInt(urls)));
+        sample.setSuccessful(success);
+        sample.setErrorCount(success ? 0 : 1);
+        sample.setResponseCode(success ? CODES[random.nextInt(4)] : CODES[4 + random.nextInt(2)]);
+        sample.setResponseMessage(success ? "OK" : "Error");
+        sample.setBytes(500 + random.nextInt(50_000));
+        sample.setSentBytes(100 + random.nextInt(1000));
+        sample.setLatency(elapsed / 2);
+        sample.setConnectTime(random.nextInt(10));
+        sample.setAllThreads(100);
+        sample.setGroupThreads(100);
+        sample.setThreadName(threadName);
+        return sample;
+    }
+
+    /**
+     * @param size number of samples.
+     * @return new samples, reused by benchmarks of the ingestion to measure only the work of the engine.
+     */
+    SampleResult[] pool(int size) {
+        SampleResult[] pool = new SampleResult[size];
+        for (int i = 0; i < size; i++) {
+            pool[i] = next();
+        }
+        return pool;
+    }
+
+    /**
+     * Removes folder with all its content.
+     *
+     * @param folder folder to remove, nothing is done if it does not exist.
+     * @throws IOException if a file can not be removed.
+     */
+    static void delete(File folder) throws IOException {
+        if (folder == null || !folder.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(folder.toPath())) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static URL url(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
@@ -1,4 +1,5 @@
-var dataBasedOnTime = [responseTimePercentilesOverTime,
+// Over-time graphs are loaded only by the summary page (data/overtime.js)
+var dataBasedOnTime = typeof responseTimePercentilesOverTime === "undefined" ? [] : [responseTimePercentilesOverTime,
                        responseTimeVsRequest, 
                        responseTimesOverTime, 
                        latenciesOverTime, 
@@ -53,8 +54,24 @@ function bubbleSort(a)
 }
  
 
+// Data files of charts, loaded when their tab is opened
+var lazyData = {percentiles: "responseTimePercentiles", timeVSThreads: "timeVsThreads",
+                LatencyVsRequest: "latencyVsRequest", responseTimeDistribution: "responseTimeDistribution"};
+
+function loadData(name, callback){
+    var script = document.createElement("script");
+    script.src = $('script[src$="functions.js"]').attr("src").replace("functions.js", "data/" + name + ".js");
+    script.onload = callback;
+    document.head.appendChild(script);
+}
+
 function drawGraph(typeOfGraph)
 {
+    var dataName = lazyData[typeOfGraph];
+    if (dataName && window[dataName] === undefined) {
+        loadData(dataName, function(){ drawGraph(typeOfGraph); });
+        return;
+    }
     Chart.defaults.global.legend.position = "bottom";
     switch(typeOfGraph){
         case "basedOnTime":
@@ -499,7 +516,6 @@ function fillLineChartData(){
                 if(a == 1){
                        y = name;
                        lineChartData.datasets[d].data[pozice] = {y, x};
-                    i++;
                 }
                 a++;
             });
@@ -622,7 +638,7 @@ function deleteTransparency(color){
 
 //VykreslĂ­ tabulku s nejÄŤastÄ›jĹˇĂ­mi chybami
 function drawErrTable(data){
-    var error_data = JSON.parse(data);
+    var error_data = typeof data === "string" ? JSON.parse(data) : data;
 
         $(document).ready(function()
         {
@@ -688,8 +704,8 @@ function fillData(){
 }
 
 function fillURL(){
-    document.getElementById("tested_URL").innerHTML =  dataResult[0][15][0];
-    document.getElementById("tested_URL").href= dataResult[0][15][0];
+    document.getElementById("tested_URL").innerHTML =  dataResult[0][16][0];
+    document.getElementById("tested_URL").href= dataResult[0][16][0];
 }
 
 function fillErrStats(){
@@ -705,7 +721,7 @@ function Round(num, precision){
 }
 
 function createStatisticsTable(){
-    var titles = ["Request Label", "#Users", "#Samples", "Average", "Min", "Max", "Std. Dev.", "Error %", "Throughput", "Recieved KB/s", "Sent KB/s", "Average bytes/s", "Latency", "Avg. Connect time", "Avg. Response Time (ms)", "URLs"];
+    var titles = ["Request Label", "#Users", "#Samples", "Average", "Min", "Max", "Std. Dev.", "Error %", "Throughput", "Recieved KB/s", "Sent KB/s", "Average bytes/s", "Latency", "Avg. Connect time", "Avg. Response Time (ms)", "Unique URLs", "URLs"];
 
      $(document).ready(function()
         {
@@ -749,11 +765,18 @@ function createStatisticsTable(){
                     }
 
                     $('#mainTable').append(tableBody);
+                    if (typeof foldedLabels !== 'undefined' && foldedLabels !== "0") {
+                        $('#mainTable').after($(document.createElement('p')).text(
+                            "Labels over the limit counted in the overflow row: " + foldedLabels));
+                    }
         });
 }
 
 function createPercentilTable(){
-    var titles = ["Request Label", "Percentil 90%", "Percentil 95%", "Percentil 99%"];
+    var titles = ["Request Label"];
+    for (var p = 0; p < percentileLevels.length; p++) {
+        titles.push("Percentil " + percentileLevels[p] + "%");
+    }
 
      $(document).ready(function()
         {
@@ -781,6 +804,70 @@ function createPercentilTable(){
         });
 }
 
+function createSlaTable(){
+    if (typeof slaResults === "undefined" || slaResults.items.length == 0) {
+        return;
+    }
+
+     $(document).ready(function()
+        {
+                    var tableBody = $(document.createElement('tbody'));
+                    var newRow = $(document.createElement('tr'));
+                    tableBody.append(newRow);
+
+                     for (var j = 0; j < slaResults.titles.length; j++) {
+                     newRow.append($(document.createElement('th')).html(slaResults.titles[j]));
+                     }
+
+                     for (var i = 0; i < slaResults.items.length; i++) {
+                        newRow = $(document.createElement('tr'));
+                        if (slaResults.items[i][1] == "FAILED") {
+                            newRow.addClass("danger");
+                        } else if (slaResults.items[i][1] == "BREACHED") {
+                            newRow.addClass("warning");
+                        }
+                        tableBody.append(newRow);
+                        for (var j = 0; j < slaResults.items[i].length; j++) {
+                            newRow.append($(document.createElement('td')).text(slaResults.items[i][j]));
+                        }
+                     }
+                    $('#slaTable').append(tableBody);
+                    $('#slaNote').text("(window " + slaResults.window + " s, failed after " + slaResults.duration + " s"
+                            + (slaResults.stopped ? ", test was stopped by a failed rule)"
+                            : slaResults.stopFailed ? ", test could not be stopped by a failed rule)" : ")"));
+                    $('#slaPanel').show();
+        });
+}
+
+function createOverheadTable(){
+    if (typeof generatorOverhead === "undefined") {
+        return;
+    }
+
+     $(document).ready(function()
+        {
+                    var tableBody = $(document.createElement('tbody'));
+                    var newRow = $(document.createElement('tr'));
+                    tableBody.append(newRow);
+
+                     for (var j = 0; j < generatorOverhead.titles.length; j++) {
+                     newRow.append($(document.createElement('th')).html(generatorOverhead.titles[j]));
+                     }
+
+                     for (var i = 0; i < generatorOverhead.items.length; i++) {
+                        newRow = $(document.createElement('tr'));
+                        tableBody.append(newRow);
+                        var value = generatorOverhead.items[i][1];
+                        if (typeof value === "number") {
+                            value = Math.round(value * 100) / 100;
+                        }
+                        newRow.append($(document.createElement('td')).html(generatorOverhead.items[i][0]));
+                        newRow.append($(document.createElement('td')).html(value));
+                     }
+                    $('#overheadTable').append(tableBody);
+        });
+}
+
 function drawBarGraph(){
 
     var config = {
@@ -815,15 +902,11 @@ function drawBarGraph(){
         for(y = 0; y < percentile[i].length; y++){
             if(y == 0){
                 dataset.label = percentile[i][y];
-                config.data.labels[0] = "Percentile 90%";
-                config.data.labels[1] = "Percentile 95%";
-                config.data.labels[2] = "Percentile 99%";
-                dataset.backgroundColor[0] = borderColor;
-                dataset.backgroundColor[1] = borderColor;
-                dataset.backgroundColor[2] = borderColor;
-                dataset.hoverBackgroundColor[0] = borderColor;
-                dataset.hoverBackgroundColor[1] = borderColor;
-                dataset.hoverBackgroundColor[2] = borderColor;
+                for (var p = 0; p < percentileLevels.length; p++) {
+                    config.data.labels[p] = "Percentile " + percentileLevels[p] + "%";
+                    dataset.backgroundColor[p] = borderColor;
+                    dataset.hoverBackgroundColor[p] = borderColor;
+                }
             }else{
                 dataset.data[y-1] = percentile[i][y];
             }
@@ -835,4 +918,129 @@ function drawBarGraph(){
         var ctx = document.getElementById("percentil").getContext("2d");
         window.myPie = new Chart(ctx, config);
     };
-}
\ No newline at end of file
+}
+
+// Live report: page served by the running test receives snapshots of statistics (webgenerator.live.enabled)
+function startLiveUpdates(){
+    if (typeof EventSource === "undefined" || window.location.protocol.indexOf("http") != 0) {
+        return;
+    }
+    var source = new EventSource("/events");
+    source.onmessage = function(e){
+        var update = JSON.parse(e.data);
+        applyLiveUpdate(update);
+        if (update.finished) {
+            source.close();
+        }
+    };
+}
+
+function applyLiveUpdate(update){
+    summaryData = update.tables.summary;
+    dataResult = update.tables.dataResult;
+    percentile = update.tables.percentile;
+    var seriesCount = countSeries(dataBasedOnTime);
+    for (var name in update.graphs) {
+        var graph = update.graphs[name];
+        if (window[name] === undefined) {
+            continue; // Data file of the chart was not loaded by the page
+        }
+        if (graph.replace || window[name].result === undefined) {
+            window[name].result = graph.data.result;
+        } else {
+            appendSeries(window[name].result, graph.data.result);
+        }
+    }
+    if (myChart) {
+        if (countSeries(dataBasedOnTime) != seriesCount) {
+            myChart.destroy();
+            drawGraph("basedOnTime");
+        } else {
+            appendLineChartData(update.graphs);
+            myChart.update();
+        }
+    }
+    if (document.getElementById("n_err")) {
+        fillData();
+    }
+    if (document.getElementById("errSuccess")) {
+        fillErrStats();
+    }
+    if (document.getElementById("live_rates")) {
+        fillLiveRates(update.tables.rates);
+    }
+}
+
+//Samples per second of the last second, minute and five minutes, shown only in the live report
+function fillLiveRates(rates){
+    document.getElementById("live_rates").style.display = "";
+    document.getElementById("n_rate_current").innerHTML = Round(rates.total.current, 2);
+    document.getElementById("n_rate_minute").innerHTML = Round(rates.total.minute, 2);
+    document.getElementById("n_rate_five").innerHTML = Round(rates.total.fiveMinutes, 2);
+}
+
+function countSeries(dataArray){
+    var count = 0;
+    for (var b = 0; b < dataArray.length; b++) {
+        if (dataArray[b].result !== undefined) {
+            count += dataArray[b].result.series.length;
+        }
+    }
+    return count;
+}
+
+//Appends new points to the series, the last point of the series is replaced (its interval was not complete)
+function appendSeries(target, delta){
+    target.granularity = delta.granularity;
+    for (var c = 0; c < delta.series.length; c++) {
+        var series = null;
+        for (var s = 0; s < target.series.length; s++) {
+            if (target.series[s].label == delta.series[c].label) {
+                series = target.series[s];
+            }
+        }
+        if (series == null) {
+            target.series.push(delta.series[c]);
+            continue;
+        }
+        for (var i = 0; i < delta.series[c].data.length; i++) {
+            var point = delta.series[c].data[i];
+            var last = series.data.length > 0 ? series.data[series.data.length - 1] : null;
+            if (last != null && last[0] == point[0]) {
+                series.data[series.data.length - 1] = point;
+            } else if (last == null || point[0] > last[0]) {
+                series.data.push(point);
+            }
+        }
+    }
+}
+
+//Updates datasets of the chart based on time from the last point, replaced graphs are updated whole
+function appendLineChartData(graphs){
+    var d = 0;
+    for (var b = 0; b < dataBasedOnTime.length; b++) {
+        if (dataBasedOnTime[b].result === undefined) {
+            continue;
+        }
+        var replaced = false;
+        for (var name in graphs) {
+            if (window[name] === dataBasedOnTime[b] && graphs[name].replace) {
+                replaced = true;
+            }
+        }
+        for (var c = 0; c < dataBasedOnTime[b].result.series.length; c++) {
+            var data = dataBasedOnTime[b].result.series[c].data;
+            var dataset = lineChartData.datasets[d].data;
+            var from = replaced ? 0 : Math.max(dataset.length - 1, 0);
+            dataset.length = from;
+            for (var i = from; i < data.length; i++) {
+                var x = moment(data[i][0] + (parseInt(timeZoneOffset)/10)).format();
+                var y = data[i][1];
+                dataset.push({y, x});
+            }
+            d++;
+        }
+    }
+}
+
+$(document).ready(startLiveUpdates);
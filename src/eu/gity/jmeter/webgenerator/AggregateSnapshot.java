@@ -0,0 +1,203 @@
+package eu.gity.jmeter.webgenerator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Statistics of samples of a remote engine collected since the previous snapshot: statistics and URLs
+ * per label, over-time graphs and counts per second for the rates of the last minutes. Snapshot is sent
+ * to the controller instead of the samples and merged there into the engine, so a distributed test is
+ * aggregated on every remote engine and the controller only adds the snapshots.
+ *
+ * Snapshot is built from statistics collected by the sender ({@link SnapshotSampleSender}) and serialized
+ * in the compact binary form of its parts (histograms keep only non-empty buckets, URL sketches only their registers).
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class AggregateSnapshot implements Serializable {
+    private static final long serialVersionUID = 240L;
+    private static final int VERSION = 1;
+
+    private transient JtlImporter.Chunk chunk = new JtlImporter.Chunk();
+    private transient TimeSeriesAggregator timeSeries = new TimeSeriesAggregator();
+    // Samples and errors per second, label and response code
+    private transient Map<Long, Map<String, Map<String, long[]>>> counts = new TreeMap<>();
+
+    private AggregateSnapshot() {
+    }
+
+    /**
+     * Snapshot of the whole state of an engine (used by checkpoints, counts per second are not included).
+     *
+     * @param chunk statistics and URLs per label.
+     * @param timeSeries over-time graphs.
+     */
+    AggregateSnapshot(JtlImporter.Chunk chunk, TimeSeriesAggregator timeSeries) {
+        this(chunk, timeSeries, new TreeMap<>());
+    }
+
+    /**
+     * Snapshot of statistics of a remote engine.
+     *
+     * @param chunk statistics and URLs per label.
+     * @param timeSeries over-time graphs.
+     * @param counts samples and errors per second, label and response code.
+     */
+    AggregateSnapshot(JtlImporter.Chunk chunk, TimeSeriesAggregator timeSeries, Map<Long, Map<String, Map<String, long[]>>> counts) {
+        this.chunk = chunk;
+        this.timeSeries = timeSeries;
+        this.counts = counts;
+    }
+
+    /**
+     * @return statistics and URLs per label.
+     */
+    JtlImporter.Chunk getChunk() {
+        return chunk;
+    }
+
+    /**
+     * @return over-time graphs of the samples.
+     */
+    TimeSeriesAggregator getTimeSeries() {
+        return timeSeries;
+    }
+
+    /**
+     * Adds counts per second to the rates of the last minutes.
+     *
+     * @param rates target counters.
+     */
+    void countRates(RollingCounters rates) {
+        for (Map.Entry<Long, Map<String, Map<String, long[]>>> second : counts.entrySet()) {
+            for (Map.Entry<String, Map<String, long[]>> label : second.getValue().entrySet()) {
+                for (Map.Entry<String, long[]> code : label.getValue().entrySet()) {
+                    long[] count = code.getValue();
+                    rates.add(second.getKey(), label.getKey(), code.getKey(), count[0], count[1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes string as UTF-8 bytes prefixed by their length (-1 for null).
+     *
+     * @param out target of the data.
+     * @param value string or null.
+     * @throws IOException if the data can not be written.
+     */
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads string written by {@link #writeString(DataOutput, String)}.
+     *
+     * @param in source of the data.
+     * @return string or null.
+     * @throws IOException if the data can not be read.
+     */
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the snapshot in its binary form.
+     *
+     * @param out target of the data.
+     * @throws IOException if the data can not be written.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeInt(chunk.stats.size());
+        for (Map.Entry<String, SampleStats> row : chunk.stats.entrySet()) {
+            row.getValue().write(out);
+            chunk.urls.get(row.getKey()).write(out);
+        }
+        chunk.totalUrls.write(out);
+        timeSeries.write(out);
+        out.writeInt(counts.size());
+        for (Map.Entry<Long, Map<String, Map<String, long[]>>> second : counts.entrySet()) {
+            out.writeLong(second.getKey());
+            out.writeInt(second.getValue().size());
+            for (Map.Entry<String, Map<String, long[]>> label : second.getValue().entrySet()) {
+                writeString(out, label.getKey());
+                out.writeInt(label.getValue().size());
+                for (Map.Entry<String, long[]> code : label.getValue().entrySet()) {
+                    writeString(out, code.getKey());
+                    out.writeLong(code.getValue()[0]);
+                    out.writeLong(code.getValue()[1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads snapshot written by {@link #write(DataOutput)}.
+     *
+     * @param in source of the data.
+     * @return the snapshot.
+     * @throws IOException if the data can not be read or has unknown version.
+     */
+    static AggregateSnapshot read(DataInput in) throws IOException {
+        AggregateSnapshot snapshot = new AggregateSnapshot();
+        snapshot.readFields(in);
+        return snapshot;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        write(out);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException {
+        readFields(in);
+    }
+
+    private void readFields(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        chunk = new JtlImporter.Chunk();
+        int rows = in.readInt();
+        for (int i = 0; i < rows; i++) {
+            SampleStats row = SampleStats.read(in);
+            chunk.stats.put(row.getLabel(), row);
+            chunk.urls.put(row.getLabel(), UrlTracker.read(in));
+        }
+        chunk.totalUrls.merge(UrlTracker.read(in));
+        timeSeries = TimeSeriesAggregator.read(in);
+        counts = new TreeMap<>();
+        int seconds = in.readInt();
+        for (int s = 0; s < seconds; s++) {
+            Map<String, Map<String, long[]>> labels = counts.computeIfAbsent(in.readLong(), k -> new TreeMap<>());
+            int labelCount = in.readInt();
+            for (int l = 0; l < labelCount; l++) {
+                Map<String, long[]> codes = labels.computeIfAbsent(readString(in), k -> new TreeMap<>());
+                int codeCount = in.readInt();
+                for (int c = 0; c < codeCount; c++) {
+                    codes.put(readString(in), new long[]{in.readLong(), in.readLong()});
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Periodic checkpoint of collected statistics, so statistics of a long test survive a crash of JMeter.
+ * Every "webgenerator.checkpoint.interval" seconds (0 disables checkpoints) the state of the engine is written
+ * to a file next to the result file with extension ".wgc". The file is written to a temporary file first
+ * and renamed, so the checkpoint is always complete. Checkpoints are written by their own thread,
+ * sampler threads do not wait for them.
+ *
+ * With "webgenerator.checkpoint.resume" a new test continues with statistics of the checkpoint of its result
+ * file. Website can be generated directly from a checkpoint file given as the result file.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class Checkpoint {
+    /** Extension of checkpoint files. */
+    static final String EXTENSION = ".wgc";
+    /** Interval of checkpoints in seconds, 0 if checkpoints are disabled. */
+    static final long INTERVAL = Math.max(0, JMeterUtils.getPropDefault("webgenerator.checkpoint.interval", 0L));
+    /** Statistics of a new test start from the checkpoint of its result file. */
+    static final boolean RESUME = JMeterUtils.getPropDefault("webgenerator.checkpoint.resume", false);
+    private static final byte[] MAGIC = "WGCHECK1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final Logger log = LoggerFactory.getLogger(Checkpoint.class);
+
+    private final File file;
+    private final Supplier<AggregateSnapshot> source;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param file checkpoint file.
+     * @param source snapshot of the state of the engine, taken on the checkpoint thread.
+     */
+    Checkpoint(File file, Supplier<AggregateSnapshot> source) {
+        this.file = file;
+        this.source = source;
+    }
+
+    /**
+     * @param resultFile path to the result file.
+     * @return checkpoint file belonging to the result file (extension is replaced by ".wgc").
+     */
+    static File checkpointFile(String resultFile) {
+        if (isCheckpoint(resultFile)) {
+            return new File(resultFile);
+        }
+        File file = new File(resultFile);
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(file.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + EXTENSION);
+    }
+
+    /**
+     * @param resultFile path to the result file.
+     * @return true if the path has extension of checkpoint files.
+     */
+    static boolean isCheckpoint(String resultFile) {
+        return resultFile.toLowerCase(Locale.ROOT).endsWith(EXTENSION);
+    }
+
+    /**
+     * Starts periodic checkpoints.
+     */
+    synchronized void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WebGenerator checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::save, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops periodic checkpoints and writes the final one.
+     */
+    void stop() {
+        ScheduledExecutorService running;
+        synchronized (this) {
+            running = scheduler;
+            scheduler = null;
+        }
+        if (running != null) {
+            running.shutdown();
+            try {
+                running.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        save();
+    }
+
+    private void save() {
+        try {
+            write(file, source.get());
+        } catch (IOException | RuntimeException e) {
+            log.error(JMeterUtils.getResString("web_generator_log_checkpoint_failed") + " " + e);
+        }
+    }
+
+    /**
+     * Writes checkpoint atomically (temporary file renamed to the checkpoint file).
+     *
+     * @param file checkpoint file.
+     * @param snapshot state of the engine.
+     * @throws IOException if the file can not be written.
+     */
+    static void write(File file, AggregateSnapshot snapshot) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+            out.write(MAGIC);
+            snapshot.write(out);
+            out.flush();
+            stream.getFD().sync(); // Renamed file has to be complete on disk even after a crash of the system
+        }
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @param file checkpoint file.
+     * @return state of the engine written to the checkpoint.
+     * @throws IOException if the file can not be read or it is not a checkpoint.
+     */
+    static AggregateSnapshot read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a checkpoint file " + file);
+            }
+            return AggregateSnapshot.read(in);
+        }
+    }
+}
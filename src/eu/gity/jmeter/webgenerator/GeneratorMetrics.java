@@ -0,0 +1,261 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Overhead of the Web Generator itself: time spent by sampler threads in the engine, waiting for the pipeline,
+ * ingestion rate, number of labels and URLs, estimated heap of collected statistics and durations of phases
+ * of website generation. Metrics are registered as JMX MBean while the test runs and written to the section
+ * "Generator overhead" of the statistics page.
+ *
+ * Time of the engine is measured for every 16th sample only (chosen at random), so the measurement does not
+ * add its own overhead to every sample. Disabled by "webgenerator.metrics.enabled=false".
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class GeneratorMetrics implements GeneratorMetricsMBean {
+    static final boolean ENABLED = JMeterUtils.getPropDefault("webgenerator.metrics.enabled", true);
+    private static final int TIMING_RATE = 16;
+    private static final AtomicInteger ENGINES = new AtomicInteger();
+
+    private static final Logger log = LoggerFactory.getLogger(GeneratorMetrics.class);
+
+    private final SamplePipeline pipeline; // null if the pipeline mode is disabled
+    private final Supplier<Footprint> footprint;
+    private final String name = "engine-" + ENGINES.incrementAndGet();
+    private final LongAdder ingested = new LongAdder();
+    private final LongAdder timed = new LongAdder();
+    private final LongAdder timedNanos = new LongAdder();
+    private volatile long startNanos = System.nanoTime();
+    private volatile long endNanos; // 0 while the test runs
+    private final Map<ReportPhase, Long> phases = new EnumMap<>(ReportPhase.class); // Guarded by itself
+    private ReportPhase currentPhase;
+    private long phaseStart;
+    private ObjectName registered;
+
+    /**
+     * @param pipeline pipeline of the engine, null if disabled.
+     * @param footprint size of statistics of the engine.
+     */
+    GeneratorMetrics(SamplePipeline pipeline, Supplier<Footprint> footprint) {
+        this.pipeline = pipeline;
+        this.footprint = footprint;
+    }
+
+    /**
+     * Called by a sampler thread when it enters the engine.
+     *
+     * @return start time of the measured call, 0 if this call is not measured.
+     */
+    long startTiming() {
+        return ENABLED && ThreadLocalRandom.current().nextInt(TIMING_RATE) == 0 ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Called by a sampler thread when the sample is passed to the aggregation.
+     *
+     * @param start value returned by {@link #startTiming()}.
+     */
+    void added(long start) {
+        ingested.increment();
+        if (start != 0) {
+            timedNanos.add(System.nanoTime() - start);
+            timed.increment();
+        }
+    }
+
+    /**
+     * Resets counters of the test and registers MBean.
+     */
+    void testStarted() {
+        ingested.reset();
+        timed.reset();
+        timedNanos.reset();
+        startNanos = System.nanoTime();
+        endNanos = 0;
+        register();
+    }
+
+    /**
+     * Stops the ingestion rate and unregisters MBean.
+     */
+    void testEnded() {
+        endNanos = System.nanoTime();
+        unregister();
+    }
+
+    /**
+     * Forgets durations of phases of the previous generation.
+     */
+    void generationStarted() {
+        synchronized (phases) {
+            phases.clear();
+            currentPhase = null;
+        }
+    }
+
+    /**
+     * Ends the running phase of the generation and starts the next one.
+     *
+     * @param phase phase which starts now.
+     */
+    void phase(ReportPhase phase) {
+        long now = System.nanoTime();
+        synchronized (phases) {
+            if (currentPhase != null) {
+                phases.put(currentPhase, now - phaseStart);
+            }
+            currentPhase = phase.isFinal() ? null : phase;
+            phaseStart = now;
+        }
+    }
+
+    @Override
+    public long getSamplesIngested() {
+        return ingested.sum();
+    }
+
+    @Override
+    public double getSamplesPerSecond() {
+        long end = endNanos == 0 ? System.nanoTime() : endNanos;
+        return ingested.sum() * 1e9 / Math.max(1, end - startNanos);
+    }
+
+    @Override
+    public double getNanosPerSample() {
+        long count = timed.sum();
+        return count == 0 ? 0 : (double) timedNanos.sum() / count;
+    }
+
+    @Override
+    public double getSamplerWaitMillis() {
+        return pipeline == null ? 0 : pipeline.getBlockedNanos() / 1e6;
+    }
+
+    @Override
+    public int getLabels() {
+        return footprint.get().labels;
+    }
+
+    @Override
+    public long getUrls() {
+        return footprint.get().urls;
+    }
+
+    @Override
+    public long getEstimatedHeapBytes() {
+        return footprint.get().heapBytes;
+    }
+
+    @Override
+    public String getLastGenerationPhases() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<ReportPhase, Long> phase : phaseDurations().entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(phase.getKey()).append('=').append(phase.getValue() / 1000000).append(" ms");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes table of the overhead ({"titles": [...], "items": [[metric, value], ...]}).
+     *
+     * @param json target of the text.
+     * @param size size of statistics taken with the snapshot of the report.
+     * @throws IOException if the text can not be written.
+     */
+    void write(JsonWriter json, Footprint size) throws IOException {
+        json.beginObject().name("titles").beginArray().value("Metric").value("Value").endArray();
+        json.name("items").beginArray();
+        json.beginArray().value("Samples ingested").value(getSamplesIngested()).endArray();
+        json.beginArray().value("Samples per second").value(getSamplesPerSecond()).endArray();
+        json.beginArray().value("Time in engine per sample [ns]").value(getNanosPerSample()).endArray();
+        json.beginArray().value("Sampler wait for pipeline [ms]").value(getSamplerWaitMillis()).endArray();
+        json.beginArray().value("Labels").value(size.labels).endArray();
+        json.beginArray().value("Unique URLs").value((size.urlsEstimated ? "~" : "") + size.urls).endArray();
+        json.beginArray().value("Estimated heap of statistics [kB]").value(size.heapBytes / 1024).endArray();
+        for (Map.Entry<ReportPhase, Long> phase : phaseDurations().entrySet()) {
+            json.beginArray().value(phase.getKey() + " [ms]").value(phase.getValue() / 1e6).endArray();
+        }
+        json.endArray().endObject();
+    }
+
+    /**
+     * @return durations of phases of the last generation in nanoseconds, the running phase until now.
+     */
+    private Map<ReportPhase, Long> phaseDurations() {
+        synchronized (phases) {
+            Map<ReportPhase, Long> durations = new EnumMap<>(phases);
+            if (currentPhase != null) {
+                durations.put(currentPhase, System.nanoTime() - phaseStart);
+            }
+            return durations;
+        }
+    }
+
+    private synchronized void register() {
+        if (!ENABLED || registered != null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName("eu.gity.jmeter.webgenerator:type=GeneratorMetrics,name=" + name);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new StandardMBean(this, GeneratorMetricsMBean.class), objectName);
+            registered = objectName;
+        } catch (JMException e) {
+            log.warn(JMeterUtils.getResString("web_generator_log_jmx_failed") + " " + e);
+        }
+    }
+
+    private synchronized void unregister() {
+        if (registered == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (JMException e) {
+            log.warn(JMeterUtils.getResString("web_generator_log_jmx_failed") + " " + e);
+        }
+        registered = null;
+    }
+
+    /**
+     * Size of collected statistics.
+     */
+    static final class Footprint {
+        private final int labels;
+        private final long urls;
+        private final boolean urlsEstimated;
+        private final long heapBytes;
+
+        /**
+         * @param labels number of labels.
+         * @param urls number of unique URLs.
+         * @param urlsEstimated true if number of URLs is estimated.
+         * @param heapBytes estimated heap of statistics.
+         */
+        Footprint(int labels, long urls, boolean urlsEstimated, long heapBytes) {
+            this.labels = labels;
+            this.urls = urls;
+            this.urlsEstimated = urlsEstimated;
+            this.heapBytes = heapBytes;
+        }
+    }
+}
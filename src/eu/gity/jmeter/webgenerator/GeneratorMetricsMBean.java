@@ -0,0 +1,50 @@
+package eu.gity.jmeter.webgenerator;
+
+/**
+ * JMX view of the overhead of the Web Generator during the test, registered as
+ * "eu.gity.jmeter.webgenerator:type=GeneratorMetrics,name=engine-N" while the test runs.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+public interface GeneratorMetricsMBean {
+
+    /**
+     * @return number of samples passed to the engine since the start of the test.
+     */
+    long getSamplesIngested();
+
+    /**
+     * @return average number of samples per second since the start of the test.
+     */
+    double getSamplesPerSecond();
+
+    /**
+     * @return average time spent by a sampler thread in the engine per sample (nanoseconds).
+     */
+    double getNanosPerSample();
+
+    /**
+     * @return time spent by sampler threads waiting for a free slot of the full pipeline (milliseconds).
+     */
+    double getSamplerWaitMillis();
+
+    /**
+     * @return number of distinct labels.
+     */
+    int getLabels();
+
+    /**
+     * @return number of unique URLs of all labels, estimated for many URLs.
+     */
+    long getUrls();
+
+    /**
+     * @return rough estimate of heap held by statistics, URLs, over-time data and rates (bytes).
+     */
+    long getEstimatedHeapBytes();
+
+    /**
+     * @return duration of phases of the last website generation (e.g. "Rendering templates=120 ms, ...").
+     */
+    String getLastGenerationPhases();
+}
@@ -0,0 +1,327 @@
+package eu.gity.jmeter.webgenerator;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data of one graph of the website, written as JSON object read by functions.js
+ * ({"result": {"title", "granularity", "series": [{"label", "data": [[x, y], ...]}]}}).
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class Graph {
+    /**
+     * How points of the graph are reduced when there are too many of them.
+     */
+    enum Reduction {
+        /** Points over time keep their shape (Largest-Triangle-Three-Buckets). */
+        SHAPE,
+        /** Adjacent bins of a histogram are summed, granularity grows. */
+        SUM,
+        /** Adjacent averages are merged to a mean weighted by their numbers of samples. */
+        MEAN,
+        /** Fixed number of points, nothing is reduced. */
+        NONE
+    }
+
+    private final String title;
+    private long granularity;
+    private final Reduction reduction;
+    private final List<Series> series = new ArrayList<>();
+
+    /**
+     * Graph of values over time.
+     *
+     * @param title title of the graph.
+     * @param granularity width of one point on x axis (milliseconds for over-time graphs).
+     */
+    Graph(String title, long granularity) {
+        this(title, granularity, Reduction.SHAPE);
+    }
+
+    /**
+     * @param title title of the graph.
+     * @param granularity width of one point on x axis (milliseconds for over-time graphs).
+     * @param reduction how points are reduced by {@link #downsample(int)}.
+     */
+    Graph(String title, long granularity, Reduction reduction) {
+        this.title = title;
+        this.granularity = granularity;
+        this.reduction = reduction;
+    }
+
+    /**
+     * Adds new empty series to the graph.
+     *
+     * @param label label of the series.
+     * @return added series.
+     */
+    Series addSeries(String label) {
+        Series s = new Series(label);
+        series.add(s);
+        return s;
+    }
+
+    /**
+     * @return series of the graph in order of addition.
+     */
+    List<Series> getSeries() {
+        return series;
+    }
+
+    /**
+     * @return title of the graph.
+     */
+    String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return width of one point on x axis.
+     */
+    long getGranularity() {
+        return granularity;
+    }
+
+    /**
+     * Reduces number of points of every series to the given limit, the way depends on {@link Reduction}.
+     *
+     * @param maxPoints highest number of points of one series.
+     * @return this graph.
+     */
+    Graph downsample(int maxPoints) {
+        switch (reduction) {
+            case SHAPE:
+                for (Series s : series) {
+                    s.downsample(maxPoints);
+                }
+                break;
+            case SUM:
+                sumBins(maxPoints);
+                break;
+            case MEAN:
+                for (Series s : series) {
+                    s.mergeMeans(maxPoints);
+                }
+                break;
+            default:
+                break;
+        }
+        return this;
+    }
+
+    /**
+     * Joins adjacent bins of the same width in all series, so bars of all series stay aligned.
+     */
+    private void sumBins(int maxPoints) {
+        if (granularity <= 0 || maxPoints < 1) {
+            return;
+        }
+        double maxBin = 0;
+        for (Series s : series) {
+            for (double[] point : s.points) {
+                maxBin = Math.max(maxBin, point[0] / granularity);
+            }
+        }
+        long joined = (long) Math.ceil((maxBin + 1) / maxPoints);
+        if (joined <= 1) {
+            return;
+        }
+        granularity *= joined;
+        for (Series s : series) {
+            s.sumBins(granularity);
+        }
+    }
+
+    /**
+     * @return JSON text of the graph.
+     */
+    String toJson() {
+        StringWriter out = new StringWriter(256);
+        try {
+            write(new JsonWriter(out));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringWriter does not throw
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the graph as JSON object.
+     *
+     * @param json target of the text.
+     * @throws IOException if the text can not be written.
+     */
+    void write(JsonWriter json) throws IOException {
+        json.beginObject().name("result").beginObject();
+        json.name("title").value(title);
+        json.name("granularity").value(granularity);
+        json.name("supportsControllersDiscrimination").value(false);
+        json.name("series").beginArray();
+        for (Series s : series) {
+            s.write(json);
+        }
+        json.endArray().endObject().endObject();
+    }
+
+    /**
+     * Points of one series of the graph.
+     */
+    static final class Series {
+        private final String label;
+        private List<double[]> points = new ArrayList<>();
+
+        private Series(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Adds point at the end of the series.
+         *
+         * @param x value on x axis.
+         * @param y value on y axis.
+         */
+        void add(double x, double y) {
+            points.add(new double[]{x, y});
+        }
+
+        /**
+         * Adds average at the end of the series, see {@link Reduction#MEAN}.
+         *
+         * @param x value on x axis.
+         * @param y average on y axis.
+         * @param samples number of samples of the average.
+         */
+        void add(double x, double y, long samples) {
+            points.add(new double[]{x, y, samples});
+        }
+
+        /**
+         * @return label of the series.
+         */
+        String getLabel() {
+            return label;
+        }
+
+        /**
+         * @return points of the series as {x, y} pairs.
+         */
+        List<double[]> getPoints() {
+            return points;
+        }
+
+        /**
+         * Reduces number of points by Largest-Triangle-Three-Buckets algorithm. First and last points are kept,
+         * from every bucket of the other points the point which forms the largest triangle with the previous
+         * selected point and the average of the next bucket is selected, so peaks and drops stay visible.
+         * Points have to be sorted by x.
+         *
+         * @param maxPoints highest number of points, at least 3.
+         */
+        void downsample(int maxPoints) {
+            int size = points.size();
+            if (maxPoints < 3 || size <= maxPoints) {
+                return;
+            }
+            List<double[]> sampled = new ArrayList<>(maxPoints);
+            double every = (double) (size - 2) / (maxPoints - 2);
+            int selected = 0;
+            sampled.add(points.get(0));
+            for (int i = 0; i < maxPoints - 2; i++) {
+                // Average of the next bucket
+                int nextStart = (int) Math.floor((i + 1) * every) + 1;
+                int nextEnd = Math.min((int) Math.floor((i + 2) * every) + 1, size);
+                double avgX = 0;
+                double avgY = 0;
+                for (int j = nextStart; j < nextEnd; j++) {
+                    avgX += points.get(j)[0];
+                    avgY += points.get(j)[1];
+                }
+                int nextLength = Math.max(nextEnd - nextStart, 1);
+                avgX /= nextLength;
+                avgY /= nextLength;
+
+                // Point of the current bucket with the largest triangle
+                int start = (int) Math.floor(i * every) + 1;
+                int end = (int) Math.floor((i + 1) * every) + 1;
+                double[] a = points.get(selected);
+                double maxArea = -1;
+                int maxIndex = start;
+                for (int j = start; j < end; j++) {
+                    double[] b = points.get(j);
+                    double area = Math.abs((a[0] - avgX) * (b[1] - a[1]) - (a[0] - b[0]) * (avgY - a[1]));
+                    if (area > maxArea) {
+                        maxArea = area;
+                        maxIndex = j;
+                    }
+                }
+                sampled.add(points.get(maxIndex));
+                selected = maxIndex;
+            }
+            sampled.add(points.get(size - 1));
+            points = sampled;
+        }
+
+        /**
+         * Sums y of bins which fall into the same wider bin, x of the sum is start of the wider bin.
+         * Points have to be sorted by x.
+         */
+        private void sumBins(long width) {
+            List<double[]> summed = new ArrayList<>();
+            double[] last = null;
+            for (double[] point : points) {
+                double x = Math.floor(point[0] / width) * width;
+                if (last == null || last[0] != x) {
+                    last = new double[]{x, 0};
+                    summed.add(last);
+                }
+                last[1] += point[1];
+            }
+            points = summed;
+        }
+
+        /**
+         * Merges groups of adjacent averages, x and y of the merged point are means weighted by numbers
+         * of samples. Points have to be sorted by x.
+         */
+        private void mergeMeans(int maxPoints) {
+            int size = points.size();
+            if (maxPoints < 1 || size <= maxPoints) {
+                return;
+            }
+            int joined = (size + maxPoints - 1) / maxPoints;
+            List<double[]> merged = new ArrayList<>(maxPoints);
+            for (int start = 0; start < size; start += joined) {
+                double samples = 0;
+                double sumX = 0;
+                double sumY = 0;
+                for (int i = start; i < Math.min(start + joined, size); i++) {
+                    double[] point = points.get(i);
+                    double weight = point.length > 2 ? point[2] : 1;
+                    samples += weight;
+                    sumX += point[0] * weight;
+                    sumY += point[1] * weight;
+                }
+                if (samples > 0) {
+                    merged.add(new double[]{sumX / samples, sumY / samples, samples});
+                }
+            }
+            points = merged;
+        }
+
+        private void write(JsonWriter json) throws IOException {
+            json.beginObject();
+            json.name("label").value(label);
+            json.name("isOverall").value(false);
+            json.name("isController").value(false);
+            json.name("data").beginArray();
+            for (double[] point : points) {
+                json.beginArray().value(point[0]).value(point[1]).endArray();
+            }
+            json.endArray().endObject();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package eu.gity.jmeter.webgenerator;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Array of elements indexed by small non-negative numbers (e.g. number of active threads or a bar
+ * of a distribution), so sampler threads find their element without boxing the index to a map key.
+ * Elements are created on first use and the array grows to the highest used index.
+ *
+ * @param <T> type of elements.
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class GrowingArray<T> {
+    private static final int INITIAL_LENGTH = 16;
+
+    private final Supplier<T> factory;
+    private volatile AtomicReferenceArray<T> elements = new AtomicReferenceArray<>(INITIAL_LENGTH);
+
+    /**
+     * @param factory creates element of an index used for the first time.
+     */
+    GrowingArray(Supplier<T> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Returns element of given index, the element is created if it does not exist.
+     *
+     * @param index index of the element, not negative.
+     * @return element of the index.
+     */
+    T get(int index) {
+        AtomicReferenceArray<T> array = elements;
+        if (index < array.length()) {
+            T element = array.get(index);
+            if (element != null) {
+                return element;
+            }
+        }
+        return create(index);
+    }
+
+    /**
+     * @param index index of the element, not negative.
+     * @return element of given index or null if it was not created.
+     */
+    T peek(int index) {
+        AtomicReferenceArray<T> array = elements;
+        return index < array.length() ? array.get(index) : null;
+    }
+
+    /**
+     * @return number of indexes covered by the array, elements above it do not exist.
+     */
+    int length() {
+        return elements.length();
+    }
+
+    /**
+     * Creates element of given index. Elements are created and the array is grown only under the lock,
+     * so an element is never lost by concurrent growth.
+     */
+    private synchronized T create(int index) {
+        AtomicReferenceArray<T> array = elements;
+        if (index >= array.length()) {
+            AtomicReferenceArray<T> grown = new AtomicReferenceArray<>(Math.max(index + 1, 2 * array.length()));
+            for (int i = 0; i < array.length(); i++) {
+                grown.set(i, array.get(i));
+            }
+            elements = grown;
+            array = grown;
+        }
+        T element = array.get(index);
+        if (element == null) {
+            element = factory.get();
+            array.set(index, element);
+        }
+        return element;
+    }
+}
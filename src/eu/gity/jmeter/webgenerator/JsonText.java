@@ -0,0 +1,87 @@
+package eu.gity.jmeter.webgenerator;
+
+/**
+ * Helpers for writing JSON text of the website data.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class JsonText {
+
+    private JsonText() {
+    }
+
+    /**
+     * Appends string as quoted and escaped JSON string.
+     *
+     * @param sb target of the text.
+     * @param value string to append, null is written as empty string.
+     */
+    static void quote(StringBuilder sb, String value) {
+        sb.append('"');
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                String escaped = escape(c);
+                if (escaped == null) {
+                    sb.append(c);
+                } else {
+                    sb.append(escaped);
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Escape sequence of a character of JSON string. Line and paragraph separators are escaped too,
+     * so the text is also valid JavaScript, and '<' is escaped, so a label containing "&lt;/script&gt;" or "&lt;!--"
+     * can not end a script element of the page embedding the data.
+     *
+     * @param c character of the string.
+     * @return escape sequence or null if the character is written as it is.
+     */
+    static String escape(char c) {
+        switch (c) {
+            case '"':
+                return "\\\"";
+            case '\\':
+                return "\\\\";
+            case '\n':
+                return "\\n";
+            case '\r':
+                return "\\r";
+            case '\t':
+                return "\\t";
+            case '<':
+                return "\\u003c";
+            default:
+                if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                    return String.format("\\u%04x", (int) c);
+                }
+                return null;
+        }
+    }
+
+    /**
+     * Appends number, integral values are written without fraction, NaN and infinity as 0.
+     *
+     * @param sb target of the text.
+     * @param value number to append.
+     */
+    static void number(StringBuilder sb, double value) {
+        sb.append(number(value));
+    }
+
+    /**
+     * @param value number.
+     * @return JSON text of the number, integral values without fraction, NaN and infinity as 0.
+     */
+    static String number(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "0";
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,176 @@
+package eu.gity.jmeter.webgenerator;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming writer of JSON text. Values are written directly to the underlying writer, commas between
+ * values are added automatically and strings are escaped by {@link JsonText#escape(char)}, so the text
+ * can be written as JavaScript literal of a data file. Data of the website is never built as one string.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class JsonWriter {
+    private static final int MAX_DEPTH = 64;
+
+    private final Writer out;
+    private final boolean[] first = new boolean[MAX_DEPTH]; // No value was written yet at the level
+    private int depth;
+    private boolean afterName;
+
+    /**
+     * @param out target of the text, not closed by this writer.
+     */
+    JsonWriter(Writer out) {
+        this.out = out;
+        first[0] = true;
+    }
+
+    /**
+     * Starts JavaScript statement "var name = ", the following value is its initializer.
+     *
+     * @param name name of the variable.
+     * @return this writer.
+     * @throws IOException if the text can not be written.
+     */
+    JsonWriter variable(String name) throws IOException {
+        out.write("var ");
+        out.write(name);
+        out.write(" = ");
+        depth = 0;
+        first[0] = true;
+        return this;
+    }
+
+    /**
+     * Ends JavaScript statement started by {@link #variable(String)}.
+     *
+     * @return this writer.
+     * @throws IOException if the text can not be written.
+     */
+    JsonWriter endVariable() throws IOException {
+        out.write(";\n");
+        return this;
+    }
+
+    JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    /**
+     * Writes name of the next member of an object.
+     *
+     * @param name name of the member.
+     * @return this writer.
+     * @throws IOException if the text can not be written.
+     */
+    JsonWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * @param value string value, null is written as empty string.
+     * @return this writer.
+     * @throws IOException if the text can not be written.
+     */
+    JsonWriter value(String value) throws IOException {
+        separate();
+        string(value);
+        return this;
+    }
+
+    /**
+     * @param value number, integral values are written without fraction, NaN and infinity as 0.
+     * @return this writer.
+     * @throws IOException if the text can not be written.
+     */
+    JsonWriter value(double value) throws IOException {
+        separate();
+        out.write(JsonText.number(value));
+        return this;
+    }
+
+    JsonWriter value(long value) throws IOException {
+        separate();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    JsonWriter value(boolean value) throws IOException {
+        separate();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Writes value given as JSON text produced elsewhere.
+     *
+     * @param json JSON text of one value.
+     * @return this writer.
+     * @throws IOException if the text can not be written.
+     */
+    JsonWriter raw(String json) throws IOException {
+        separate();
+        out.write(json);
+        return this;
+    }
+
+    private JsonWriter open(char bracket) throws IOException {
+        separate();
+        out.write(bracket);
+        if (++depth >= MAX_DEPTH) {
+            throw new IllegalStateException("JSON nesting deeper than " + MAX_DEPTH);
+        }
+        first[depth] = true;
+        return this;
+    }
+
+    private JsonWriter close(char bracket) throws IOException {
+        out.write(bracket);
+        depth--;
+        return this;
+    }
+
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false; // Value of a member follows its name without comma
+        } else if (first[depth]) {
+            first[depth] = false;
+        } else {
+            out.write(',');
+        }
+    }
+
+    private void string(String value) throws IOException {
+        out.write('"');
+        if (value != null) {
+            int start = 0;
+            for (int i = 0; i < value.length(); i++) {
+                String escaped = JsonText.escape(value.charAt(i));
+                if (escaped != null) {
+                    out.write(value, start, i - start);
+                    out.write(escaped);
+                    start = i + 1;
+                }
+            }
+            out.write(value, start, value.length() - start);
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,505 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.util.JMeterUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+/**
+ * Parallel reader of CSV result file (JTL) written with the columns chosen in WebGeneratorCollector.configureSaving.
+ * The file is memory-mapped and split into chunks which start at the beginning of a record. Chunks are parsed
+ * by tasks of a fork-join pool, every task aggregates its chunk into its own statistics and URL trackers,
+ * which are merged in the order of chunks, so labels keep the order of the file.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class JtlImporter {
+    /** Size of a part of the result file parsed by one task. */
+    static final long CHUNK_SIZE = Math.min(Math.max(
+            JMeterUtils.getPropDefault("webgenerator.import.chunk_size", 64L << 20), 1L << 16), 1L << 30);
+    /** Number of parser threads. */
+    static final int THREADS = Math.max(1,
+            JMeterUtils.getPropDefault("webgenerator.import.threads", Runtime.getRuntime().availableProcessors()));
+    private static final boolean START_TIMESTAMP = JMeterUtils.getPropDefault("sampleresult.timestamp.start", false);
+    private static final int WINDOW = 1 << 16; // Part of the file searched for the beginning of a record at once
+
+    /**
+     * Columns of the result file used for statistics.
+     */
+    private enum Column {
+        TIMESTAMP("timeStamp"), ELAPSED("elapsed"), LABEL("label"), RESPONSE_CODE("responseCode"),
+        RESPONSE_MESSAGE("responseMessage"), THREAD_NAME("threadName"), SUCCESS("success"),
+        FAILURE_MESSAGE("failureMessage"), BYTES("bytes"), SENT_BYTES("sentBytes"), GROUP_THREADS("grpThreads"),
+        ALL_THREADS("allThreads"), URL("URL"), LATENCY("Latency"), SAMPLE_COUNT("SampleCount"),
+        ERROR_COUNT("ErrorCount"), CONNECT("Connect");
+
+        private final String header;
+
+        Column(String header) {
+            this.header = header;
+        }
+    }
+
+    // Order of columns written by JMeter with the configuration of WebGeneratorCollector, used if there is no header
+    static final String[] DEFAULT_HEADER = {"timeStamp", "elapsed", "label", "responseCode", "responseMessage",
+            "threadName", "dataType", "success", "failureMessage", "bytes", "sentBytes", "grpThreads", "allThreads",
+            "URL", "Latency", "SampleCount", "ErrorCount", "Hostname", "IdleTime", "Connect"};
+
+    private final File file;
+    private final byte delimiter;
+    private final boolean includeGroupName;
+    private final UnaryOperator<String> labels;
+    private final Consumer<SampleRecord> shared;
+
+    /**
+     * @param file result file in CSV format.
+     * @param includeGroupName true if name of thread group has to be included in labels.
+     * @param labels rewrites labels of records (see {@link LabelNormalizer}), it is called concurrently.
+     * @param shared consumer of every record in addition to the chunk statistics (e.g. time series),
+     *               it is called concurrently from parser threads.
+     */
+    JtlImporter(File file, boolean includeGroupName, UnaryOperator<String> labels, Consumer<SampleRecord> shared) {
+        this.file = file;
+        String delimiterProperty = JMeterUtils.getPropDefault("jmeter.save.saveservice.default_delimiter", ",");
+        this.delimiter = (byte) ("\\t".equals(delimiterProperty) ? '\t' : delimiterProperty.charAt(0));
+        this.includeGroupName = includeGroupName;
+        this.labels = labels;
+        this.shared = shared;
+    }
+
+    /**
+     * Parses the whole file.
+     *
+     * @return statistics and URLs of the file merged from all chunks.
+     * @throws IOException if the file can not be read or timestamps are not written in milliseconds.
+     */
+    Chunk importFile() throws IOException {
+        String timestampFormat = JMeterUtils.getPropDefault("jmeter.save.saveservice.timestamp_format", "ms");
+        if (!"ms".equalsIgnoreCase(timestampFormat.trim())) {
+            throw new IOException("Only timestamps in milliseconds are supported: " + timestampFormat);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer first = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, WINDOW));
+            long dataStart = 0;
+            String[] header = DEFAULT_HEADER;
+            if (first.limit() > 0 && !isDigit(first.get(0))) {
+                int end = 0;
+                while (end < first.limit() && first.get(end) != '\n') {
+                    end++;
+                }
+                byte[] line = new byte[end];
+                first.get(line);
+                header = new String(line, StandardCharsets.UTF_8).trim().split(
+                        Pattern.quote(String.valueOf((char) delimiter)), -1);
+                dataStart = Math.min(end + 1L, size);
+            }
+            Column[] columns = columns(header);
+
+            List<Long> boundaries = new ArrayList<>();
+            boundaries.add(dataStart);
+            for (long position = dataStart + CHUNK_SIZE; position < size; position += CHUNK_SIZE) {
+                long start = recordStart(channel, position, size);
+                if (start > boundaries.get(boundaries.size() - 1) && start < size) {
+                    boundaries.add(start);
+                }
+                position = Math.max(position, start);
+            }
+            boundaries.add(size);
+
+            ForkJoinPool pool = new ForkJoinPool(THREADS);
+            try {
+                return pool.invoke(new ChunkTask(channel, columns, boundaries, 0, boundaries.size() - 1));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static Column[] columns(String[] header) {
+        Column[] columns = new Column[header.length];
+        for (int i = 0; i < header.length; i++) {
+            for (Column column : Column.values()) {
+                if (column.header.equals(header[i].trim())) {
+                    columns[i] = column;
+                }
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Finds beginning of the first record after given position. Record starts after a new line
+     * with digits of the timestamp followed by the delimiter, so new lines in quoted messages are skipped.
+     */
+    private long recordStart(FileChannel channel, long position, long size) throws IOException {
+        long windowStart = position;
+        while (windowStart < size) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                    Math.min(size - windowStart, WINDOW));
+            for (int i = 0; i < window.limit() - 1; i++) {
+                if (window.get(i) == '\n' && isRecordStart(window, i + 1)) {
+                    return windowStart + i + 1;
+                }
+            }
+            if (windowStart + window.limit() >= size) {
+                break;
+            }
+            windowStart += Math.max(window.limit() - 64, 1); // Windows overlap, so a record start is not cut
+        }
+        return size;
+    }
+
+    private boolean isRecordStart(MappedByteBuffer buffer, int position) {
+        int digits = 0;
+        for (int i = position; i < buffer.limit(); i++) {
+            byte b = buffer.get(i);
+            if (isDigit(b)) {
+                digits++;
+            } else {
+                return digits > 0 && b == delimiter;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Statistics of one or more chunks of the file.
+     */
+    static final class Chunk {
+        /** Statistics per label in order of the first appearance. */
+        final Map<String, SampleStats> stats = new LinkedHashMap<>();
+        /** URLs per label in order of the first appearance. */
+        final Map<String, UrlTracker> urls = new LinkedHashMap<>();
+        /** URLs of all labels. */
+        final UrlTracker totalUrls = new UrlTracker();
+        /** Number of records which could not be parsed. */
+        long skipped;
+
+        /**
+         * Adds one record to the statistics of its label.
+         *
+         * @param record copy of the sample.
+         */
+        void add(SampleRecord record) {
+            SampleStats row = stats.get(record.label);
+            if (row == null) {
+                row = new SampleStats(record.label);
+                stats.put(record.label, row);
+                urls.put(record.label, new UrlTracker());
+            }
+            row.addSample(record);
+            urls.get(record.label).add(record.url);
+            totalUrls.add(record.url);
+        }
+
+        /**
+         * Adds statistics of the following chunk to this one.
+         */
+        private Chunk merge(Chunk next) {
+            for (Map.Entry<String, SampleStats> entry : next.stats.entrySet()) {
+                SampleStats row = stats.get(entry.getKey());
+                if (row == null) {
+                    stats.put(entry.getKey(), entry.getValue());
+                    urls.put(entry.getKey(), next.urls.get(entry.getKey()));
+                } else {
+                    row.merge(entry.getValue());
+                    urls.get(entry.getKey()).merge(next.urls.get(entry.getKey()));
+                }
+            }
+            totalUrls.merge(next.totalUrls);
+            skipped += next.skipped;
+            return this;
+        }
+    }
+
+    /**
+     * Parses range of chunks, ranges with more chunks are split in halves.
+     */
+    private final class ChunkTask extends RecursiveTask<Chunk> {
+        private static final long serialVersionUID = 240L;
+
+        private final FileChannel channel;
+        private final Column[] columns;
+        private final List<Long> boundaries;
+        private final int from;
+        private final int to;
+
+        private ChunkTask(FileChannel channel, Column[] columns, List<Long> boundaries, int from, int to) {
+            this.channel = channel;
+            this.columns = columns;
+            this.boundaries = boundaries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Chunk compute() {
+            if (to - from <= 1) {
+                try {
+                    return parse(boundaries.get(from), boundaries.get(to));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int middle = (from + to) >>> 1;
+            ChunkTask left = new ChunkTask(channel, columns, boundaries, from, middle);
+            left.fork();
+            Chunk right = new ChunkTask(channel, columns, boundaries, middle, to).compute();
+            return left.join().merge(right);
+        }
+
+        private Chunk parse(long start, long end) throws IOException {
+            Chunk chunk = new Chunk();
+            if (end <= start) {
+                return chunk;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            LineParser parser = new LineParser(buffer, columns);
+            SampleRecord record = new SampleRecord();
+            while (parser.hasNext()) {
+                if (parser.next(record)) {
+                    chunk.add(record);
+                    shared.accept(record);
+                } else {
+                    chunk.skipped++;
+                }
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * Parser of CSV records of one chunk. Numeric fields are parsed directly from the mapped bytes,
+     * only text fields are decoded to strings.
+     */
+    private final class LineParser {
+        private final MappedByteBuffer buffer;
+        private final Column[] columns;
+        private byte[] field = new byte[256];
+        private int length;
+        private int position;
+
+        // Fields of the current record
+        private long timestamp;
+        private String responseMessage;
+        private String assertionMessage;
+        private boolean valid;
+
+        private LineParser(MappedByteBuffer buffer, Column[] columns) {
+            this.buffer = buffer;
+            this.columns = columns;
+        }
+
+        private boolean hasNext() {
+            return position < buffer.limit();
+        }
+
+        /**
+         * Parses next record.
+         *
+         * @param record target of the values.
+         * @return false if the record is not complete or has invalid numbers (it is skipped).
+         */
+        private boolean next(SampleRecord record) {
+            reset(record);
+            int index = 0;
+            boolean endOfLine = false;
+            while (!endOfLine) {
+                endOfLine = readField();
+                if (index < columns.length && columns[index] != null) {
+                    apply(columns[index], record);
+                }
+                index++;
+            }
+            if (!valid || index < 2 || record.label == null) {
+                return false;
+            }
+            if (record.errorCount < 0) {
+                record.errorCount = record.success ? 0 : record.sampleCount;
+            }
+            if (START_TIMESTAMP) {
+                record.startTime = timestamp;
+                record.endTime = timestamp + record.elapsed;
+            } else {
+                record.endTime = timestamp;
+                record.startTime = timestamp - record.elapsed;
+            }
+            record.failureMessage = record.success ? null
+                    : SampleRecord.errorType(record.responseCode, responseMessage, assertionMessage);
+            if (includeGroupName) {
+                record.label = SampleRecord.groupLabel(record.threadName, record.label);
+            }
+            record.label = labels.apply(record.label);
+            return true;
+        }
+
+        private void reset(SampleRecord record) {
+            record.clear();
+            record.elapsed = 0;
+            record.sampleCount = 1;
+            record.errorCount = -1;
+            record.receivedBytes = 0;
+            record.sentBytes = 0;
+            record.latency = 0;
+            record.connectTime = 0;
+            record.groupThreads = 0;
+            record.allThreads = 0;
+            record.success = true;
+            timestamp = 0;
+            responseMessage = null;
+            assertionMessage = null;
+            valid = true;
+        }
+
+        /**
+         * Reads one field into the field buffer, quotes are removed.
+         *
+         * @return true if the field is the last one of the record.
+         */
+        private boolean readField() {
+            length = 0;
+            int limit = buffer.limit();
+            if (position < limit && buffer.get(position) == '"') {
+                position++;
+                while (position < limit) {
+                    byte b = buffer.get(position++);
+                    if (b == '"') {
+                        if (position < limit && buffer.get(position) == '"') {
+                            put(b);
+                            position++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        put(b);
+                    }
+                }
+            }
+            while (position < limit) {
+                byte b = buffer.get(position++);
+                if (b == delimiter) {
+                    return position >= limit;
+                }
+                if (b == '\n') {
+                    return true;
+                }
+                if (b != '\r') {
+                    put(b);
+                }
+            }
+            return true;
+        }
+
+        private void put(byte b) {
+            if (length == field.length) {
+                field = Arrays.copyOf(field, length * 2);
+            }
+            field[length++] = b;
+        }
+
+        private void apply(Column column, SampleRecord record) {
+            switch (column) {
+                case TIMESTAMP:
+                    timestamp = number();
+                    break;
+                case ELAPSED:
+                    record.elapsed = number();
+                    break;
+                case LABEL:
+                    record.label = text();
+                    break;
+                case RESPONSE_CODE:
+                    record.responseCode = text();
+                    break;
+                case RESPONSE_MESSAGE:
+                    responseMessage = text();
+                    break;
+                case THREAD_NAME:
+                    record.threadName = text();
+                    break;
+                case SUCCESS:
+                    record.success = length == 4 && (field[0] | 0x20) == 't';
+                    break;
+                case FAILURE_MESSAGE:
+                    assertionMessage = length == 0 ? null : text();
+                    break;
+                case BYTES:
+                    record.receivedBytes = number();
+                    break;
+                case SENT_BYTES:
+                    record.sentBytes = number();
+                    break;
+                case GROUP_THREADS:
+                    record.groupThreads = (int) number();
+                    break;
+                case ALL_THREADS:
+                    record.allThreads = (int) number();
+                    break;
+                case URL:
+                    record.url = length == 0 || (length == 4 && field[0] == 'n' && field[3] == 'l') ? null : text();
+                    break;
+                case LATENCY:
+                    record.latency = number();
+                    break;
+                case SAMPLE_COUNT:
+                    record.sampleCount = (int) number();
+                    break;
+                case ERROR_COUNT:
+                    record.errorCount = (int) number();
+                    break;
+                case CONNECT:
+                    record.connectTime = number();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private String text() {
+            return new String(field, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private long number() {
+            if (length == 0) {
+                return 0;
+            }
+            int i = 0;
+            boolean negative = field[0] == '-';
+            if (negative) {
+                i++;
+            }
+            long value = 0;
+            for (; i < length; i++) {
+                byte b = field[i];
+                if (!isDigit(b)) {
+                    valid = false;
+                    return 0;
+                }
+                value = value * 10 + (b - '0');
+            }
+            return negative ? -value : value;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package eu.gity.jmeter.webgenerator;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Hashed index of per-label slots which keeps the order in which labels appeared.
+ * Lookup of an existing label is a single hash map access without locking,
+ * only creation of a new slot is synchronized.
+ *
+ * @param <T> type of the slot.
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class LabelIndex<T> {
+    private final ConcurrentMap<String, T> slots = new ConcurrentHashMap<>();
+    private final List<T> ordered = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param label label of the slot.
+     * @return slot of the label or null if label was not seen.
+     */
+    T get(String label) {
+        return slots.get(label);
+    }
+
+    /**
+     * Returns slot of the label, slot is created by the factory on the first use of the label.
+     *
+     * @param label label of the slot.
+     * @param factory creates new slot for the label.
+     * @return slot of the label.
+     */
+    T getOrCreate(String label, Function<String, T> factory) {
+        T slot = slots.get(label);
+        if (slot == null) {
+            synchronized (ordered) {
+                slot = slots.get(label);
+                if (slot == null) {
+                    slot = factory.apply(label);
+                    ordered.add(slot);
+                    slots.put(label, slot);
+                }
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * @return slots in order in which labels appeared. Iteration is not affected by concurrent insertions.
+     */
+    List<T> values() {
+        return ordered;
+    }
+
+    /**
+     * @return number of labels.
+     */
+    int size() {
+        return slots.size();
+    }
+
+    /**
+     * Removes all slots.
+     */
+    void clear() {
+        synchronized (ordered) {
+            slots.clear();
+            ordered.clear();
+        }
+    }
+}
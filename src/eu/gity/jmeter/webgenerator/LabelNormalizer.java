@@ -0,0 +1,171 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Limits number of distinct labels, so dynamic labels (e.g. URLs with identifiers) do not create
+ * a row of statistics for every sample.
+ *
+ * Labels are rewritten by rules applied in order of their numbers:
+ * <pre>
+ *     webgenerator.labels.rule.1=/orders/\d+ =&gt; /orders/{id}   (regular expression =&gt; replacement)
+ *     webgenerator.labels.template.1=/orders/{id}/items/{item}  (every {name} matches one path segment)
+ * </pre>
+ * After "webgenerator.labels.max" distinct labels (0 is unlimited) samples of further labels are counted
+ * in the overflow row and number of labels folded into it is tracked (estimated for many labels).
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class LabelNormalizer {
+    private static final Logger log = LoggerFactory.getLogger(LabelNormalizer.class);
+
+    private static final int MAX_LABELS = Math.max(0, JMeterUtils.getPropDefault("webgenerator.labels.max", 1000));
+    private static final int MAX_RULES = 100;
+    private static final int CACHE_LIMIT = 10000; // Rewritten labels remembered to skip the rules
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{[^/{}]*\\}");
+    private static final List<Rule> RULES = parseRules();
+
+    private final String overflowLabel;
+    private final ConcurrentMap<String, String> rewritten = new ConcurrentHashMap<>();
+    private final Set<String> accepted = ConcurrentHashMap.newKeySet();
+    private final UrlTracker folded = new UrlTracker(); // Counts distinct labels, exactly or by the sketch
+
+    /**
+     * @param overflowLabel label of the row of folded labels.
+     */
+    LabelNormalizer(String overflowLabel) {
+        this.overflowLabel = overflowLabel;
+    }
+
+    /**
+     * Returns label under which the sample is counted. Called concurrently from sampler threads,
+     * label seen before is resolved by hash map lookups only.
+     *
+     * @param label label of the sample.
+     * @return rewritten label, or the overflow label if there are too many labels.
+     */
+    String normalize(String label) {
+        if (label == null) {
+            return null;
+        }
+        String normalized = rewrite(label);
+        if (MAX_LABELS == 0 || accepted.contains(normalized)) {
+            return normalized;
+        }
+        synchronized (accepted) {
+            if (accepted.contains(normalized) || accepted.size() < MAX_LABELS) {
+                accepted.add(normalized);
+                return normalized;
+            }
+        }
+        folded.add(normalized);
+        return overflowLabel;
+    }
+
+    /**
+     * @return number of labels folded into the overflow row, "~" prefix if estimated.
+     */
+    String getFolded() {
+        return (folded.isEstimated() ? "~" : "") + folded.getUniqueCount();
+    }
+
+    /**
+     * Forgets all labels (e.g. for a new test).
+     */
+    void clear() {
+        synchronized (accepted) {
+            accepted.clear();
+        }
+        rewritten.clear();
+        folded.clear();
+    }
+
+    private String rewrite(String label) {
+        if (RULES.isEmpty()) {
+            return label;
+        }
+        String result = rewritten.get(label);
+        if (result == null) {
+            result = label;
+            for (Rule rule : RULES) {
+                result = rule.apply(result);
+            }
+            if (rewritten.size() < CACHE_LIMIT) {
+                rewritten.put(label, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads rules "webgenerator.labels.rule.N" and "webgenerator.labels.template.N", N = 1, 2, ...
+     * Invalid rules are skipped.
+     */
+    private static List<Rule> parseRules() {
+        List<Rule> rules = new ArrayList<>();
+        for (int i = 1; i <= MAX_RULES; i++) {
+            String rule = JMeterUtils.getPropDefault("webgenerator.labels.rule." + i, "");
+            String template = JMeterUtils.getPropDefault("webgenerator.labels.template." + i, "");
+            try {
+                int arrow = rule.indexOf("=>");
+                if (arrow > 0) {
+                    rules.add(new Rule(Pattern.compile(rule.substring(0, arrow).trim()), rule.substring(arrow + 2).trim()));
+                } else if (!rule.isEmpty()) {
+                    log.warn(JMeterUtils.getResString("web_generator_log_wrong_label_rule") + " " + rule);
+                }
+                if (!template.isEmpty()) {
+                    rules.add(templateRule(template.trim()));
+                }
+            } catch (PatternSyntaxException e) {
+                log.warn(JMeterUtils.getResString("web_generator_log_wrong_label_rule") + " " + e.getMessage());
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Rule of a path template, URL path matching the template is replaced by the template.
+     *
+     * @param template path with placeholders (e.g. /orders/{id}).
+     * @return the rule.
+     */
+    private static Rule templateRule(String template) {
+        StringBuilder regex = new StringBuilder();
+        Matcher placeholder = PLACEHOLDER.matcher(template);
+        int start = 0;
+        while (placeholder.find()) {
+            regex.append(Pattern.quote(template.substring(start, placeholder.start()))).append("[^/?#]+");
+            start = placeholder.end();
+        }
+        regex.append(Pattern.quote(template.substring(start))).append("(?=[/?#]|$)");
+        return new Rule(Pattern.compile(regex.toString()), Matcher.quoteReplacement(template));
+    }
+
+    /**
+     * Regular expression and its replacement.
+     */
+    private static final class Rule {
+        private final Pattern pattern;
+        private final String replacement;
+
+        private Rule(Pattern pattern, String replacement) {
+            this.pattern = pattern;
+            this.replacement = replacement;
+        }
+
+        private String apply(String label) {
+            return pattern.matcher(label).replaceAll(replacement);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package eu.gity.jmeter.webgenerator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import freemarker.template.Configuration;
+import freemarker.template.TemplateException;
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP server of the live report, running during the test if property "webgenerator.live.enabled" is true.
+ * Server is bound to localhost ("webgenerator.live.port") and serves the website template, pages are rendered
+ * from the statistics collected so far. Every "webgenerator.live.interval" seconds one thread takes a snapshot
+ * of the statistics and pushes it to opened pages as Server-Sent Events (/events). Over-time graphs contain
+ * only points since the previous snapshot (the last point is sent again, because its interval was not complete),
+ * other graphs and tables are sent whole. Snapshot only reads the aggregates, sampler threads are never blocked,
+ * and its size is given by number of labels and the point limit of graphs, not by number of samples.
+ * Events are written to pages by threads of a sender pool, so a slow page does not delay the snapshot thread
+ * nor other pages. A page which did not read the previous event until the next snapshot is disconnected,
+ * its browser reconnects and receives the whole snapshot.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class LiveReportServer {
+    private static final Logger log = LoggerFactory.getLogger(LiveReportServer.class);
+
+    /** Live report is started with the test. */
+    static final boolean ENABLED = JMeterUtils.getPropDefault("webgenerator.live.enabled", false);
+    private static final int PORT = JMeterUtils.getPropDefault("webgenerator.live.port", 9270);
+    private static final long INTERVAL = Math.max(1, JMeterUtils.getPropDefault("webgenerator.live.interval", 5));
+    private static final String EVENTS_PATH = "/events";
+    private static final String DATA_PATH = "/" + ReportData.FOLDER + "/";
+    private static final String TEMPLATE_EXTENSION = ".fmkr";
+    // Graphs with time on x axis, these are sent as deltas
+    private static final Set<String> OVER_TIME = new HashSet<>(Arrays.asList("activeThreadsOverTime",
+            "bytesThroughputOverTime", "responseTimesOverTime", "latenciesOverTime", "connectTimeOverTime",
+            "responseTimePercentilesOverTime", "hitsPerSecond", "codesPerSecond", "transactionsPerSecond"));
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=UTF-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=UTF-8");
+        CONTENT_TYPES.put("css", "text/css; charset=UTF-8");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+        CONTENT_TYPES.put("ttf", "font/ttf");
+        CONTENT_TYPES.put("eot", "application/vnd.ms-fontobject");
+    }
+
+    private final WebGeneratorEngine engine;
+    private final Path templateDir;
+    private final List<Client> clients = new CopyOnWriteArrayList<>(); // Opened event streams
+    private final List<Client> newClients = new CopyOnWriteArrayList<>(); // Waiting for the whole snapshot
+    // State of deltas, used only by the snapshot thread
+    private final Map<String, Double> lastX = new HashMap<>();
+    private final Map<String, Long> lastGranularity = new HashMap<>();
+    private HttpServer server;
+    private ExecutorService requestExecutor;
+    private ScheduledExecutorService snapshotExecutor;
+    private ExecutorService senderExecutor; // Writes events, at most one thread per page
+
+    /**
+     * @param engine engine with statistics of the running test.
+     * @param templateDir folder with website template.
+     */
+    LiveReportServer(WebGeneratorEngine engine, File templateDir) {
+        this.engine = engine;
+        this.templateDir = templateDir.toPath().toAbsolutePath().normalize();
+    }
+
+    /**
+     * Starts server and periodic snapshots.
+     *
+     * @throws IOException if the port can not be bound.
+     */
+    synchronized void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), 0);
+        requestExecutor = Executors.newFixedThreadPool(2, daemonThreads("WebGenerator live report"));
+        server.setExecutor(requestExecutor);
+        server.createContext("/", this::handle);
+        server.start();
+        senderExecutor = Executors.newCachedThreadPool(daemonThreads("WebGenerator live sender"));
+        snapshotExecutor = Executors.newSingleThreadScheduledExecutor(daemonThreads("WebGenerator live snapshot"));
+        snapshotExecutor.scheduleWithFixedDelay(() -> push(false), INTERVAL, INTERVAL, TimeUnit.SECONDS);
+        log.info(JMeterUtils.getResString("web_generator_log_live_started") + " http://localhost:" + PORT + "/");
+    }
+
+    /**
+     * Pushes the last snapshot marked as finished to opened pages and stops the server.
+     */
+    synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        snapshotExecutor.shutdown();
+        try {
+            snapshotExecutor.awaitTermination(INTERVAL * 2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        push(true);
+        senderExecutor.shutdown();
+        try {
+            senderExecutor.awaitTermination(INTERVAL, TimeUnit.SECONDS); // Pages read the last snapshot
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Client client : clients) {
+            close(client.out);
+        }
+        clients.clear();
+        server.stop(0); // Closes connections, so senders blocked by pages which do not read are released
+        senderExecutor.shutdownNow();
+        requestExecutor.shutdown();
+        server = null;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Serves one request: event stream, data file, page rendered from the template or static file of the template.
+     *
+     * @param exchange HTTP request and response.
+     * @throws IOException if the response can not be written.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (EVENTS_PATH.equals(path)) {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            newClients.add(new Client(exchange.getResponseBody())); // Exchange stays open, events are written by senders
+            return;
+        }
+        try {
+            if (path.endsWith("/")) {
+                path += "index.html";
+            }
+            Path file = templateDir.resolve(path.substring(1)).normalize();
+            Path template = file.resolveSibling(file.getFileName() + TEMPLATE_EXTENSION);
+            byte[] data = path.startsWith(DATA_PATH) && path.endsWith(".js")
+                    ? data(path.substring(DATA_PATH.length(), path.length() - ".js".length())) : null;
+            if (data != null) {
+                respond(exchange, file, data);
+            } else if (!file.startsWith(templateDir) || file.toString().endsWith(TEMPLATE_EXTENSION)) {
+                exchange.sendResponseHeaders(404, -1);
+            } else if (Files.isRegularFile(template)) {
+                respond(exchange, file, render(template));
+            } else if (Files.isRegularFile(file)) {
+                respond(exchange, file, Files.readAllBytes(file));
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+        } catch (TemplateException | RuntimeException e) {
+            log.warn(JMeterUtils.getResString("web_generator_log_problem_generating_website") + " " + path + " " + e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void respond(HttpExchange exchange, Path file, byte[] body) throws IOException {
+        String name = file.getFileName().toString();
+        String type = CONTENT_TYPES.get(name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT));
+        exchange.getResponseHeaders().set("Content-Type", type == null ? "application/octet-stream" : type);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * Renders template with the current statistics.
+     *
+     * @param template template file.
+     * @return rendered page.
+     * @throws IOException if template can not be read.
+     * @throws TemplateException if template can not be processed.
+     */
+    private byte[] render(Path template) throws IOException, TemplateException {
+        Configuration configuration = WebsiteRenderer.configuration(templateDir.toFile());
+        String name = templateDir.relativize(template).toString().replace(File.separatorChar, '/');
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            configuration.getTemplate(name).process(engine.createDataModel(), writer);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes data file of the website from the current statistics.
+     *
+     * @param name name of the file without extension.
+     * @return content of the file or null if there is no such file.
+     * @throws IOException if the file can not be written.
+     */
+    private byte[] data(String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            if (!engine.reportData().write(name, writer)) {
+                return null;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Takes snapshot of statistics and sends it to opened pages. Pages opened since the previous snapshot
+     * receive all points, the other pages only the delta.
+     *
+     * @param finished true if the test ended and pages should stop listening.
+     */
+    private void push(boolean finished) {
+        try {
+            if (clients.isEmpty() && newClients.isEmpty()) {
+                return;
+            }
+            Map<String, Graph> graphs = engine.liveGraphs();
+            String tables = engine.tablesJson();
+            StringBuilder delta = new StringBuilder(16 * 1024);
+            StringBuilder whole = newClients.isEmpty() ? null : new StringBuilder(64 * 1024);
+            start(delta, finished, tables);
+            if (whole != null) {
+                start(whole, finished, tables);
+            }
+            boolean first = true;
+            for (Map.Entry<String, Graph> entry : graphs.entrySet()) {
+                String name = entry.getKey();
+                Graph graph = entry.getValue();
+                delta.append(first ? "" : ",");
+                JsonText.quote(delta, name);
+                if (OVER_TIME.contains(name)) {
+                    appendDelta(delta, name, graph);
+                } else {
+                    delta.append(":{\"replace\":true,\"data\":")
+                            .append(graph.downsample(TimeSeriesAggregator.POINTS).toJson()).append('}');
+                }
+                if (whole != null) {
+                    whole.append(first ? "" : ",");
+                    JsonText.quote(whole, name);
+                    whole.append(":{\"replace\":true,\"data\":")
+                            .append(graph.downsample(TimeSeriesAggregator.POINTS).toJson()).append('}');
+                }
+                first = false;
+            }
+            List<Client> previous = new ArrayList<>(clients);
+            send(previous, delta.append("}}\n\n").toString());
+            if (whole != null) {
+                List<Client> added = new ArrayList<>(newClients);
+                newClients.removeAll(added);
+                clients.addAll(added);
+                send(added, whole.append("}}\n\n").toString());
+            }
+        } catch (RuntimeException e) {
+            log.warn(JMeterUtils.getResString("web_generator_log_live_failed") + " " + e);
+        }
+    }
+
+    private static void start(StringBuilder sb, boolean finished, String tables) {
+        sb.append("data: {\"finished\":").append(finished).append(",\"tables\":").append(tables).append(",\"graphs\":{");
+    }
+
+    /**
+     * Appends points of over-time graph which were not sent yet. The whole graph is sent if its granularity
+     * changed since the previous snapshot.
+     *
+     * @param sb target of the event.
+     * @param name name of the graph.
+     * @param graph graph at the current granularity.
+     */
+    private void appendDelta(StringBuilder sb, String name, Graph graph) {
+        Long previousGranularity = lastGranularity.put(name, graph.getGranularity());
+        boolean replace = previousGranularity == null || previousGranularity != graph.getGranularity();
+        double from = replace ? Double.NEGATIVE_INFINITY : lastX.getOrDefault(name, Double.NEGATIVE_INFINITY);
+        double last = from;
+        Graph changed = new Graph(graph.getTitle(), graph.getGranularity());
+        for (Graph.Series series : graph.getSeries()) {
+            Graph.Series changedSeries = null;
+            for (double[] point : series.getPoints()) {
+                if (point[0] >= from) {
+                    if (changedSeries == null) {
+                        changedSeries = changed.addSeries(series.getLabel());
+                    }
+                    changedSeries.add(point[0], point[1]);
+                    last = Math.max(last, point[0]);
+                }
+            }
+        }
+        lastX.put(name, last);
+        sb.append(":{\"replace\":").append(replace).append(",\"data\":").append(changed.toJson()).append('}');
+    }
+
+    /**
+     * Passes the event to the sender pool for every page. Page which is still writing the previous event
+     * is disconnected, its sender closes it when the write ends.
+     *
+     * @param targets pages which receive the event.
+     * @param event text of the event.
+     */
+    private void send(List<Client> targets, String event) {
+        byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+        for (Client client : targets) {
+            if (client.state.compareAndSet(Client.IDLE, Client.SENDING)) {
+                try {
+                    senderExecutor.execute(() -> write(client, bytes));
+                } catch (RejectedExecutionException e) { // Server is stopping
+                    drop(client);
+                    close(client.out);
+                }
+            } else if (client.state.compareAndSet(Client.SENDING, Client.DROPPED)) {
+                drop(client);
+                log.info(JMeterUtils.getResString("web_generator_log_live_slow"));
+            }
+        }
+    }
+
+    /**
+     * Writes one event to the page. Runs on a thread of the sender pool.
+     */
+    private void write(Client client, byte[] event) {
+        try {
+            client.out.write(event);
+            client.out.flush();
+            if (client.state.compareAndSet(Client.SENDING, Client.IDLE)) {
+                return;
+            }
+        } catch (IOException e) { // Page was closed
+            client.state.set(Client.DROPPED);
+            drop(client);
+        }
+        close(client.out);
+    }
+
+    private void drop(Client client) {
+        clients.remove(client);
+        newClients.remove(client);
+    }
+
+    /**
+     * Opened event stream of one page.
+     */
+    private static final class Client {
+        private static final int IDLE = 0;
+        private static final int SENDING = 1;
+        private static final int DROPPED = 2; // Closed by the sender which writes to it, or already closed
+
+        private final OutputStream out;
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+
+        private Client(OutputStream out) {
+            this.out = out;
+        }
+    }
+
+    private static void close(OutputStream client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // Page was already closed
+        }
+    }
+}
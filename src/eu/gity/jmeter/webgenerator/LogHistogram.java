@@ -0,0 +1,259 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.util.JMeterUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of elapsed times with logarithmic buckets (same layout as HdrHistogram).
+ * Memory of the histogram depends only on precision and on the highest trackable value,
+ * not on the number of recorded samples. Values are recorded without locking and two histograms
+ * with the same configuration can be merged, so percentiles of TOTAL are computed from label histograms.
+ *
+ * Precision is given as number of significant decimal digits kept for every value. Values higher than
+ * the highest trackable value are recorded as the highest trackable value.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class LogHistogram {
+    /** Number of significant decimal digits (1 - 5). */
+    static final int DIGITS = JMeterUtils.getPropDefault("webgenerator.histogram.digits", 2);
+    /** Highest trackable value in milliseconds (default one hour). */
+    static final long MAX_VALUE = JMeterUtils.getPropDefault("webgenerator.histogram.max_value", 3600000L);
+
+    private final int digits;
+    private final long highestTrackableValue;
+    private final int subBucketHalfCountMagnitude;
+    private final int subBucketHalfCount;
+    private final long subBucketMask;
+    private final AtomicLongArray counts;
+
+    /**
+     * Creates histogram with precision and range given by JMeter properties.
+     */
+    LogHistogram() {
+        this(MAX_VALUE, DIGITS);
+    }
+
+    /**
+     * @param highestTrackableValue highest value which is recorded exactly, must be at least 2.
+     * @param digits number of significant decimal digits (1 - 5).
+     */
+    LogHistogram(long highestTrackableValue, int digits) {
+        if (digits < 1 || digits > 5) {
+            throw new IllegalArgumentException("Number of significant digits must be between 1 and 5: " + digits);
+        }
+        if (highestTrackableValue < 2) {
+            throw new IllegalArgumentException("Highest trackable value must be at least 2: " + highestTrackableValue);
+        }
+        this.digits = digits;
+        this.highestTrackableValue = highestTrackableValue;
+
+        long largestSingleUnitValue = 2 * (long) Math.pow(10, digits);
+        int subBucketCountMagnitude = (int) Math.ceil(Math.log(largestSingleUnitValue) / Math.log(2));
+        subBucketHalfCountMagnitude = Math.max(subBucketCountMagnitude, 1) - 1;
+        int subBucketCount = 1 << (subBucketHalfCountMagnitude + 1);
+        subBucketHalfCount = subBucketCount / 2;
+        subBucketMask = subBucketCount - 1;
+
+        // Number of buckets needed to cover the highest trackable value
+        long smallestUntrackableValue = subBucketCount;
+        int bucketsNeeded = 1;
+        while (smallestUntrackableValue <= highestTrackableValue) {
+            if (smallestUntrackableValue > (Long.MAX_VALUE / 2)) {
+                bucketsNeeded++;
+                break;
+            }
+            smallestUntrackableValue <<= 1;
+            bucketsNeeded++;
+        }
+        counts = new AtomicLongArray((bucketsNeeded + 1) * subBucketHalfCount);
+    }
+
+    /**
+     * Records value once.
+     *
+     * @param value recorded value, negative values are recorded as 0.
+     */
+    void record(long value) {
+        record(value, 1);
+    }
+
+    /**
+     * Records value multiple times.
+     *
+     * @param value recorded value, negative values are recorded as 0.
+     * @param count number of occurrences.
+     */
+    void record(long value, long count) {
+        counts.addAndGet(indexOf(value), count);
+    }
+
+    /**
+     * Adds all counts of other histogram to this one.
+     *
+     * @param other histogram with the same precision and range.
+     */
+    void merge(LogHistogram other) {
+        if (other.counts.length() != counts.length() || other.digits != digits) {
+            throw new IllegalArgumentException("Histograms with different configuration can not be merged");
+        }
+        for (int i = 0; i < counts.length(); i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+    }
+
+    /**
+     * @return independent copy of this histogram.
+     */
+    LogHistogram copy() {
+        LogHistogram copy = new LogHistogram(highestTrackableValue, digits);
+        copy.merge(this);
+        return copy;
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+    void clear() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * @return rough estimate of heap held by the histogram (bytes).
+     */
+    long estimatedBytes() {
+        return 64 + 8L * counts.length();
+    }
+
+    /**
+     * @return number of recorded values.
+     */
+    long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns value at given percentile. Result is the highest value equivalent to the bucket
+     * which contains the percentile, so the error is bounded by the precision of the histogram.
+     *
+     * @param percent requested percentile (0.0 - 1.0).
+     * @return value at percentile or 0 if histogram is empty.
+     */
+    long getPercentPoint(double percent) {
+        long total = getTotalCount();
+        if (total == 0) {
+            return 0;
+        }
+        double p = Math.min(Math.max(percent, 0.0), 1.0);
+        long countAtPercentile = Math.max(1, (long) Math.ceil(p * total));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= countAtPercentile) {
+                return Math.min(highestEquivalentValue(valueFromIndex(i)), highestTrackableValue);
+            }
+        }
+        return highestTrackableValue;
+    }
+
+    /**
+     * Writes configuration and non-zero counters of the histogram.
+     *
+     * @param out target of the data.
+     * @throws IOException if the data can not be written.
+     */
+    void write(DataOutput out) throws IOException {
+        int nonZero = 0;
+        long[] values = new long[counts.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = counts.get(i);
+            if (values[i] != 0) {
+                nonZero++;
+            }
+        }
+        out.writeLong(highestTrackableValue);
+        out.writeByte(digits);
+        out.writeInt(nonZero);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != 0) {
+                out.writeInt(i);
+                out.writeLong(values[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads histogram written by {@link #write(DataOutput)}.
+     *
+     * @param in source of the data.
+     * @return histogram with the written configuration.
+     * @throws IOException if the data can not be read or is not valid.
+     */
+    static LogHistogram read(DataInput in) throws IOException {
+        LogHistogram histogram;
+        try {
+            histogram = new LogHistogram(in.readLong(), in.readByte());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+        int nonZero = in.readInt();
+        for (int i = 0; i < nonZero; i++) {
+            int index = in.readInt();
+            long count = in.readLong();
+            if (index < 0 || index >= histogram.counts.length()) {
+                throw new IOException("Counter " + index + " out of histogram");
+            }
+            histogram.counts.addAndGet(index, count);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return number of counters held by this histogram (memory footprint is 8 bytes per counter).
+     */
+    int getBucketCount() {
+        return counts.length();
+    }
+
+    private int indexOf(long value) {
+        long v = Math.min(Math.max(value, 0), highestTrackableValue);
+        int bucketIndex = bucketIndexOf(v);
+        int subBucketIndex = (int) (v >>> bucketIndex);
+        int bucketBaseIndex = (bucketIndex + 1) << subBucketHalfCountMagnitude;
+        return bucketBaseIndex + (subBucketIndex - subBucketHalfCount);
+    }
+
+    private int bucketIndexOf(long value) {
+        int pow2Ceiling = 64 - Long.numberOfLeadingZeros(value | subBucketMask);
+        return pow2Ceiling - (subBucketHalfCountMagnitude + 1);
+    }
+
+    private long valueFromIndex(int index) {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return ((long) subBucketIndex) << bucketIndex;
+    }
+
+    private long highestEquivalentValue(long value) {
+        int bucketIndex = bucketIndexOf(value);
+        long lowestEquivalentValue = (value >>> bucketIndex) << bucketIndex;
+        return lowestEquivalentValue + (1L << bucketIndex) - 1;
+    }
+}
@@ -0,0 +1,330 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.util.JMeterUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Snapshot of statistics, tables and graphs of the website, taken while the engine is locked and written
+ * after it is released. Data is split into script files in "content/js/data", every page loads only files
+ * it displays and charts of the other tabs of the summary page are loaded when the tab is opened.
+ * Files are streamed by {@link JsonWriter}, with "webgenerator.data.gzip" a gzipped copy is written
+ * at the same time for web servers serving pre-compressed files.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class ReportData {
+    /** Folder of data files in the website. */
+    static final String FOLDER = "content/js/data";
+    private static final boolean GZIP = JMeterUtils.getPropDefault("webgenerator.data.gzip", false);
+    private static final String SUMMARY = "summary";
+    private static final String PERCENTILES = "percentiles";
+    private static final String ERRORS = "errors";
+    private static final String SLA = "sla";
+    private static final String OVERHEAD = "overhead"; // Written last, so it includes writing of other files
+    // Graphs of data files, over-time graphs are drawn together on the summary page
+    private static final Map<String, List<String>> GRAPH_FILES = new LinkedHashMap<>();
+
+    static {
+        GRAPH_FILES.put("overtime", Arrays.asList("responseTimePercentilesOverTime", "responseTimeVsRequest",
+                "responseTimesOverTime", "latenciesOverTime", "bytesThroughputOverTime", "transactionsPerSecond",
+                "codesPerSecond", "hitsPerSecond", "activeThreadsOverTime", "connectTimeOverTime"));
+        for (String graph : Arrays.asList("responseTimePercentiles", "timeVsThreads", "latencyVsRequest",
+                "responseTimeDistribution")) {
+            GRAPH_FILES.put(graph, Collections.singletonList(graph));
+        }
+    }
+
+    private final long samples;
+    private final long errors;
+    private final Map<String, Long> errorTypes;
+    private final List<Row> rows;
+    private final double[] percentileLevels;
+    private final Map<String, Graph> graphs;
+    private final String foldedLabels;
+    private final GeneratorMetrics metrics;
+    private final GeneratorMetrics.Footprint footprint;
+    private final SlaMonitor sla;
+
+    /**
+     * @param samples number of all samples.
+     * @param errors number of failed samples.
+     * @param errorTypes number of errors by type.
+     * @param rows rows of the statistics table, TOTAL is the last one.
+     * @param percentileLevels percentiles of the percentile table.
+     * @param graphs graphs by names of variables.
+     * @param foldedLabels number of labels counted in the overflow row, "~" prefix if estimated.
+     * @param metrics overhead of the engine.
+     * @param footprint size of statistics at the time of the snapshot.
+     * @param sla results of SLA rules.
+     */
+    ReportData(long samples, long errors, Map<String, Long> errorTypes, List<Row> rows,
+               double[] percentileLevels, Map<String, Graph> graphs, String foldedLabels,
+               GeneratorMetrics metrics, GeneratorMetrics.Footprint footprint, SlaMonitor sla) {
+        this.samples = samples;
+        this.errors = errors;
+        this.errorTypes = errorTypes;
+        this.rows = rows;
+        this.percentileLevels = percentileLevels;
+        this.graphs = graphs;
+        this.foldedLabels = foldedLabels;
+        this.metrics = metrics;
+        this.footprint = footprint;
+        this.sla = sla;
+    }
+
+    /**
+     * Writes all data files of the website.
+     *
+     * @param website folder of the website.
+     * @throws IOException if a file can not be written.
+     */
+    void writeTo(File website) throws IOException {
+        File folder = new File(website, FOLDER.replace('/', File.separatorChar));
+        Files.createDirectories(folder.toPath());
+        for (String name : files()) {
+            File file = new File(folder, name + ".js");
+            try (OutputStream plain = new FileOutputStream(file);
+                 OutputStream gzip = GZIP ? new GZIPOutputStream(new FileOutputStream(file.getPath() + ".gz")) : null;
+                 Writer out = new BufferedWriter(new OutputStreamWriter(
+                         gzip == null ? plain : new Tee(plain, gzip), StandardCharsets.UTF_8))) {
+                write(name, out);
+            }
+        }
+    }
+
+    /**
+     * Writes one data file.
+     *
+     * @param name name of the file without extension.
+     * @param out target of the script.
+     * @return false if there is no such file.
+     * @throws IOException if the file can not be written.
+     */
+    boolean write(String name, Writer out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        switch (name) {
+            case SUMMARY:
+                json.variable("summaryData");
+                writeSummary(json);
+                json.endVariable();
+                json.variable("threadGroupsCount").value(rows.size() - 1).endVariable();
+                json.variable("foldedLabels").value(foldedLabels).endVariable();
+                json.variable("dataResult");
+                writeDataResult(json);
+                json.endVariable();
+                return true;
+            case PERCENTILES:
+                json.variable("percentileLevels").beginArray();
+                for (double level : percentileLevels) {
+                    json.value(level);
+                }
+                json.endArray().endVariable();
+                json.variable("percentile");
+                writePercentile(json);
+                json.endVariable();
+                return true;
+            case ERRORS:
+                json.variable("errorsSummary");
+                writeErrors(json);
+                json.endVariable();
+                return true;
+            case SLA:
+                json.variable("slaResults");
+                sla.write(json);
+                json.endVariable();
+                return true;
+            case OVERHEAD:
+                json.variable("generatorOverhead");
+                metrics.write(json, footprint);
+                json.endVariable();
+                return true;
+            default:
+                List<String> names = GRAPH_FILES.get(name);
+                if (names == null) {
+                    return false;
+                }
+                for (String graph : names) {
+                    json.variable(graph);
+                    Graph data = graphs.get(graph);
+                    if (data == null) {
+                        json.beginObject().endObject();
+                    } else {
+                        data.write(json);
+                    }
+                    json.endVariable();
+                }
+                return true;
+        }
+    }
+
+    /**
+     * Writes tables of the live report ("summary", "dataResult" and "percentile" members of an object).
+     *
+     * @param json target of the text.
+     * @throws IOException if the text can not be written.
+     */
+    void writeTables(JsonWriter json) throws IOException {
+        json.name("summary");
+        writeSummary(json);
+        json.name("dataResult");
+        writeDataResult(json);
+        json.name("percentile");
+        writePercentile(json);
+    }
+
+    /**
+     * @return names of data files without extension.
+     */
+    static List<String> files() {
+        List<String> files = new ArrayList<>(Arrays.asList(SUMMARY, PERCENTILES, ERRORS));
+        files.addAll(GRAPH_FILES.keySet());
+        files.add(SLA);
+        files.add(OVERHEAD);
+        return files;
+    }
+
+    /**
+     * Summary of successful and failed requests for the pie graph ({"OkPercent", "KoPercent"}).
+     */
+    private void writeSummary(JsonWriter json) throws IOException {
+        double koPercent = samples == 0 ? 0 : errors * 100.0 / samples;
+        json.beginObject();
+        json.name("OkPercent").value(samples == 0 ? 0 : 100 - koPercent);
+        json.name("KoPercent").value(koPercent);
+        json.endObject();
+    }
+
+    /**
+     * Rows of the statistics table (labels and TOTAL).
+     */
+    private void writeDataResult(JsonWriter json) throws IOException {
+        json.beginArray();
+        for (Row row : rows) {
+            json.beginArray().value(row.name).value(row.users).value(row.samples);
+            for (double value : row.values) {
+                json.value(value);
+            }
+            json.value(row.urlCount).beginArray();
+            for (String url : row.urls) {
+                json.value(url);
+            }
+            json.endArray().endArray();
+        }
+        json.endArray();
+    }
+
+    /**
+     * Configured percentiles of labels and TOTAL.
+     */
+    private void writePercentile(JsonWriter json) throws IOException {
+        json.beginArray();
+        for (Row row : rows) {
+            json.beginArray().value(row.name);
+            for (double value : row.percentiles) {
+                json.value(value);
+            }
+            json.endArray();
+        }
+        json.endArray();
+    }
+
+    /**
+     * Table of errors by type for the error page.
+     */
+    private void writeErrors(JsonWriter json) throws IOException {
+        json.beginObject().name("titles").beginArray()
+                .value("Type of error").value("Number of errors").value("% in errors").value("% in all samples")
+                .endArray();
+        json.name("items").beginArray();
+        for (Map.Entry<String, Long> error : errorTypes.entrySet()) {
+            json.beginObject().name("data").beginArray()
+                    .value(error.getKey())
+                    .value((long) error.getValue())
+                    .value(errors == 0 ? 0 : error.getValue() * 100.0 / errors)
+                    .value(samples == 0 ? 0 : error.getValue() * 100.0 / samples)
+                    .endArray();
+            json.name("isController").value(false).endObject();
+        }
+        json.endArray().endObject();
+    }
+
+    /**
+     * Copy of one row of the statistics table.
+     */
+    static final class Row {
+        private final String name;
+        private final long users;
+        private final long samples;
+        private final double[] values;
+        private final String urlCount;
+        private final List<String> urls;
+        private final double[] percentiles;
+
+        /**
+         * @param name label of the row.
+         * @param users number of threads.
+         * @param samples number of samples.
+         * @param values statistics in order of columns of the table (mean to response time).
+         * @param urlCount number of unique URLs, "~" prefix if estimated.
+         * @param urls tested URLs.
+         * @param percentiles values of configured percentiles.
+         */
+        Row(String name, long users, long samples, double[] values, String urlCount, List<String> urls,
+            double[] percentiles) {
+            this.name = name;
+            this.users = users;
+            this.samples = samples;
+            this.values = values;
+            this.urlCount = urlCount;
+            this.urls = urls;
+            this.percentiles = percentiles;
+        }
+    }
+
+    /**
+     * Writes the same bytes to the data file and to its gzipped copy.
+     */
+    private static final class Tee extends OutputStream {
+        private final OutputStream first;
+        private final OutputStream second;
+
+        private Tee(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+            second.flush();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.util.JMeterUtils;
+
+/**
+ * Phases of website generation reported to the progress listener of the engine.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+enum ReportPhase {
+    /** Result file is imported, because statistics were not collected for it. */
+    IMPORT("web_generator_phase_import"),
+    /** Snapshot of statistics, graphs and tables is taken. */
+    AGGREGATE("web_generator_phase_aggregate"),
+    /** Static files of the template are copied. */
+    COPY_ASSETS("web_generator_phase_copy_assets"),
+    /** Templates of pages are rendered. */
+    RENDER("web_generator_phase_render"),
+    /** Tables and graphs are written to data files. */
+    WRITE_DATA("web_generator_phase_write_data"),
+    /** Website is generated. */
+    FINISHED("web_generator_phase_finished"),
+    /** Generation was cancelled, partial website is removed. */
+    CANCELLED("web_generator_phase_cancelled"),
+    /** Generation failed. */
+    FAILED("web_generator_phase_failed");
+
+    private final String resourceKey;
+
+    ReportPhase(String resourceKey) {
+        this.resourceKey = resourceKey;
+    }
+
+    /**
+     * @return true if generation does not continue after this phase.
+     */
+    boolean isFinal() {
+        return this == FINISHED || this == CANCELLED || this == FAILED;
+    }
+
+    /**
+     * @return localized name of the phase.
+     */
+    @Override
+    public String toString() {
+        return JMeterUtils.getResString(resourceKey);
+    }
+}
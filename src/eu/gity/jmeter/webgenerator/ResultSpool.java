@@ -0,0 +1,651 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.util.JMeterUtils;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary columnar file of results, optional replacement of the CSV result file.
+ *
+ * File starts with the magic bytes "WGSPOOL1" followed by blocks. Every block holds up to
+ * "webgenerator.spool.block_size" samples and is compressed by Deflater:
+ * <pre>
+ * int compressed length, int uncompressed length, compressed bytes of:
+ *     int number of samples,
+ *     int number of new dictionary entries, entries (byte column, int id, int length, UTF-8 bytes),
+ *     columns of fixed width primitives (start time, elapsed, latency, connect time, received bytes, sent bytes,
+ *     sample count, error count, group threads, all threads, success) and of dictionary ids
+ *     (label, URL, response code, thread name, response message, assertion failure message; -1 is null).
+ * </pre>
+ * Dictionaries are shared by all blocks, a block contains only entries which were added while it was filled.
+ * When a dictionary reaches its limit, it is cleared after the block is filled, ids of the next block start
+ * from zero again and entries are redefined. Ids of one block always refer to the same entries.
+ *
+ * Spool is read through memory mapping and can be converted back to CSV in the format written by
+ * WebGeneratorCollector (java eu.gity.jmeter.webgenerator.ResultSpool results.wgs results.csv).
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class ResultSpool {
+    /** Spool is written instead of the CSV result file. */
+    static final boolean ENABLED = JMeterUtils.getPropDefault("webgenerator.spool.enabled", false);
+    /** Extension of spool files. */
+    static final String EXTENSION = ".wgs";
+    private static final int BLOCK_SIZE = Math.max(16, JMeterUtils.getPropDefault("webgenerator.spool.block_size", 8192));
+    private static final int DICTIONARY_LIMIT = Math.max(16,
+            JMeterUtils.getPropDefault("webgenerator.spool.dictionary_limit", 65536));
+    private static final boolean START_TIMESTAMP = JMeterUtils.getPropDefault("sampleresult.timestamp.start", false);
+    private static final byte[] MAGIC = "WGSPOOL1".getBytes(StandardCharsets.US_ASCII);
+
+    // Dictionary encoded columns
+    private static final int LABEL = 0;
+    private static final int URL = 1;
+    private static final int CODE = 2;
+    private static final int THREAD = 3;
+    private static final int MESSAGE = 4;
+    private static final int DICTIONARIES = 5;
+
+    private ResultSpool() {
+    }
+
+    /**
+     * @param resultFile path to the result file.
+     * @return spool file belonging to the result file (extension is replaced by ".wgs").
+     */
+    static File spoolFile(String resultFile) {
+        if (isSpool(resultFile)) {
+            return new File(resultFile);
+        }
+        File file = new File(resultFile);
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(file.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + EXTENSION);
+    }
+
+    /**
+     * @param resultFile path to the result file.
+     * @return true if the path has extension of spool files.
+     */
+    static boolean isSpool(String resultFile) {
+        return resultFile.toLowerCase(Locale.ROOT).endsWith(EXTENSION);
+    }
+
+    /**
+     * Converts spool to CSV file with header, columns are the same as in CSV files written by WebGeneratorCollector.
+     *
+     * @param spool spool file.
+     * @param csv target CSV file.
+     * @throws IOException if spool can not be read or CSV can not be written.
+     */
+    static void toCsv(File spool, File csv) throws IOException {
+        try (java.io.Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8))) {
+            String[] header = JtlImporter.DEFAULT_HEADER;
+            for (int i = 0; i < header.length; i++) {
+                out.write(i == 0 ? header[i] : "," + header[i]);
+            }
+            out.write('\n');
+            StringBuilder line = new StringBuilder(256);
+            new Reader(spool).readBlocks(block -> {
+                for (int i = 0; i < block.count; i++) {
+                    line.setLength(0);
+                    long endTime = block.startTime[i] + block.elapsed[i];
+                    line.append(START_TIMESTAMP ? block.startTime[i] : endTime).append(',');
+                    line.append(block.elapsed[i]).append(',');
+                    csvText(line, block.text(LABEL, i)).append(',');
+                    csvText(line, block.text(CODE, i)).append(',');
+                    csvText(line, block.text(MESSAGE, i)).append(',');
+                    csvText(line, block.text(THREAD, i)).append(",text,");
+                    line.append(block.success[i] != 0).append(',');
+                    csvText(line, block.assertion(i)).append(',');
+                    line.append(block.receivedBytes[i]).append(',');
+                    line.append(block.sentBytes[i]).append(',');
+                    line.append(block.groupThreads[i]).append(',');
+                    line.append(block.allThreads[i]).append(',');
+                    String url = block.text(URL, i);
+                    csvText(line, url == null ? "null" : url).append(',');
+                    line.append(block.latency[i]).append(',');
+                    line.append(block.sampleCount[i]).append(',');
+                    line.append(block.errorCount[i]).append(",,0,");
+                    line.append(block.connectTime[i]).append('\n');
+                    try {
+                        out.write(line.toString());
+                    } catch (IOException e) {
+                        throw new java.io.UncheckedIOException(e);
+                    }
+                }
+            });
+        } catch (java.io.UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Converts spool file to CSV file.
+     *
+     * @param args path to spool file and path to target CSV file.
+     * @throws IOException if conversion fails.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ResultSpool <spool file> <csv file>"); // NOSONAR
+            return;
+        }
+        toCsv(new File(args[0]), new File(args[1]));
+    }
+
+    private static StringBuilder csvText(StringBuilder sb, String value) {
+        if (value == null) {
+            return sb;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            return sb.append(value);
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        return sb.append('"');
+    }
+
+    /**
+     * Writer of spool file. Samples are copied into the filled block from sampler threads, a full block is
+     * swapped for an empty one and compressed and written by the thread of the writer, so sampler threads
+     * hold the lock only while the sample is copied. If the thread of the writer falls behind by
+     * {@link #BLOCKS} blocks, sampler threads wait for it, samples are not lost.
+     */
+    static final class Writer implements Closeable {
+        private static final int BLOCKS = 4; // Blocks filled or waiting for compression
+        private static final Block END = new Block(0); // Marks the end of the file in the queue of full blocks
+
+        private final OutputStream out;
+        private final List<Map<String, Integer>> dictionaries = new ArrayList<>();
+        private final BlockingQueue<Block> free = new ArrayBlockingQueue<>(BLOCKS);
+        private final BlockingQueue<Block> full = new ArrayBlockingQueue<>(BLOCKS + 1);
+        private final Thread thread;
+        private Block block; // Block filled by sampler threads, guarded by this
+        private boolean closed; // Guarded by this
+        private volatile IOException failure; // Failure of the thread of the writer
+
+        /**
+         * @param file target spool file, it is overwritten.
+         * @throws IOException if the file can not be created.
+         */
+        Writer(File file) throws IOException {
+            out = new FileOutputStream(file);
+            try {
+                out.write(MAGIC);
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+            for (int i = 0; i < DICTIONARIES; i++) {
+                dictionaries.add(new HashMap<>());
+            }
+            block = new Block(BLOCK_SIZE);
+            for (int i = 1; i < BLOCKS; i++) {
+                free.add(new Block(BLOCK_SIZE));
+            }
+            thread = new Thread(this::writeBlocks, "WebGenerator spool");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Appends one sample.
+         *
+         * @param sample result passed from JMeter.
+         * @throws IOException if a previous block could not be written or the writer is closed.
+         */
+        synchronized void write(SampleResult sample) throws IOException {
+            checkFailure();
+            if (closed) {
+                throw new IOException("Result spool is closed");
+            }
+            int i = block.count;
+            block.startTime[i] = sample.getStartTime();
+            block.elapsed[i] = (int) sample.getTime();
+            block.latency[i] = (int) sample.getLatency();
+            block.connectTime[i] = (int) sample.getConnectTime();
+            block.receivedBytes[i] = sample.getBytesAsLong();
+            block.sentBytes[i] = sample.getSentBytes();
+            block.sampleCount[i] = sample.getSampleCount();
+            block.errorCount[i] = sample.getErrorCount();
+            block.groupThreads[i] = sample.getGroupThreads();
+            block.allThreads[i] = sample.getAllThreads();
+            block.success[i] = (byte) (sample.isSuccessful() ? 1 : 0);
+            block.ids[LABEL][i] = id(LABEL, sample.getSampleLabel());
+            block.ids[URL][i] = id(URL, sample.getUrlAsString());
+            block.ids[CODE][i] = id(CODE, sample.getResponseCode());
+            block.ids[THREAD][i] = id(THREAD, sample.getThreadName());
+            block.ids[MESSAGE][i] = id(MESSAGE, sample.getResponseMessage());
+            block.assertionIds[i] = sample.isSuccessful() ? -1 : id(MESSAGE, sample.getFirstAssertionFailureMessage());
+            block.count++;
+            if (block.count == BLOCK_SIZE) {
+                swap();
+            }
+        }
+
+        /**
+         * Writes the last block, waits until all blocks are written and closes the file.
+         *
+         * @throws IOException if a block can not be written.
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    if (block.count > 0 || block.entryCount > 0) {
+                        swap();
+                    }
+                    put(full, END);
+                } catch (IOException e) {
+                    thread.interrupt(); // Queue is not taken by sampler threads any more
+                }
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                out.close();
+            }
+            checkFailure();
+        }
+
+        /**
+         * Assigns id of the value in the dictionary of the column. New entries are stored in the block,
+         * which defines them for the reader before ids of its samples are read.
+         */
+        private int id(int column, String value) throws IOException {
+            if (value == null) {
+                return -1;
+            }
+            Map<String, Integer> dictionary = dictionaries.get(column);
+            Integer id = dictionary.get(value);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.put(value, id);
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                block.entriesData.writeByte(column);
+                block.entriesData.writeInt(id);
+                block.entriesData.writeInt(bytes.length);
+                block.entriesData.write(bytes);
+                block.entryCount++;
+            }
+            return id;
+        }
+
+        /**
+         * Passes the filled block to the thread of the writer and takes an empty block. Dictionaries over
+         * their limit are cleared only here, ids of the full block stay valid for all its samples.
+         */
+        private void swap() throws IOException {
+            put(full, block);
+            for (Map<String, Integer> dictionary : dictionaries) {
+                if (dictionary.size() >= DICTIONARY_LIMIT) {
+                    dictionary.clear(); // Ids of the next block start from zero, entries are redefined
+                }
+            }
+            try {
+                block = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the result spool");
+            }
+        }
+
+        private static void put(BlockingQueue<Block> queue, Block block) throws IOException {
+            try {
+                queue.put(block);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the result spool");
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            IOException e = failure;
+            if (e != null) {
+                throw new IOException("Result spool could not be written", e);
+            }
+        }
+
+        /**
+         * Loop of the thread of the writer. Blocks are written in the order they were filled. After a failure
+         * blocks are only returned, so sampler threads do not wait for the failed writer.
+         */
+        private void writeBlocks() {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(BLOCK_SIZE * 90);
+            byte[] compressed = new byte[0];
+            try {
+                while (true) {
+                    Block next = full.take();
+                    if (next == END) {
+                        return;
+                    }
+                    try {
+                        if (failure == null) {
+                            compressed = writeBlock(next, deflater, raw, compressed);
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    next.count = 0;
+                    next.entries.reset();
+                    next.entryCount = 0;
+                    free.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /**
+         * Compresses and writes one block.
+         *
+         * @return buffer of compressed bytes, reused for the next block.
+         */
+        private byte[] writeBlock(Block full, Deflater deflater, ByteArrayOutputStream raw, byte[] compressed)
+                throws IOException {
+            raw.reset();
+            DataOutputStream data = new DataOutputStream(raw);
+            data.writeInt(full.count);
+            data.writeInt(full.entryCount);
+            full.entries.writeTo(data);
+            full.writeColumns(data);
+            data.flush();
+            byte[] bytes = raw.toByteArray();
+
+            deflater.reset();
+            deflater.setInput(bytes);
+            deflater.finish();
+            if (compressed.length < bytes.length + 64) {
+                compressed = new byte[bytes.length + 64];
+            }
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(length);
+            header.writeInt(bytes.length);
+            out.write(compressed, 0, length);
+            return compressed;
+        }
+    }
+
+    /**
+     * Reader of spool file through memory mapping.
+     */
+    static final class Reader {
+        private final File file;
+
+        /**
+         * @param file spool file.
+         */
+        Reader(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Reads all samples.
+         *
+         * @param includeGroupName true if name of thread group has to be included in labels.
+         * @param consumer receives every sample, the record is reused for the next sample.
+         * @throws IOException if the file can not be read or is not a spool file.
+         */
+        void read(boolean includeGroupName, Consumer<SampleRecord> consumer) throws IOException {
+            SampleRecord record = new SampleRecord();
+            readBlocks(block -> {
+                for (int i = 0; i < block.count; i++) {
+                    block.toRecord(i, record);
+                    if (includeGroupName) {
+                        record.label = SampleRecord.groupLabel(record.threadName, record.label);
+                    }
+                    consumer.accept(record);
+                }
+            });
+        }
+
+        private void readBlocks(Consumer<Block> consumer) throws IOException {
+            List<List<String>> dictionaries = new ArrayList<>();
+            for (int i = 0; i < DICTIONARIES; i++) {
+                dictionaries.add(new ArrayList<>());
+            }
+            Inflater inflater = new Inflater();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                MappedByteBuffer magic = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAGIC.length));
+                byte[] fileMagic = new byte[magic.limit()];
+                magic.get(fileMagic);
+                if (!Arrays.equals(fileMagic, MAGIC)) {
+                    throw new IOException("File is not a result spool: " + file);
+                }
+                long position = MAGIC.length;
+                byte[] bytes = new byte[0];
+                while (position + 8 <= size) {
+                    MappedByteBuffer lengths = channel.map(FileChannel.MapMode.READ_ONLY, position, 8);
+                    int compressedLength = lengths.getInt();
+                    int length = lengths.getInt();
+                    MappedByteBuffer compressed = channel.map(FileChannel.MapMode.READ_ONLY, position + 8, compressedLength);
+                    position += 8 + compressedLength;
+
+                    if (bytes.length < length) {
+                        bytes = new byte[length];
+                    }
+                    byte[] input = new byte[compressedLength];
+                    compressed.get(input);
+                    inflater.reset();
+                    inflater.setInput(input);
+                    try {
+                        int read = 0;
+                        while (read < length && !inflater.finished()) {
+                            read += inflater.inflate(bytes, read, length - read);
+                        }
+                    } catch (DataFormatException e) {
+                        throw new IOException("Corrupted block of result spool " + file, e);
+                    }
+                    consumer.accept(Block.read(ByteBuffer.wrap(bytes, 0, length), dictionaries));
+                }
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Columns of one block.
+     */
+    private static final class Block {
+        private int count;
+        private final long[] startTime;
+        private final int[] elapsed;
+        private final int[] latency;
+        private final int[] connectTime;
+        private final long[] receivedBytes;
+        private final long[] sentBytes;
+        private final int[] sampleCount;
+        private final int[] errorCount;
+        private final int[] groupThreads;
+        private final int[] allThreads;
+        private final byte[] success;
+        private final int[][] ids;
+        private final int[] assertionIds;
+        private List<List<String>> dictionaries; // Set only in blocks which are read
+        // New dictionary entries of blocks which are written
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        private final DataOutputStream entriesData = new DataOutputStream(entries);
+        private int entryCount;
+
+        private Block(int capacity) {
+            startTime = new long[capacity];
+            elapsed = new int[capacity];
+            latency = new int[capacity];
+            connectTime = new int[capacity];
+            receivedBytes = new long[capacity];
+            sentBytes = new long[capacity];
+            sampleCount = new int[capacity];
+            errorCount = new int[capacity];
+            groupThreads = new int[capacity];
+            allThreads = new int[capacity];
+            success = new byte[capacity];
+            ids = new int[DICTIONARIES][capacity];
+            assertionIds = new int[capacity];
+        }
+
+        private void writeColumns(DataOutputStream data) throws IOException {
+            for (int i = 0; i < count; i++) {
+                data.writeLong(startTime[i]);
+            }
+            writeInts(data, elapsed);
+            writeInts(data, latency);
+            writeInts(data, connectTime);
+            for (int i = 0; i < count; i++) {
+                data.writeLong(receivedBytes[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                data.writeLong(sentBytes[i]);
+            }
+            writeInts(data, sampleCount);
+            writeInts(data, errorCount);
+            writeInts(data, groupThreads);
+            writeInts(data, allThreads);
+            data.write(success, 0, count);
+            for (int[] column : ids) {
+                writeInts(data, column);
+            }
+            writeInts(data, assertionIds);
+        }
+
+        private void writeInts(DataOutputStream data, int[] column) throws IOException {
+            for (int i = 0; i < count; i++) {
+                data.writeInt(column[i]);
+            }
+        }
+
+        private static Block read(ByteBuffer buffer, List<List<String>> dictionaries) {
+            int count = buffer.getInt();
+            int entries = buffer.getInt();
+            for (int e = 0; e < entries; e++) {
+                List<String> dictionary = dictionaries.get(buffer.get());
+                int id = buffer.getInt();
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                String value = new String(bytes, StandardCharsets.UTF_8);
+                if (id < dictionary.size()) {
+                    dictionary.set(id, value);
+                } else {
+                    dictionary.add(value);
+                }
+            }
+            Block block = new Block(count);
+            block.count = count;
+            block.dictionaries = dictionaries;
+            for (int i = 0; i < count; i++) {
+                block.startTime[i] = buffer.getLong();
+            }
+            readInts(buffer, block.elapsed);
+            readInts(buffer, block.latency);
+            readInts(buffer, block.connectTime);
+            for (int i = 0; i < count; i++) {
+                block.receivedBytes[i] = buffer.getLong();
+            }
+            for (int i = 0; i < count; i++) {
+                block.sentBytes[i] = buffer.getLong();
+            }
+            readInts(buffer, block.sampleCount);
+            readInts(buffer, block.errorCount);
+            readInts(buffer, block.groupThreads);
+            readInts(buffer, block.allThreads);
+            buffer.get(block.success, 0, count);
+            for (int[] column : block.ids) {
+                readInts(buffer, column);
+            }
+            readInts(buffer, block.assertionIds);
+            return block;
+        }
+
+        private static void readInts(ByteBuffer buffer, int[] column) {
+            for (int i = 0; i < column.length; i++) {
+                column[i] = buffer.getInt();
+            }
+        }
+
+        private String text(int column, int index) {
+            int id = ids[column][index];
+            return id < 0 ? null : dictionaries.get(column).get(id);
+        }
+
+        private String assertion(int index) {
+            int id = assertionIds[index];
+            return id < 0 ? null : dictionaries.get(MESSAGE).get(id);
+        }
+
+        private void toRecord(int i, SampleRecord record) {
+            record.label = text(LABEL, i);
+            record.url = text(URL, i);
+            record.elapsed = elapsed[i];
+            record.sampleCount = sampleCount[i];
+            record.errorCount = errorCount[i];
+            record.receivedBytes = receivedBytes[i];
+            record.sentBytes = sentBytes[i];
+            record.startTime = startTime[i];
+            record.endTime = startTime[i] + elapsed[i];
+            record.latency = latency[i];
+            record.connectTime = connectTime[i];
+            record.groupThreads = groupThreads[i];
+            record.allThreads = allThreads[i];
+            record.success = success[i] != 0;
+            record.responseCode = text(CODE, i);
+            record.threadName = text(THREAD, i);
+            record.failureMessage = record.success ? null
+                    : SampleRecord.errorType(record.responseCode, text(MESSAGE, i), assertion(i));
+        }
+    }
+}
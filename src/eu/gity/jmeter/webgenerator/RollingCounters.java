@@ -0,0 +1,347 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.util.JMeterUtils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of samples and errors per second in a ring of the last "webgenerator.window.seconds" seconds,
+ * for all samples, per label and per response code. Seconds are taken from end times of samples and
+ * the newest second of the samples is the reference of rates, so the counters give the same rates during
+ * the test and when a result file is imported. Live checks ({@link SlaMonitor}) give the current second
+ * as the reference, so a window without new samples is empty instead of showing the last samples.
+ *
+ * Every key has its own arrays of primitive counters and number of keys is limited by
+ * "webgenerator.window.max_keys" (samples of further keys are counted only in the totals), so memory
+ * is fixed and no sample is kept. Slot of an expired second is zeroed by the first sample of the new second,
+ * samples older than the window are ignored.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class RollingCounters {
+    /** Length of the window in seconds. */
+    static final int SECONDS = Math.min(3600, Math.max(60, JMeterUtils.getPropDefault("webgenerator.window.seconds", 300)));
+    private static final int MAX_KEYS = Math.max(1, JMeterUtils.getPropDefault("webgenerator.window.max_keys", 256));
+    private static final int MINUTE = 60;
+    private static final int FIVE_MINUTES = Math.min(300, SECONDS);
+    private static final int SLOTS = SECONDS + 1; // The newest second is not complete
+
+    private final AtomicLongArray seconds = new AtomicLongArray(SLOTS); // Second counted in every slot
+    private final Row total = new Row();
+    private final ConcurrentMap<String, Row> labels = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Row> codes = new ConcurrentHashMap<>();
+    private final AtomicInteger keys = new AtomicInteger();
+    private final LongAccumulator earliest = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator latest = new LongAccumulator(Math::max, Long.MIN_VALUE);
+    private final LongAdder late = new LongAdder(); // Samples older than the window
+
+    RollingCounters() {
+        clear();
+    }
+
+    /**
+     * Adds one sample. Called from sampler threads or from aggregator threads of the pipeline.
+     *
+     * @param record copy of the sample.
+     */
+    void add(SampleRecord record) {
+        add(Math.floorDiv(record.endTime, 1000), record.label, record.responseCode,
+                record.sampleCount, record.errorCount);
+    }
+
+    /**
+     * Adds samples of one second, label and response code (e.g. counted by a remote engine).
+     *
+     * @param second second of end times of the samples.
+     * @param label label of the samples.
+     * @param code response code of the samples.
+     * @param sampleCount number of samples.
+     * @param errorCount number of failed samples.
+     */
+    void add(long second, String label, String code, long sampleCount, long errorCount) {
+        int slot = (int) Math.floorMod(second, SLOTS);
+        long counted = seconds.get(slot);
+        if (counted != second) {
+            if (counted > second) {
+                late.add(sampleCount);
+                return;
+            }
+            roll(slot, second);
+        }
+        earliest.accumulate(second);
+        latest.accumulate(second);
+        total.add(slot, sampleCount, errorCount);
+        Row labelRow = row(labels, label);
+        if (labelRow != null) {
+            labelRow.add(slot, sampleCount, errorCount);
+        }
+        Row codeRow = row(codes, code);
+        if (codeRow != null) {
+            codeRow.add(slot, sampleCount, errorCount);
+        }
+    }
+
+    /**
+     * Removes all counters.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < SLOTS; i++) {
+            seconds.set(i, Long.MIN_VALUE);
+        }
+        total.clear();
+        labels.clear();
+        codes.clear();
+        keys.set(0);
+        earliest.reset();
+        latest.reset();
+        late.reset();
+    }
+
+    /**
+     * @return rough estimate of heap held by counters of all keys (bytes).
+     */
+    long estimatedBytes() {
+        return 8L * SLOTS * (1 + 2L * (1 + labels.size() + codes.size()));
+    }
+
+    /**
+     * @return rates of all samples.
+     */
+    Rates total() {
+        return rates(total);
+    }
+
+    /**
+     * @return rates of labels sorted by label.
+     */
+    Map<String, Rates> labels() {
+        return rates(labels);
+    }
+
+    /**
+     * @return rates of response codes sorted by code.
+     */
+    Map<String, Rates> codes() {
+        return rates(codes);
+    }
+
+    /**
+     * Number of samples and errors of the label in the complete seconds before the given second.
+     *
+     * @param label label of samples, null for all samples.
+     * @param length number of seconds (at most the length of the window).
+     * @param now reference second, e.g. the current second of the clock.
+     * @return samples and errors, zeros if the label is unknown.
+     */
+    long[] window(String label, int length, long now) {
+        Row row = label == null ? total : labels.get(label);
+        return row == null ? new long[2] : sum(row, length, now);
+    }
+
+    /**
+     * @return number of samples which were ignored because they were older than the window.
+     */
+    long getLate() {
+        return late.sum();
+    }
+
+    /**
+     * Writes rates as JSON object ({"total": rates, "labels": {label: rates}, "codes": {code: rates}}).
+     *
+     * @param sb target of the text.
+     */
+    void toJson(StringBuilder sb) {
+        sb.append("{\"total\":");
+        total().toJson(sb);
+        sb.append(",\"labels\":");
+        toJson(sb, labels());
+        sb.append(",\"codes\":");
+        toJson(sb, codes());
+        sb.append('}');
+    }
+
+    private static void toJson(StringBuilder sb, Map<String, Rates> rates) {
+        sb.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Rates> entry : rates.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            JsonText.quote(sb, entry.getKey());
+            sb.append(':');
+            entry.getValue().toJson(sb);
+        }
+        sb.append('}');
+    }
+
+    /**
+     * Zeroes slot of an expired second. Runs once per second of the test, other threads of the same second
+     * wait here, so no sample is counted before the slot is zeroed.
+     *
+     * @param slot index of the slot.
+     * @param second new second of the slot.
+     */
+    private synchronized void roll(int slot, long second) {
+        if (seconds.get(slot) >= second) {
+            return; // Rolled by another thread
+        }
+        total.clear(slot);
+        for (Row row : labels.values()) {
+            row.clear(slot);
+        }
+        for (Row row : codes.values()) {
+            row.clear(slot);
+        }
+        seconds.set(slot, second);
+    }
+
+    private Row row(ConcurrentMap<String, Row> rows, String key) {
+        if (key == null) {
+            return null;
+        }
+        Row row = rows.get(key);
+        if (row == null && keys.get() < MAX_KEYS) {
+            row = rows.computeIfAbsent(key, k -> {
+                keys.incrementAndGet();
+                return new Row();
+            });
+        }
+        return row;
+    }
+
+    private Map<String, Rates> rates(ConcurrentMap<String, Row> rows) {
+        Map<String, Rates> result = new TreeMap<>();
+        for (Map.Entry<String, Row> entry : rows.entrySet()) {
+            result.put(entry.getKey(), rates(entry.getValue()));
+        }
+        return result;
+    }
+
+    private Rates rates(Row row) {
+        long newest = latest.get();
+        long[] current = sum(row, 1, newest);
+        long[] minute = sum(row, MINUTE, newest);
+        long[] fiveMinutes = sum(row, FIVE_MINUTES, newest);
+        double minuteSpan = span(MINUTE);
+        double fiveMinutesSpan = span(FIVE_MINUTES);
+        return new Rates(current[0], minute[0] / minuteSpan, fiveMinutes[0] / fiveMinutesSpan,
+                current[1], minute[1] / minuteSpan, fiveMinutes[1] / fiveMinutesSpan);
+    }
+
+    /**
+     * @param length number of seconds.
+     * @return number of complete seconds of the test in the last seconds, at least 1
+     *         (rates at the beginning of the test are not diluted by seconds before it).
+     */
+    int span(int length) {
+        return span(length, latest.get());
+    }
+
+    /**
+     * @param length number of seconds.
+     * @param now reference second, e.g. the current second of the clock.
+     * @return number of complete seconds since the first sample in the last seconds before the reference, at least 1.
+     */
+    int span(int length, long now) {
+        long first = earliest.get();
+        if (first == Long.MAX_VALUE) {
+            return 1;
+        }
+        return (int) Math.max(1, Math.min(length, now - first));
+    }
+
+    /**
+     * Sums counters of the complete seconds before the reference second (the newest second is still being filled).
+     *
+     * @param row counters of one key.
+     * @param length number of seconds.
+     * @param newest reference second.
+     * @return samples and errors.
+     */
+    private long[] sum(Row row, int length, long newest) {
+        long[] sum = new long[2];
+        if (newest == Long.MIN_VALUE) {
+            return sum;
+        }
+        for (long second = newest - 1; second >= newest - Math.min(length, SECONDS); second--) {
+            int slot = (int) Math.floorMod(second, SLOTS);
+            if (seconds.get(slot) == second) {
+                sum[0] += row.samples.get(slot);
+                sum[1] += row.errors.get(slot);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Counters of one key, one slot per second of the window.
+     */
+    private static final class Row {
+        private final AtomicLongArray samples = new AtomicLongArray(SLOTS);
+        private final AtomicLongArray errors = new AtomicLongArray(SLOTS);
+
+        private void add(int slot, long sampleCount, long errorCount) {
+            samples.addAndGet(slot, sampleCount);
+            if (errorCount > 0) {
+                errors.addAndGet(slot, errorCount);
+            }
+        }
+
+        private void clear(int slot) {
+            samples.set(slot, 0);
+            errors.set(slot, 0);
+        }
+
+        private void clear() {
+            for (int i = 0; i < SLOTS; i++) {
+                clear(i);
+            }
+        }
+    }
+
+    /**
+     * Samples and errors per second in the last complete second, the last minute and the last five minutes.
+     */
+    static final class Rates {
+        final double current;
+        final double minute;
+        final double fiveMinutes;
+        final double currentErrors;
+        final double minuteErrors;
+        final double fiveMinutesErrors;
+
+        private Rates(double current, double minute, double fiveMinutes,
+                      double currentErrors, double minuteErrors, double fiveMinutesErrors) {
+            this.current = current;
+            this.minute = minute;
+            this.fiveMinutes = fiveMinutes;
+            this.currentErrors = currentErrors;
+            this.minuteErrors = minuteErrors;
+            this.fiveMinutesErrors = fiveMinutesErrors;
+        }
+
+        private void toJson(StringBuilder sb) {
+            sb.append("{\"current\":");
+            JsonText.number(sb, current);
+            sb.append(",\"minute\":");
+            JsonText.number(sb, minute);
+            sb.append(",\"fiveMinutes\":");
+            JsonText.number(sb, fiveMinutes);
+            sb.append(",\"currentErrors\":");
+            JsonText.number(sb, currentErrors);
+            sb.append(",\"minuteErrors\":");
+            JsonText.number(sb, minuteErrors);
+            sb.append(",\"fiveMinutesErrors\":");
+            JsonText.number(sb, fiveMinutesErrors);
+            sb.append('}');
+        }
+    }
+}
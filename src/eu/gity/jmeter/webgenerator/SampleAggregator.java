@@ -0,0 +1,47 @@
+package eu.gity.jmeter.webgenerator;
+
+import java.util.List;
+
+/**
+ * Collects statistics of samples per label.
+ * Implementations differ in the way how sampler threads share the counters.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+interface SampleAggregator {
+
+    /**
+     * Adds sample to the row of its label. Row is created on first use.
+     *
+     * @param record copy of the sample, it is not kept after the call.
+     */
+    void add(SampleRecord record);
+
+    /**
+     * Adds statistics aggregated elsewhere (e.g. a chunk of a result file) to the row of its label.
+     *
+     * @param stats statistics of one label, it is not kept after the call.
+     */
+    void merge(SampleStats stats);
+
+    /**
+     * @param label label of the row.
+     * @return snapshot of statistics for given label or null if label was not seen.
+     */
+    SampleStats get(String label);
+
+    /**
+     * @return snapshot of all label rows.
+     */
+    List<SampleStats> snapshot();
+
+    /**
+     * @return TOTAL row merged from all label rows.
+     */
+    SampleStats total();
+
+    /**
+     * Removes all collected statistics.
+     */
+    void clear();
+}
@@ -0,0 +1,314 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous ingestion of samples.
+ * Sampler threads only copy primitive fields of the sample into a preallocated slot of a bounded ring buffer
+ * (multi-producer multi-consumer queue of Dmitry Vyukov). Aggregator threads take records from the buffer
+ * in batches and pass them to the consumer.
+ *
+ * When the buffer is full, the behaviour is given by the overflow policy:
+ * <ul>
+ *     <li>BLOCK - sampler thread waits until there is a free slot,</li>
+ *     <li>DROP - sample is dropped and counted,</li>
+ *     <li>QUEUE - sample is copied to an in-memory overflow queue which is drained by aggregator threads. Every queued
+ *     sample allocates a record and a node of the queue. The queue holds at most
+ *     "webgenerator.pipeline.overflow_capacity" records (65536 by default), samples over it are dropped
+ *     and counted.</li>
+ * </ul>
+ *
+ * Samples offered after the pipeline was stopped are rejected and the caller aggregates them itself, also when
+ * the sampler thread was waiting for a free slot of policy BLOCK. A sample published into the buffer while the pipeline
+ * was being stopped is aggregated by its sampler thread, which checks the stop again after the publication.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class SamplePipeline {
+    private static final Logger log = LoggerFactory.getLogger(SamplePipeline.class);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /**
+     * Behaviour of the pipeline when the ring buffer is full.
+     */
+    enum Overflow { BLOCK, DROP, QUEUE }
+
+    private final SampleRecord[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+    private final Queue<SampleRecord> overflowQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger overflowSize = new AtomicInteger(); // Size of the queue, its size() is not constant time
+    private final int overflowCapacity;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder(); // Time of sampler threads waiting for a free slot
+    private final Overflow overflow;
+    private final int batchSize;
+    private final int threadCount;
+    private final Consumer<SampleRecord> consumer;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running = false;
+
+    /**
+     * @param capacity capacity of the ring buffer, rounded up to a power of two.
+     * @param threadCount number of aggregator threads.
+     * @param batchSize highest number of records taken by an aggregator thread at once.
+     * @param overflow behaviour when the buffer is full.
+     * @param overflowCapacity highest number of records in the overflow queue of policy QUEUE.
+     * @param consumer aggregation of one record, called from aggregator threads.
+     */
+    SamplePipeline(int capacity, int threadCount, int batchSize, Overflow overflow, int overflowCapacity,
+                   Consumer<SampleRecord> consumer) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new SampleRecord[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new SampleRecord();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.threadCount = Math.max(threadCount, 1);
+        this.batchSize = Math.max(batchSize, 1);
+        this.overflow = overflow;
+        this.overflowCapacity = Math.max(overflowCapacity, 0);
+        this.consumer = consumer;
+    }
+
+    /**
+     * Creates pipeline configured by JMeter properties "webgenerator.pipeline.*".
+     *
+     * @param consumer aggregation of one record.
+     * @return new pipeline or null if the pipeline mode is not enabled.
+     */
+    static SamplePipeline fromProperties(Consumer<SampleRecord> consumer) {
+        if (!JMeterUtils.getPropDefault("webgenerator.pipeline.enabled", false)) {
+            return null;
+        }
+        Overflow overflow;
+        try {
+            overflow = Overflow.valueOf(JMeterUtils.getPropDefault("webgenerator.pipeline.overflow", "block").trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            log.warn(JMeterUtils.getResString("web_generator_log_wrong_overflow") + " " + e);
+            overflow = Overflow.BLOCK;
+        }
+        return new SamplePipeline(JMeterUtils.getPropDefault("webgenerator.pipeline.capacity", 65536),
+                JMeterUtils.getPropDefault("webgenerator.pipeline.threads", 1),
+                JMeterUtils.getPropDefault("webgenerator.pipeline.batch", 256), overflow,
+                JMeterUtils.getPropDefault("webgenerator.pipeline.overflow_capacity", 65536), consumer);
+    }
+
+    /**
+     * Starts aggregator threads. Records left in the buffer by samples offered during the previous stop are discarded.
+     */
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        for (int i = 0; i < slots.length; i++) {
+            slots[i].clear();
+            sequences.set(i, i);
+        }
+        enqueuePosition.set(0);
+        dequeuePosition.set(0);
+        overflowQueue.clear();
+        overflowSize.set(0);
+        running = true;
+        for (int i = 0; i < threadCount; i++) {
+            Thread worker = new Thread(this::work, "WebGenerator-aggregator-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops aggregator threads after all queued records are aggregated.
+     */
+    synchronized void stop() {
+        running = false;
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        workers.clear();
+        drain(Integer.MAX_VALUE); // Records offered after workers have seen the stop flag
+    }
+
+    /**
+     * Aggregates records published after the final drain of {@link #stop()}. Records of a stopped pipeline
+     * are discarded by the next start, so nothing is done once the pipeline runs again.
+     */
+    private synchronized void drainStopped() {
+        if (!running) {
+            drain(Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * @return true if aggregator threads are running.
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Copies the sample into the ring buffer. Called from sampler threads.
+     *
+     * @param sampleLabel label of the sample.
+     * @param sample result passed from JMeter.
+     * @return false if the pipeline is stopped and the sample was not taken, the caller aggregates it.
+     */
+    boolean offer(String sampleLabel, SampleResult sample) {
+        if (!running) {
+            return false;
+        }
+        long position = enqueuePosition.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    slots[index].set(sampleLabel, sample);
+                    sequences.set(index, position + 1); // Volatile, so the stop is not read before the publication
+                    if (!running) {
+                        drainStopped();
+                    }
+                    return true;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) { // Buffer is full
+                switch (overflow) {
+                    case DROP:
+                        dropped.increment();
+                        return true;
+                    case QUEUE:
+                        if (overflowSize.incrementAndGet() > overflowCapacity) {
+                            overflowSize.decrementAndGet();
+                            dropped.increment();
+                            return true;
+                        }
+                        queued.increment();
+                        overflowQueue.add(new SampleRecord().set(sampleLabel, sample));
+                        return true;
+                    default:
+                        long parked = System.nanoTime();
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                        blockedNanos.add(System.nanoTime() - parked);
+                        if (!running) {
+                            return false; // Aggregator threads are gone, the slot will not be freed
+                        }
+                        position = enqueuePosition.get();
+                }
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    /**
+     * @return number of records waiting in the ring buffer and in the overflow queue.
+     */
+    long getQueueDepth() {
+        return Math.max(0, enqueuePosition.get() - dequeuePosition.get()) + overflowSize.get();
+    }
+
+    /**
+     * @return number of samples dropped because the buffer (or the overflow queue of policy QUEUE) was full.
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return number of samples moved to the overflow queue because the buffer was full.
+     */
+    long getQueued() {
+        return queued.sum();
+    }
+
+    /**
+     * @return time spent by sampler threads waiting for a free slot of the full buffer (nanoseconds).
+     */
+    long getBlockedNanos() {
+        return blockedNanos.sum();
+    }
+
+    /**
+     * Resets counters of dropped, queued and blocked samples.
+     */
+    void resetCounters() {
+        dropped.reset();
+        queued.reset();
+        blockedNanos.reset();
+    }
+
+    /**
+     * Main loop of an aggregator thread.
+     */
+    private void work() {
+        while (running) {
+            if (drain(batchSize) == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        drain(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Aggregates up to given number of records from the ring buffer and then records from the overflow queue.
+     *
+     * @param limit highest number of records taken from the ring buffer.
+     * @return number of aggregated records.
+     */
+    private int drain(int limit) {
+        int processed = 0;
+        long position = dequeuePosition.get();
+        while (processed < limit) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    SampleRecord record = slots[index];
+                    consumer.accept(record);
+                    record.clear();
+                    sequences.lazySet(index, position + mask + 1);
+                    processed++;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) { // Buffer is empty
+                break;
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+        SampleRecord record;
+        while (processed < limit && (record = overflowQueue.poll()) != null) {
+            overflowSize.decrementAndGet();
+            consumer.accept(record);
+            processed++;
+        }
+        return processed;
+    }
+}
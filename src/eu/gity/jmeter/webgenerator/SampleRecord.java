@@ -0,0 +1,178 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mutable copy of the fields of a SampleResult which are needed for statistics.
+ * Instances are preallocated and reused (slots of the ring buffer, per-thread scratch records),
+ * so passing a sample to the aggregation does not allocate anything.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class SampleRecord {
+    private static final int MAX_CACHED_ERROR_TYPES = 1000;
+    /** Types of errors by response code and response message, cleared at start of every test. */
+    private static final ConcurrentMap<String, ConcurrentMap<String, String>> ERROR_TYPES = new ConcurrentHashMap<>();
+    private static final AtomicInteger ERROR_TYPE_COUNT = new AtomicInteger();
+
+    String label;
+    String url;
+    long elapsed;
+    int sampleCount;
+    int errorCount;
+    long receivedBytes;
+    long sentBytes;
+    long startTime;
+    long endTime;
+    long latency;
+    long connectTime;
+    int groupThreads;
+    int allThreads;
+    boolean success;
+    String responseCode;
+    String failureMessage; // Type of error, only for failed samples
+    String threadName;
+
+    /**
+     * Copies fields of the sample into this record.
+     *
+     * @param sampleLabel label of the sample (with or without thread group name).
+     * @param sample result passed from JMeter.
+     * @return this record.
+     */
+    SampleRecord set(String sampleLabel, SampleResult sample) {
+        label = sampleLabel;
+        url = sample.getUrlAsString();
+        elapsed = sample.getTime();
+        sampleCount = sample.getSampleCount();
+        errorCount = sample.getErrorCount();
+        receivedBytes = sample.getBytesAsLong();
+        sentBytes = sample.getSentBytes();
+        startTime = sample.getStartTime();
+        endTime = sample.getEndTime();
+        latency = sample.getLatency();
+        connectTime = sample.getConnectTime();
+        groupThreads = sample.getGroupThreads();
+        allThreads = sample.getAllThreads();
+        success = sample.isSuccessful();
+        responseCode = sample.getResponseCode();
+        failureMessage = success ? null : errorType(sample);
+        threadName = sample.getThreadName();
+        return this;
+    }
+
+    /**
+     * Type of error of a failed sample. Samples with successful response code failed on an assertion,
+     * so the failure message of the assertion is used, other samples are described by code and message.
+     *
+     * @param sample failed sample.
+     * @return description of the error.
+     */
+    private static String errorType(SampleResult sample) {
+        String code = sample.getResponseCode();
+        return errorType(code, sample.getResponseMessage(),
+                isSuccessCode(code) ? sample.getFirstAssertionFailureMessage() : null);
+    }
+
+    /**
+     * Type of error of a failed sample given by its fields (e.g. read from a result file).
+     *
+     * @param code response code.
+     * @param message response message.
+     * @param assertionMessage failure message of the first failed assertion, may be null or empty.
+     * @return description of the error.
+     */
+    static String errorType(String code, String message, String assertionMessage) {
+        if (isSuccessCode(code) && assertionMessage != null && !assertionMessage.isEmpty()) {
+            return assertionMessage;
+        }
+        if (code == null || message == null) {
+            return code + "/" + message;
+        }
+        ConcurrentMap<String, String> messages = ERROR_TYPES.get(code);
+        String type = messages == null ? null : messages.get(message);
+        if (type != null) {
+            return type; // Failed samples mostly repeat few types, they are not concatenated again
+        }
+        type = code + "/" + message;
+        if (ERROR_TYPE_COUNT.get() < MAX_CACHED_ERROR_TYPES) {
+            if (messages == null) {
+                messages = ERROR_TYPES.computeIfAbsent(code, c -> new ConcurrentHashMap<>());
+            }
+            if (messages.putIfAbsent(message, type) == null) {
+                ERROR_TYPE_COUNT.incrementAndGet();
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Forgets cached types of errors, so types of the previous test do not fill the cache.
+     * Called at start of a test, a type cached concurrently is only created again.
+     */
+    static void clearErrorTypes() {
+        ERROR_TYPES.clear();
+        ERROR_TYPE_COUNT.set(0);
+    }
+
+    /**
+     * Label with name of thread group in the same form as SampleResult.getSampleLabel(true).
+     *
+     * @param threadName name of the thread ("Group name 1-5").
+     * @param label label of the sample.
+     * @return label prefixed by name of thread group.
+     */
+    static String groupLabel(String threadName, String label) {
+        if (threadName == null) {
+            return label;
+        }
+        int space = threadName.lastIndexOf(' ');
+        return (space > 0 ? threadName.substring(0, space) : threadName) + ":" + label;
+    }
+
+    private static boolean isSuccessCode(String code) {
+        return code != null && (code.startsWith("2") || code.startsWith("3"));
+    }
+
+    /**
+     * Copies fields of other record into this record.
+     *
+     * @param other source record.
+     * @return this record.
+     */
+    SampleRecord set(SampleRecord other) {
+        label = other.label;
+        url = other.url;
+        elapsed = other.elapsed;
+        sampleCount = other.sampleCount;
+        errorCount = other.errorCount;
+        receivedBytes = other.receivedBytes;
+        sentBytes = other.sentBytes;
+        startTime = other.startTime;
+        endTime = other.endTime;
+        latency = other.latency;
+        connectTime = other.connectTime;
+        groupThreads = other.groupThreads;
+        allThreads = other.allThreads;
+        success = other.success;
+        responseCode = other.responseCode;
+        failureMessage = other.failureMessage;
+        threadName = other.threadName;
+        return this;
+    }
+
+    /**
+     * Releases references to strings, so the slot does not keep them alive.
+     */
+    void clear() {
+        label = null;
+        url = null;
+        responseCode = null;
+        failureMessage = null;
+        threadName = null;
+    }
+}
@@ -0,0 +1,333 @@
+package eu.gity.jmeter.webgenerator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Plain accumulator of sample statistics for one label.
+ * Computes the same values as JMeter's Calculator, but can be merged with another instance,
+ * so the TOTAL row is derived from label rows instead of being updated on every sample.
+ *
+ * Class is not thread safe. It is used as a snapshot of concurrently collected statistics.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class SampleStats {
+    private final String label;
+    private long count;
+    private long errorCount;
+    private double elapsedSum;
+    private double elapsedSumOfSquares;
+    private long minElapsed = Long.MAX_VALUE;
+    private long maxElapsed = Long.MIN_VALUE;
+    private long receivedBytes;
+    private long sentBytes;
+    private long firstStartTime = Long.MAX_VALUE;
+    private long lastEndTime = Long.MIN_VALUE;
+    private long latencySum;
+    private long connectTimeSum;
+    private int maxThreads;
+    private final LogHistogram histogram;
+
+    SampleStats(String label) {
+        this(label, new LogHistogram());
+    }
+
+    /**
+     * @param label label of the row.
+     * @param histogram histogram of elapsed times owned by this object.
+     */
+    SampleStats(String label, LogHistogram histogram) {
+        this.label = label;
+        this.histogram = histogram;
+    }
+
+    String getLabel() {
+        return label;
+    }
+
+    /**
+     * Adds one sample in the same way as Calculator.addSample does.
+     *
+     * @param elapsed elapsed time of the sample.
+     * @param sampleCount number of samples represented by the result.
+     * @param errors number of errors represented by the result.
+     * @param received received bytes.
+     * @param sent sent bytes.
+     * @param startTime start time of the sample.
+     * @param endTime end time of the sample.
+     * @param latency latency of the sample.
+     * @param connectTime connect time of the sample.
+     * @param threads number of active threads in the thread group of the sample.
+     */
+    void addSample(long elapsed, int sampleCount, int errors, long received, long sent, long startTime, long endTime,
+                   long latency, long connectTime, int threads) {
+        long perSample = sampleCount > 1 ? elapsed / sampleCount : elapsed;
+        count += sampleCount;
+        errorCount += errors;
+        elapsedSum += elapsed;
+        elapsedSumOfSquares += sampleCount > 1 ? ((double) elapsed * elapsed) / sampleCount : (double) elapsed * elapsed;
+        minElapsed = Math.min(minElapsed, perSample);
+        maxElapsed = Math.max(maxElapsed, perSample);
+        receivedBytes += received;
+        sentBytes += sent;
+        firstStartTime = Math.min(firstStartTime, startTime);
+        lastEndTime = Math.max(lastEndTime, endTime);
+        latencySum += latency;
+        connectTimeSum += connectTime;
+        maxThreads = Math.max(maxThreads, threads);
+        histogram.record(perSample, sampleCount);
+    }
+
+    /**
+     * Adds one sample copied to a record.
+     *
+     * @param record copy of the sample.
+     */
+    void addSample(SampleRecord record) {
+        addSample(record.elapsed, record.sampleCount, record.errorCount, record.receivedBytes, record.sentBytes,
+                record.startTime, record.endTime, record.latency, record.connectTime, record.groupThreads);
+    }
+
+    /**
+     * Sets values of all counters at once. Used when a snapshot is taken from concurrent counters.
+     */
+    void set(long count, long errorCount, double elapsedSum, double elapsedSumOfSquares, long minElapsed, long maxElapsed,
+             long receivedBytes, long sentBytes, long firstStartTime, long lastEndTime, long latencySum,
+             long connectTimeSum, int maxThreads) {
+        this.count = count;
+        this.errorCount = errorCount;
+        this.elapsedSum = elapsedSum;
+        this.elapsedSumOfSquares = elapsedSumOfSquares;
+        this.minElapsed = minElapsed;
+        this.maxElapsed = maxElapsed;
+        this.receivedBytes = receivedBytes;
+        this.sentBytes = sentBytes;
+        this.firstStartTime = firstStartTime;
+        this.lastEndTime = lastEndTime;
+        this.latencySum = latencySum;
+        this.connectTimeSum = connectTimeSum;
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * Adds values of other statistics to this one.
+     *
+     * @param other statistics to merge.
+     */
+    void merge(SampleStats other) {
+        count += other.count;
+        errorCount += other.errorCount;
+        elapsedSum += other.elapsedSum;
+        elapsedSumOfSquares += other.elapsedSumOfSquares;
+        minElapsed = Math.min(minElapsed, other.minElapsed);
+        maxElapsed = Math.max(maxElapsed, other.maxElapsed);
+        receivedBytes += other.receivedBytes;
+        sentBytes += other.sentBytes;
+        firstStartTime = Math.min(firstStartTime, other.firstStartTime);
+        lastEndTime = Math.max(lastEndTime, other.lastEndTime);
+        latencySum += other.latencySum;
+        connectTimeSum += other.connectTimeSum;
+        maxThreads = Math.max(maxThreads, other.maxThreads);
+        histogram.merge(other.histogram);
+    }
+
+    /**
+     * Writes all counters and the histogram.
+     *
+     * @param out target of the data.
+     * @throws IOException if the data can not be written.
+     */
+    void write(DataOutput out) throws IOException {
+        AggregateSnapshot.writeString(out, label);
+        out.writeLong(count);
+        out.writeLong(errorCount);
+        out.writeDouble(elapsedSum);
+        out.writeDouble(elapsedSumOfSquares);
+        out.writeLong(minElapsed);
+        out.writeLong(maxElapsed);
+        out.writeLong(receivedBytes);
+        out.writeLong(sentBytes);
+        out.writeLong(firstStartTime);
+        out.writeLong(lastEndTime);
+        out.writeLong(latencySum);
+        out.writeLong(connectTimeSum);
+        out.writeInt(maxThreads);
+        histogram.write(out);
+    }
+
+    /**
+     * Reads statistics written by {@link #write(DataOutput)}.
+     *
+     * @param in source of the data.
+     * @return statistics of one label.
+     * @throws IOException if the data can not be read.
+     */
+    static SampleStats read(DataInput in) throws IOException {
+        String label = AggregateSnapshot.readString(in);
+        long count = in.readLong();
+        long errorCount = in.readLong();
+        double elapsedSum = in.readDouble();
+        double elapsedSumOfSquares = in.readDouble();
+        long minElapsed = in.readLong();
+        long maxElapsed = in.readLong();
+        long receivedBytes = in.readLong();
+        long sentBytes = in.readLong();
+        long firstStartTime = in.readLong();
+        long lastEndTime = in.readLong();
+        long latencySum = in.readLong();
+        long connectTimeSum = in.readLong();
+        int maxThreads = in.readInt();
+        SampleStats stats = new SampleStats(label, LogHistogram.read(in));
+        stats.set(count, errorCount, elapsedSum, elapsedSumOfSquares, minElapsed, maxElapsed, receivedBytes, sentBytes,
+                firstStartTime, lastEndTime, latencySum, connectTimeSum, maxThreads);
+        return stats;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getErrorCount() {
+        return errorCount;
+    }
+
+    long getMin() {
+        return count == 0 ? 0 : minElapsed;
+    }
+
+    long getMax() {
+        return count == 0 ? 0 : maxElapsed;
+    }
+
+    double getMean() {
+        return count == 0 ? 0 : elapsedSum / count;
+    }
+
+    double getStandardDeviation() {
+        if (count == 0) {
+            return 0;
+        }
+        double mean = getMean();
+        return Math.sqrt(Math.max(0, (elapsedSumOfSquares / count) - (mean * mean)));
+    }
+
+    double getMeanLatency() {
+        return count == 0 ? 0 : (double) latencySum / count;
+    }
+
+    double getMeanConnectTime() {
+        return count == 0 ? 0 : (double) connectTimeSum / count;
+    }
+
+    /**
+     * @return the highest number of active threads in the thread group seen in samples.
+     */
+    int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * @return errors as a fraction of all samples (same as Calculator.getErrorPercentage).
+     */
+    double getErrorPercentage() {
+        return count == 0 ? 0 : (double) errorCount / count;
+    }
+
+    /**
+     * @return time between start of the first and end of the last sample in milliseconds.
+     */
+    long getElapsedTime() {
+        return count == 0 ? 0 : lastEndTime - firstStartTime;
+    }
+
+    /**
+     * @return number of samples per second.
+     */
+    double getRate() {
+        long elapsed = getElapsedTime();
+        return elapsed <= 0 ? 0 : ((double) count / elapsed) * 1000;
+    }
+
+    double getKBPerSecond() {
+        long elapsed = getElapsedTime();
+        return elapsed <= 0 ? 0 : ((double) receivedBytes / elapsed) * 1000 / 1024;
+    }
+
+    double getSentKBPerSecond() {
+        long elapsed = getElapsedTime();
+        return elapsed <= 0 ? 0 : ((double) sentBytes / elapsed) * 1000 / 1024;
+    }
+
+    /**
+     * @param percent requested percentile (0.0 - 1.0).
+     * @return elapsed time at given percentile.
+     */
+    double getPercentPoint(double percent) {
+        return histogram.getPercentPoint(percent);
+    }
+
+    double getAvgPageBytes() {
+        return (count > 0 && receivedBytes > 0) ? (double) receivedBytes / count : 0;
+    }
+
+    // Raw counters, used when statistics are merged into concurrent rows
+
+    double getElapsedSum() {
+        return elapsedSum;
+    }
+
+    double getElapsedSumOfSquares() {
+        return elapsedSumOfSquares;
+    }
+
+    /**
+     * @return the lowest elapsed time or Long.MAX_VALUE if there is no sample.
+     */
+    long getMinElapsed() {
+        return minElapsed;
+    }
+
+    /**
+     * @return the highest elapsed time or Long.MIN_VALUE if there is no sample.
+     */
+    long getMaxElapsed() {
+        return maxElapsed;
+    }
+
+    long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    long getSentBytes() {
+        return sentBytes;
+    }
+
+    long getFirstStartTime() {
+        return firstStartTime;
+    }
+
+    long getLastEndTime() {
+        return lastEndTime;
+    }
+
+    long getLatencySum() {
+        return latencySum;
+    }
+
+    long getConnectTimeSum() {
+        return connectTimeSum;
+    }
+
+    /**
+     * @return rough estimate of heap held by the row including its histogram (bytes).
+     */
+    long estimatedBytes() {
+        return 128 + histogram.estimatedBytes();
+    }
+
+    LogHistogram getHistogram() {
+        return histogram;
+    }
+}
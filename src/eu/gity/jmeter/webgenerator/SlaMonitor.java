@@ -0,0 +1,359 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Service level thresholds evaluated during the test. Rules are read from properties in order of their numbers:
+ * <pre>
+ *     webgenerator.sla.rule.1=p95 &gt; 800              (TOTAL, 95th percentile of response time in ms)
+ *     webgenerator.sla.rule.2=Login: p99 &gt; 2000       (label "Login", 99th percentile)
+ *     webgenerator.sla.rule.3=errors &gt; 5             (percentage of failed samples)
+ *     webgenerator.sla.rule.4=Search: throughput &lt; 50 (samples per second)
+ * </pre>
+ * Labels are the labels of the report (after rules of label normalization), "TOTAL" or no label is TOTAL.
+ *
+ * Every second all rules are checked against the last "webgenerator.sla.window" seconds of the clock
+ * (counts and errors from {@link RollingCounters}, percentiles from a ring of histograms kept only for labels
+ * of percentile rules). Windows end at the current second, so a test which stopped getting responses has
+ * an empty window (no throughput) instead of its last samples. Rules are checked after the test ran for the whole window. A rule fails when it is
+ * breached for "webgenerator.sla.duration" seconds, the first failed rule stops the test unless
+ * "webgenerator.sla.stop" is false. Results of all rules are written to the report, including a failed stop
+ * (e.g. distributed test run from non-GUI controller).
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class SlaMonitor {
+    /** Length of the window of evaluated samples in seconds. */
+    static final int WINDOW = Math.min(RollingCounters.SECONDS,
+            Math.max(1, JMeterUtils.getPropDefault("webgenerator.sla.window", 60)));
+    /** Seconds for which a rule has to be breached to fail. */
+    static final int DURATION = Math.max(0, JMeterUtils.getPropDefault("webgenerator.sla.duration", 30));
+    /** The first failed rule stops the test. */
+    static final boolean STOP = JMeterUtils.getPropDefault("webgenerator.sla.stop", true);
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final int MAX_RULES = 100;
+    private static final int HISTOGRAM_SLOTS = 12; // Slots of the ring of histograms, the window is split among them
+    private static final Pattern RULE = Pattern.compile(
+            "(?:(.*):)?\\s*(p\\d+(?:\\.\\d+)?|errors|throughput)\\s*([<>])\\s*(\\d+(?:\\.\\d+)?)\\s*");
+
+    private static final Logger log = LoggerFactory.getLogger(SlaMonitor.class);
+    private static final List<Rule> RULES = parseRules();
+
+    private final RollingCounters rates;
+    private final BooleanSupplier stopTest;
+    private final WindowHistogram total; // null if no rule checks percentiles of TOTAL
+    private final Map<String, WindowHistogram> histograms = new HashMap<>(); // Only read after construction
+    private final Result[] results = new Result[RULES.size()]; // Guarded by this
+    private boolean stopped; // Guarded by this
+    private boolean stopFailed; // Guarded by this
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param rates counters of samples and errors of the engine.
+     * @param stopTest stops the running test, returns false if the test could not be stopped.
+     */
+    SlaMonitor(RollingCounters rates, BooleanSupplier stopTest) {
+        this.rates = rates;
+        this.stopTest = stopTest;
+        WindowHistogram totalHistogram = null;
+        for (Rule rule : RULES) {
+            if (rule.percentile >= 0) {
+                if (rule.label == null) {
+                    totalHistogram = totalHistogram == null ? new WindowHistogram() : totalHistogram;
+                } else {
+                    histograms.computeIfAbsent(rule.label, label -> new WindowHistogram());
+                }
+            }
+        }
+        total = totalHistogram;
+        clear();
+    }
+
+    /**
+     * Adds response time of one sample to histograms of percentile rules. Called from sampler threads
+     * or from aggregator threads of the pipeline, returns immediately if there is no percentile rule.
+     *
+     * @param record copy of the sample.
+     */
+    void add(SampleRecord record) {
+        if (total == null && histograms.isEmpty()) {
+            return;
+        }
+        long second = Math.floorDiv(record.endTime, 1000);
+        long perSample = record.sampleCount > 1 ? record.elapsed / record.sampleCount : record.elapsed;
+        long count = Math.max(1, record.sampleCount);
+        if (total != null) {
+            total.record(second, perSample, count);
+        }
+        WindowHistogram histogram = record.label == null ? null : histograms.get(record.label);
+        if (histogram != null) {
+            histogram.record(second, perSample, count);
+        }
+    }
+
+    /**
+     * Starts evaluation of rules every second, nothing is done if there is no rule.
+     */
+    synchronized void start() {
+        if (RULES.isEmpty() || scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WebGenerator SLA");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::evaluate, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops evaluation of rules, results stay for the report.
+     */
+    void stop() {
+        ScheduledExecutorService running;
+        synchronized (this) {
+            running = scheduler;
+            scheduler = null;
+        }
+        if (running != null) {
+            running.shutdownNow();
+        }
+    }
+
+    /**
+     * Forgets results of rules and response times (e.g. for a new test).
+     */
+    synchronized void clear() {
+        for (int i = 0; i < results.length; i++) {
+            results[i] = new Result();
+        }
+        stopped = false;
+        stopFailed = false;
+        if (total != null) {
+            total.clear();
+        }
+        for (WindowHistogram histogram : histograms.values()) {
+            histogram.clear();
+        }
+    }
+
+    /**
+     * Checks all rules against the current window and stops the test after the first failed rule.
+     */
+    synchronized void evaluate() {
+        long now = System.currentTimeMillis();
+        long second = Math.floorDiv(now, 1000);
+        if (rates.span(WINDOW, second) < WINDOW) {
+            return; // Beginning of the test, window is not complete
+        }
+        boolean failed = false;
+        for (int i = 0; i < results.length; i++) {
+            Rule rule = RULES.get(i);
+            Result result = results[i];
+            result.value = value(rule, second);
+            if (Double.isNaN(result.value) || !rule.isBreached(result.value)) {
+                result.breachedSince = 0;
+                continue;
+            }
+            if (result.breachedSince == 0) {
+                result.breachedSince = now;
+            }
+            if (result.failedAt == 0 && now - result.breachedSince >= DURATION * 1000L) {
+                result.failedAt = now;
+                result.failedSince = result.breachedSince;
+                result.failedValue = result.value;
+                log.warn(JMeterUtils.getResString("web_generator_log_sla_failed") + " " + rule.text + " ("
+                        + result.value + ")");
+                failed = true;
+            }
+        }
+        if (failed && STOP && !stopped && !stopFailed) {
+            if (stopTest.getAsBoolean()) {
+                stopped = true;
+                log.warn(JMeterUtils.getResString("web_generator_log_sla_stop"));
+            } else {
+                stopFailed = true;
+                log.error(JMeterUtils.getResString("web_generator_log_sla_stop_failed"));
+            }
+        }
+    }
+
+    /**
+     * Writes table of rules ({"titles": [...], "items": [[rule, result, value, breached since, failed at], ...],
+     * "window": seconds, "duration": seconds, "stopped": boolean, "stopFailed": boolean}). Value of a failed rule is the value at the time
+     * of failure, otherwise the last evaluated value.
+     *
+     * @param json target of the text.
+     * @throws IOException if the text can not be written.
+     */
+    synchronized void write(JsonWriter json) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+        json.beginObject().name("titles").beginArray().value("Rule").value("Result").value("Value")
+                .value("Breached since").value("Failed at").endArray();
+        json.name("items").beginArray();
+        for (int i = 0; i < results.length; i++) {
+            Result result = results[i];
+            boolean failed = result.failedAt != 0;
+            double value = failed ? result.failedValue : result.value;
+            long since = failed ? result.failedSince : result.breachedSince;
+            json.beginArray().value(RULES.get(i).text);
+            json.value(failed ? "FAILED" : Double.isNaN(result.value) ? "NOT EVALUATED"
+                    : result.breachedSince != 0 ? "BREACHED" : "PASSED");
+            json.value(Double.isNaN(value) ? "" : String.valueOf(Math.round(value * 100) / 100.0));
+            json.value(since == 0 ? "" : format.format(new Date(since)));
+            json.value(failed ? format.format(new Date(result.failedAt)) : "");
+            json.endArray();
+        }
+        json.endArray();
+        json.name("window").value(WINDOW).name("duration").value(DURATION).name("stopped").value(stopped)
+                .name("stopFailed").value(stopFailed);
+        json.endObject();
+    }
+
+    /**
+     * @param rule checked rule.
+     * @param now the current second, end of the window.
+     * @return value of the metric of the rule in the window, NaN if there are no samples to compute it.
+     */
+    private double value(Rule rule, long now) {
+        if (rule.percentile >= 0) {
+            WindowHistogram histogram = rule.label == null ? total : histograms.get(rule.label);
+            return histogram.percentile(rule.percentile, now);
+        }
+        long[] window = rates.window(rule.label, WINDOW, now);
+        if (rule.throughput) {
+            return (double) window[0] / WINDOW;
+        }
+        return window[0] == 0 ? Double.NaN : window[1] * 100.0 / window[0];
+    }
+
+    /**
+     * Reads rules "webgenerator.sla.rule.N", N = 1, 2, ... Invalid rules are skipped.
+     */
+    private static List<Rule> parseRules() {
+        List<Rule> rules = new ArrayList<>();
+        for (int i = 1; i <= MAX_RULES; i++) {
+            String text = JMeterUtils.getPropDefault("webgenerator.sla.rule." + i, "").trim();
+            if (text.isEmpty()) {
+                continue;
+            }
+            Matcher matcher = RULE.matcher(text);
+            if (matcher.matches()) {
+                rules.add(new Rule(text, matcher.group(1), matcher.group(2), matcher.group(3), matcher.group(4)));
+            } else {
+                log.warn(JMeterUtils.getResString("web_generator_log_wrong_sla_rule") + " " + text);
+            }
+        }
+        return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Threshold of one metric of a label or of TOTAL.
+     */
+    private static final class Rule {
+        private final String text;
+        private final String label; // null for TOTAL
+        private final double percentile; // 0.0 - 1.0, negative if the metric is not a percentile
+        private final boolean throughput;
+        private final boolean upperLimit; // Breached by higher values
+        private final double threshold;
+
+        private Rule(String text, String label, String metric, String operator, String threshold) {
+            this.text = text;
+            String name = label == null ? "" : label.trim();
+            this.label = name.isEmpty() || name.equals("TOTAL") ? null : name;
+            this.percentile = metric.startsWith("p") ? Math.min(100, Double.parseDouble(metric.substring(1))) / 100 : -1;
+            this.throughput = metric.equals("throughput");
+            this.upperLimit = operator.equals(">");
+            this.threshold = Double.parseDouble(threshold);
+        }
+
+        private boolean isBreached(double value) {
+            return upperLimit ? value > threshold : value < threshold;
+        }
+    }
+
+    /**
+     * State of one rule.
+     */
+    private static final class Result {
+        private double value = Double.NaN; // The last evaluated value
+        private long breachedSince; // Start of the running breach, 0 if the rule is not breached
+        private long failedSince; // Start of the breach which failed the rule
+        private long failedAt; // 0 if the rule did not fail
+        private double failedValue;
+    }
+
+    /**
+     * Response times of the last window in a ring of histograms. Every slot covers the same number of seconds,
+     * slot of an expired period is cleared by the first sample of the new period. Percentile is taken from
+     * the slots of the periods before the current second, so the window is rounded up to whole slots.
+     */
+    private static final class WindowHistogram {
+        private final long width = (WINDOW + HISTOGRAM_SLOTS - 1) / HISTOGRAM_SLOTS; // Seconds of one slot
+        private final LogHistogram[] slots = new LogHistogram[HISTOGRAM_SLOTS];
+        private final AtomicLongArray periods = new AtomicLongArray(HISTOGRAM_SLOTS); // Period counted in every slot
+
+        private WindowHistogram() {
+            for (int i = 0; i < HISTOGRAM_SLOTS; i++) {
+                slots[i] = new LogHistogram();
+            }
+        }
+
+        private void record(long second, long elapsed, long count) {
+            long period = Math.floorDiv(second, width);
+            int slot = (int) Math.floorMod(period, HISTOGRAM_SLOTS);
+            if (periods.get(slot) != period) {
+                roll(slot, period);
+                if (periods.get(slot) != period) {
+                    return; // Sample is older than the window
+                }
+            }
+            slots[slot].record(elapsed, count);
+        }
+
+        private synchronized void roll(int slot, long period) {
+            if (periods.get(slot) < period) {
+                slots[slot].clear();
+                periods.set(slot, period);
+            }
+        }
+
+        private double percentile(double percent, long now) {
+            long last = Math.floorDiv(now, width);
+            LogHistogram window = new LogHistogram();
+            for (int i = 0; i < HISTOGRAM_SLOTS; i++) {
+                long period = periods.get(i);
+                if (period > last - HISTOGRAM_SLOTS && period <= last) {
+                    window.merge(slots[i]);
+                }
+            }
+            return window.getTotalCount() == 0 ? Double.NaN : window.getPercentPoint(percent);
+        }
+
+        private synchronized void clear() {
+            for (int i = 0; i < HISTOGRAM_SLOTS; i++) {
+                slots[i].clear();
+                periods.set(i, Long.MIN_VALUE);
+            }
+        }
+    }
+}
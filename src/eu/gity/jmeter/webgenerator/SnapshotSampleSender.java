@@ -0,0 +1,307 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.samplers.RemoteSampleListener;
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.samplers.SampleSender;
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sample sender of distributed tests which aggregates samples on the remote engine and sends only
+ * snapshots of the statistics ({@link AggregateSnapshot}) every "webgenerator.remote.interval" seconds
+ * and at the end of the test. The controller merges the snapshots into its engine, so network traffic
+ * and work of the controller do not grow with the number of samples.
+ *
+ * It is enabled on the controller by property mode=eu.gity.jmeter.webgenerator.SnapshotSampleSender.
+ * Labels include names of thread groups if "webgenerator.remote.include_group_name" is true on the remote
+ * engine, label rules and limit of labels ({@link LabelNormalizer}) are applied by every remote engine.
+ * Result file of the controller stays empty and other listeners receive only the snapshots.
+ *
+ * Sampler threads do not share a lock: samples are added to lock-free structures of the engine
+ * (label rows, URL trackers, over-time graphs, counters per second) and the snapshot is built
+ * from them only when it is sent.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+public class SnapshotSampleSender implements SampleSender, Serializable {
+    private static final long serialVersionUID = 240L;
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotSampleSender.class);
+
+    private final RemoteSampleListener listener;
+    // Created on the remote engine after the sender is deserialized
+    private transient Object lock;
+    private transient volatile Interval interval;
+    private transient ThreadLocal<SampleRecord> scratch;
+    private transient LabelNormalizer labels;
+    private transient boolean includeGroupName;
+    private transient volatile ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor called by SampleSenderFactory on the controller.
+     *
+     * @param listener listener of the controller receiving snapshots.
+     */
+    public SnapshotSampleSender(RemoteSampleListener listener) {
+        this.listener = listener;
+        init();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+        SampleRecord.clearErrorTypes(); // New test on the remote engine
+    }
+
+    private void init() {
+        lock = new Object();
+        interval = new Interval();
+        scratch = ThreadLocal.withInitial(SampleRecord::new);
+        labels = new LabelNormalizer(JMeterUtils.getResString("web_generator_row_other"));
+        includeGroupName = JMeterUtils.getPropDefault("webgenerator.remote.include_group_name", false);
+    }
+
+    @Override
+    public void sampleOccurred(SampleEvent event) {
+        if (scheduler == null) {
+            startScheduler();
+        }
+        SampleResult sample = event.getResult();
+        SampleRecord record = scratch.get().set(labels.normalize(sample.getSampleLabel(includeGroupName)), sample);
+        while (true) {
+            Interval current = interval;
+            current.writers.increment();
+            try {
+                if (current == interval) { // Not replaced by flush() in the meantime
+                    current.add(record);
+                    return;
+                }
+            } finally {
+                current.finished.increment();
+            }
+        }
+    }
+
+    @Override
+    public void testEnded() {
+        stopScheduler();
+        flush();
+        try {
+            listener.testEnded();
+        } catch (RemoteException e) {
+            log.error(JMeterUtils.getResString("web_generator_log_snapshot_failed") + " " + e);
+        }
+    }
+
+    @Override
+    public void testEnded(String host) {
+        stopScheduler();
+        flush();
+        try {
+            listener.testEnded(host);
+        } catch (RemoteException e) {
+            log.error(JMeterUtils.getResString("web_generator_log_snapshot_failed") + " " + e);
+        }
+    }
+
+    private void startScheduler() {
+        synchronized (lock) {
+            if (scheduler != null) {
+                return; // Started by another sampler thread
+            }
+            long seconds = Math.max(1, JMeterUtils.getPropDefault("webgenerator.remote.interval", 5));
+            ScheduledExecutorService started = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "WebGenerator snapshot sender");
+                thread.setDaemon(true);
+                return thread;
+            });
+            started.scheduleWithFixedDelay(this::flush, seconds, seconds, TimeUnit.SECONDS);
+            scheduler = started;
+        }
+    }
+
+    private void stopScheduler() {
+        ScheduledExecutorService running;
+        synchronized (lock) {
+            running = scheduler;
+            scheduler = null;
+        }
+        if (running != null) {
+            running.shutdown();
+            try {
+                running.awaitTermination(1, TimeUnit.MINUTES); // A snapshot being sent arrives before the end
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sends statistics collected since the previous snapshot. Samplers continue with a new interval
+     * while the snapshot of the previous one is built and sent.
+     */
+    private void flush() {
+        Interval sent;
+        synchronized (lock) {
+            sent = interval;
+            if (sent.isEmpty()) {
+                return;
+            }
+            interval = new Interval();
+        }
+        sent.awaitWriters();
+        try {
+            listener.sampleOccurred(new SampleEvent(new SnapshotResult(sent.snapshot()), "WebGenerator"));
+        } catch (RemoteException e) {
+            log.error(JMeterUtils.getResString("web_generator_log_snapshot_failed") + " " + e);
+        }
+    }
+
+    /**
+     * Statistics of samples collected since the previous snapshot. Sampler threads add samples concurrently,
+     * threads which started adding are counted, so the sender reads a replaced interval only after the last
+     * of them has finished.
+     */
+    private static final class Interval {
+        private static final int RECENT_SECONDS = 64; // Power of 2
+
+        private final LongAdder writers = new LongAdder();
+        private final LongAdder finished = new LongAdder();
+        private final StripedAggregator stats = new StripedAggregator("TOTAL"); // TOTAL row is not sent
+        private final ConcurrentMap<String, UrlTracker> urls = new ConcurrentHashMap<>();
+        private final Queue<String> order = new ConcurrentLinkedQueue<>(); // Labels in order of their first samples
+        private final TimeSeriesAggregator timeSeries = new TimeSeriesAggregator();
+        private final ConcurrentMap<Long, SecondCounts> seconds = new ConcurrentHashMap<>();
+        // Counts of the last seconds by second modulo length, so a sample of a known second does not box the key
+        private final AtomicReferenceArray<SecondCounts> recent = new AtomicReferenceArray<>(RECENT_SECONDS);
+
+        private void add(SampleRecord record) {
+            stats.add(record);
+            UrlTracker labelUrls = urls.get(record.label);
+            if (labelUrls == null) {
+                labelUrls = urls.computeIfAbsent(record.label, label -> {
+                    order.add(label);
+                    return new UrlTracker();
+                });
+            }
+            labelUrls.add(record.url);
+            timeSeries.add(record);
+            second(Math.floorDiv(record.endTime, 1000)).add(record);
+        }
+
+        private SecondCounts second(long second) {
+            int slot = (int) (second & (RECENT_SECONDS - 1));
+            SecondCounts counts = recent.get(slot);
+            if (counts == null || counts.second != second) {
+                counts = seconds.computeIfAbsent(second, SecondCounts::new);
+                recent.set(slot, counts);
+            }
+            return counts;
+        }
+
+        private boolean isEmpty() {
+            return order.isEmpty();
+        }
+
+        private void awaitWriters() {
+            // Finished threads are read first, both sums only grow, so equal sums mean no thread is adding
+            while (finished.sum() != writers.sum()) {
+                Thread.yield();
+            }
+        }
+
+        private AggregateSnapshot snapshot() {
+            JtlImporter.Chunk chunk = new JtlImporter.Chunk();
+            for (String label : order) {
+                chunk.stats.put(label, stats.get(label));
+                chunk.urls.put(label, urls.get(label));
+                chunk.totalUrls.merge(urls.get(label)); // Merged once per interval, not per sample
+            }
+            Map<Long, Map<String, Map<String, long[]>>> counts = new TreeMap<>();
+            for (SecondCounts second : seconds.values()) {
+                Map<String, Map<String, long[]>> labelCounts = new TreeMap<>();
+                for (Map.Entry<String, ConcurrentMap<String, Count>> label : second.labels.entrySet()) {
+                    Map<String, long[]> codeCounts = new TreeMap<>();
+                    for (Map.Entry<String, Count> code : label.getValue().entrySet()) {
+                        Count count = code.getValue();
+                        codeCounts.put(code.getKey(), new long[]{count.samples.sum(), count.errors.sum()});
+                    }
+                    labelCounts.put(label.getKey(), codeCounts);
+                }
+                counts.put(second.second, labelCounts);
+            }
+            return new AggregateSnapshot(chunk, timeSeries, counts);
+        }
+    }
+
+    /**
+     * Samples and errors of one second per label and response code.
+     */
+    private static final class SecondCounts {
+        private final long second;
+        private final ConcurrentMap<String, ConcurrentMap<String, Count>> labels = new ConcurrentHashMap<>();
+
+        private SecondCounts(long second) {
+            this.second = second;
+        }
+
+        private void add(SampleRecord record) {
+            ConcurrentMap<String, Count> codes = labels.get(record.label);
+            if (codes == null) {
+                codes = labels.computeIfAbsent(record.label, label -> new ConcurrentHashMap<>());
+            }
+            String code = String.valueOf(record.responseCode);
+            Count count = codes.get(code);
+            if (count == null) {
+                count = codes.computeIfAbsent(code, c -> new Count());
+            }
+            count.samples.add(record.sampleCount);
+            count.errors.add(record.errorCount);
+        }
+    }
+
+    private static final class Count {
+        private final LongAdder samples = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    /**
+     * Pseudo-sample carrying the snapshot to the listeners of the controller.
+     */
+    static final class SnapshotResult extends SampleResult {
+        private static final long serialVersionUID = 240L;
+
+        private final AggregateSnapshot snapshot;
+
+        private SnapshotResult(AggregateSnapshot snapshot) {
+            this.snapshot = snapshot;
+            setSampleLabel("WebGenerator snapshot");
+            setSuccessful(true);
+        }
+
+        /**
+         * @return statistics of samples of the remote engine.
+         */
+        AggregateSnapshot getSnapshot() {
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package eu.gity.jmeter.webgenerator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects statistics of samples per label without global lock.
+ * Every label has its own row of lock-free counters, so sampler threads with different labels
+ * never meet on the same monitor. TOTAL row is not updated on every sample, it is merged
+ * from label rows (including their histograms) when statistics are read.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class StripedAggregator implements SampleAggregator {
+    private final ConcurrentMap<String, LabelRow> rows = new ConcurrentHashMap<>();
+    private final String totalLabel;
+
+    StripedAggregator(String totalLabel) {
+        this.totalLabel = totalLabel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void add(SampleRecord record) {
+        // get() first, because computeIfAbsent locks the bin even if the row already exists on Java 8
+        LabelRow row = rows.get(record.label);
+        if (row == null) {
+            row = rows.computeIfAbsent(record.label, LabelRow::new);
+        }
+        row.add(record);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void merge(SampleStats stats) {
+        rows.computeIfAbsent(stats.getLabel(), LabelRow::new).merge(stats);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SampleStats get(String label) {
+        LabelRow row = rows.get(label);
+        return row == null ? null : row.snapshot();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<SampleStats> snapshot() {
+        List<SampleStats> result = new ArrayList<>(rows.size());
+        for (LabelRow row : rows.values()) {
+            result.add(row.snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SampleStats total() {
+        SampleStats total = new SampleStats(totalLabel);
+        for (LabelRow row : rows.values()) {
+            total.merge(row.snapshot());
+        }
+        return total;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        rows.clear();
+    }
+
+    /**
+     * Lock-free counters of one label.
+     */
+    private static final class LabelRow {
+        private final String label;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errorCount = new LongAdder();
+        private final DoubleAdder elapsedSum = new DoubleAdder();
+        private final DoubleAdder elapsedSumOfSquares = new DoubleAdder();
+        private final LongAccumulator minElapsed = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        private final LongAccumulator maxElapsed = new LongAccumulator(Math::max, Long.MIN_VALUE);
+        private final LongAdder receivedBytes = new LongAdder();
+        private final LongAdder sentBytes = new LongAdder();
+        private final LongAccumulator firstStartTime = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        private final LongAccumulator lastEndTime = new LongAccumulator(Math::max, Long.MIN_VALUE);
+        private final LongAdder latencySum = new LongAdder();
+        private final LongAdder connectTimeSum = new LongAdder();
+        private final LongAccumulator maxThreads = new LongAccumulator(Math::max, 0);
+        private final LogHistogram histogram = new LogHistogram();
+
+        private LabelRow(String label) {
+            this.label = label;
+        }
+
+        private void add(SampleRecord record) {
+            long elapsed = record.elapsed;
+            int sampleCount = record.sampleCount;
+            long perSample = sampleCount > 1 ? elapsed / sampleCount : elapsed;
+            count.add(sampleCount);
+            errorCount.add(record.errorCount);
+            elapsedSum.add(elapsed);
+            elapsedSumOfSquares.add(sampleCount > 1 ? ((double) elapsed * elapsed) / sampleCount : (double) elapsed * elapsed);
+            minElapsed.accumulate(perSample);
+            maxElapsed.accumulate(perSample);
+            receivedBytes.add(record.receivedBytes);
+            sentBytes.add(record.sentBytes);
+            firstStartTime.accumulate(record.startTime);
+            lastEndTime.accumulate(record.endTime);
+            latencySum.add(record.latency);
+            connectTimeSum.add(record.connectTime);
+            maxThreads.accumulate(record.groupThreads);
+            histogram.record(perSample, sampleCount);
+        }
+
+        private void merge(SampleStats stats) {
+            count.add(stats.getCount());
+            errorCount.add(stats.getErrorCount());
+            elapsedSum.add(stats.getElapsedSum());
+            elapsedSumOfSquares.add(stats.getElapsedSumOfSquares());
+            minElapsed.accumulate(stats.getMinElapsed());
+            maxElapsed.accumulate(stats.getMaxElapsed());
+            receivedBytes.add(stats.getReceivedBytes());
+            sentBytes.add(stats.getSentBytes());
+            firstStartTime.accumulate(stats.getFirstStartTime());
+            lastEndTime.accumulate(stats.getLastEndTime());
+            latencySum.add(stats.getLatencySum());
+            connectTimeSum.add(stats.getConnectTimeSum());
+            maxThreads.accumulate(stats.getMaxThreads());
+            histogram.merge(stats.getHistogram());
+        }
+
+        private SampleStats snapshot() {
+            SampleStats stats = new SampleStats(label, histogram.copy());
+            stats.set(count.sum(), errorCount.sum(), elapsedSum.sum(), elapsedSumOfSquares.sum(), minElapsed.get(),
+                    maxElapsed.get(), receivedBytes.sum(), sentBytes.sum(), firstStartTime.get(), lastEndTime.get(),
+                    latencySum.sum(), connectTimeSum.sum(), (int) maxThreads.get());
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,1019 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.util.JMeterUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects data of over-time graphs while samples arrive.
+ * Samples are counted into time buckets (hits, response codes, transactions, response times,
+ * latencies, connect times, bytes and active threads), so graphs of the website are created from the buckets
+ * and the result file does not have to be parsed again after the test.
+ *
+ * Buckets start at the minimal granularity. When number of buckets exceeds twice the point budget of graphs,
+ * the width of new buckets is doubled and the filled buckets are kept aside. Buckets kept aside at the previous
+ * switch are merged into the new width then, after all threads which were writing to them finished,
+ * so at most one older width is kept. All buckets are merged
+ * to the final width when graphs are created, so memory does not grow with the length of the test.
+ *
+ * Sampler threads find buckets, bars of the distribution and numbers of threads by primitive indexes, so adding
+ * a sample boxes nothing. Number of error types is limited by "webgenerator.errors.max_types", further types
+ * are counted together.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class TimeSeriesAggregator {
+    /** Minimal width of one bucket of over-time graphs in milliseconds. */
+    static final long MIN_GRANULARITY = Math.max(1,
+            JMeterUtils.getPropDefault("webgenerator.granularity.min", 1000L));
+    /** Highest number of points of one series in graphs. */
+    static final int POINTS = Math.max(10, JMeterUtils.getPropDefault("webgenerator.graph.points", 500));
+    /** Width of one bar of the response time distribution in milliseconds. */
+    static final long DISTRIBUTION_GRANULARITY = Math.max(1,
+            JMeterUtils.getPropDefault("webgenerator.distribution_granularity", 100L));
+    /** Highest number of distinct error types, errors of further types are counted as {@link #OTHER_ERRORS}. */
+    static final int MAX_ERROR_TYPES = Math.max(1, JMeterUtils.getPropDefault("webgenerator.errors.max_types", 500));
+    /** Error type of errors over the limit of error types. */
+    static final String OTHER_ERRORS = "Other error types";
+    private static final int MAX_BAR = (int) Math.min(Integer.MAX_VALUE, LogHistogram.MAX_VALUE / DISTRIBUTION_GRANULARITY);
+
+    private static final long ENTRY_BYTES = 80; // Entry of a concurrent map with its key and counter
+    private static final long BUCKET_BYTES = 160;
+    private static final long LABEL_POINT_BYTES = 240;
+    private static final long ADDER_BYTES = 24; // LongAdder without contention cells
+
+    private volatile Resolution current = new Resolution(MIN_GRANULARITY); // Buckets filled by new samples
+    private final List<Resolution> retired = new ArrayList<>(); // Buckets of finer widths, guarded by this
+    private final ConcurrentMap<String, GrowingArray<LongAdder>> distribution = new ConcurrentHashMap<>(); // Bars
+    private final ConcurrentMap<String, GrowingArray<Mean>> timeVsThreads = new ConcurrentHashMap<>(); // By threads
+    private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final AtomicInteger errorTypes = new AtomicInteger(); // Number of keys of errors except OTHER_ERRORS
+    private final ConcurrentMap<String, String> threadGroups = new ConcurrentHashMap<>(); // Thread name -> group
+    private final LongAccumulator begin = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator end = new LongAccumulator(Math::max, Long.MIN_VALUE);
+    private final LongAdder sampleCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+
+    /**
+     * Adds one sample to the buckets. Called from sampler threads or from aggregator threads of the pipeline.
+     *
+     * @param record copy of the sample.
+     */
+    void add(SampleRecord record) {
+        begin.accumulate(record.startTime);
+        end.accumulate(record.endTime);
+        sampleCount.add(record.sampleCount);
+        errorCount.add(record.errorCount);
+        if (!record.success && record.failureMessage != null) {
+            errorCounter(record.failureMessage).add(record.errorCount > 0 ? record.errorCount : 1);
+        }
+
+        addToBucket(record.startTime, record, null, null); // Hits are counted by start of the sample
+        addToBucket(record.endTime, record, threadGroup(record.threadName), null);
+
+        long perSample = record.sampleCount > 1 ? record.elapsed / record.sampleCount : record.elapsed;
+        GrowingArray<LongAdder> bars = distribution.get(record.label);
+        if (bars == null) {
+            bars = distribution.computeIfAbsent(record.label, l -> new GrowingArray<>(LongAdder::new));
+        }
+        bars.get(bar(perSample)).add(record.sampleCount);
+
+        GrowingArray<Mean> threads = timeVsThreads.get(record.label);
+        if (threads == null) {
+            threads = timeVsThreads.computeIfAbsent(record.label, l -> new GrowingArray<>(Mean::new));
+        }
+        threads.get(Math.max(record.allThreads, 0)).add(record.elapsed, record.sampleCount);
+    }
+
+    /**
+     * @param elapsed response time of one sample.
+     * @return index of the bar of the response time distribution, times over the histogram range share the last bar.
+     */
+    private static int bar(long elapsed) {
+        return (int) Math.min(Math.max(elapsed, 0) / DISTRIBUTION_GRANULARITY, MAX_BAR);
+    }
+
+    /**
+     * Removes all collected data.
+     */
+    synchronized void clear() {
+        current = new Resolution(MIN_GRANULARITY);
+        retired.clear();
+        distribution.clear();
+        timeVsThreads.clear();
+        errors.clear();
+        errorTypes.set(0);
+        threadGroups.clear();
+        begin.reset();
+        end.reset();
+        sampleCount.reset();
+        errorCount.reset();
+    }
+
+    /**
+     * Adds data collected by other aggregator (e.g. a snapshot of a remote engine). Buckets are added
+     * to the buckets of the current width, which is doubled first if the other buckets are wider.
+     *
+     * @param other aggregator which is not modified concurrently.
+     */
+    void merge(TimeSeriesAggregator other) {
+        for (Resolution resolution : other.resolutions()) {
+            while (current.granularity < resolution.granularity) {
+                coarsen(current);
+            }
+            for (Bucket bucket : resolution.buckets()) {
+                addToBucket(bucket.index * resolution.granularity, null, null, bucket);
+            }
+        }
+        for (Map.Entry<String, GrowingArray<LongAdder>> label : other.distribution.entrySet()) {
+            GrowingArray<LongAdder> bars = distribution.computeIfAbsent(label.getKey(), l -> new GrowingArray<>(LongAdder::new));
+            GrowingArray<LongAdder> otherBars = label.getValue();
+            for (int bar = 0; bar < otherBars.length(); bar++) {
+                LongAdder count = otherBars.peek(bar);
+                if (count != null) {
+                    bars.get(bar).add(count.sum());
+                }
+            }
+        }
+        for (Map.Entry<String, GrowingArray<Mean>> label : other.timeVsThreads.entrySet()) {
+            GrowingArray<Mean> threads = timeVsThreads.computeIfAbsent(label.getKey(), l -> new GrowingArray<>(Mean::new));
+            GrowingArray<Mean> otherThreads = label.getValue();
+            for (int count = 0; count < otherThreads.length(); count++) {
+                Mean mean = otherThreads.peek(count);
+                if (mean != null) {
+                    threads.get(count).add(mean);
+                }
+            }
+        }
+        for (Map.Entry<String, LongAdder> error : other.errors.entrySet()) {
+            errorCounter(error.getKey()).add(error.getValue().sum());
+        }
+        begin.accumulate(other.begin.get());
+        end.accumulate(other.end.get());
+        sampleCount.add(other.sampleCount.sum());
+        errorCount.add(other.errorCount.sum());
+    }
+
+    /**
+     * Writes all buckets and counters.
+     *
+     * @param out target of the data.
+     * @throws IOException if the data can not be written.
+     */
+    void write(DataOutput out) throws IOException {
+        List<Resolution> resolutions = resolutions();
+        out.writeInt(resolutions.size());
+        for (Resolution resolution : resolutions) {
+            List<Bucket> buckets = resolution.buckets();
+            out.writeLong(resolution.granularity);
+            out.writeInt(buckets.size());
+            for (Bucket bucket : buckets) {
+                bucket.write(out);
+            }
+        }
+        Map<String, GrowingArray<LongAdder>> bars = new TreeMap<>(distribution);
+        out.writeInt(bars.size());
+        for (Map.Entry<String, GrowingArray<LongAdder>> label : bars.entrySet()) {
+            SortedMap<Long, Long> counts = barCounts(label.getValue());
+            AggregateSnapshot.writeString(out, label.getKey());
+            out.writeInt(counts.size());
+            for (Map.Entry<Long, Long> bar : counts.entrySet()) {
+                out.writeLong(bar.getKey());
+                out.writeLong(bar.getValue());
+            }
+        }
+        Map<String, GrowingArray<Mean>> threadMeans = new TreeMap<>(timeVsThreads);
+        out.writeInt(threadMeans.size());
+        for (Map.Entry<String, GrowingArray<Mean>> label : threadMeans.entrySet()) {
+            GrowingArray<Mean> threads = label.getValue();
+            int length = threads.length();
+            int size = 0;
+            for (int count = 0; count < length; count++) {
+                size += threads.peek(count) == null ? 0 : 1;
+            }
+            AggregateSnapshot.writeString(out, label.getKey());
+            out.writeInt(size);
+            for (int count = 0; count < length && size > 0; count++) {
+                Mean mean = threads.peek(count);
+                if (mean != null) {
+                    out.writeInt(count);
+                    mean.write(out);
+                    size--;
+                }
+            }
+        }
+        Map<String, Long> errorTypes = getErrors();
+        out.writeInt(errorTypes.size());
+        for (Map.Entry<String, Long> error : errorTypes.entrySet()) {
+            AggregateSnapshot.writeString(out, error.getKey());
+            out.writeLong(error.getValue());
+        }
+        out.writeLong(begin.get());
+        out.writeLong(end.get());
+        out.writeLong(sampleCount.sum());
+        out.writeLong(errorCount.sum());
+    }
+
+    /**
+     * Reads aggregator written by {@link #write(DataOutput)}. Result is used only to be merged.
+     *
+     * @param in source of the data.
+     * @return aggregator with the written data.
+     * @throws IOException if the data can not be read.
+     */
+    static TimeSeriesAggregator read(DataInput in) throws IOException {
+        TimeSeriesAggregator series = new TimeSeriesAggregator();
+        int resolutions = in.readInt();
+        for (int r = 0; r < resolutions; r++) {
+            long granularity = in.readLong();
+            int buckets = in.readInt();
+            if (buckets < 0) {
+                throw new IOException("Invalid number of buckets " + buckets);
+            }
+            Resolution resolution = new Resolution(granularity, buckets);
+            for (int b = 0; b < buckets; b++) {
+                resolution.insert(Bucket.read(in));
+            }
+            series.retired.add(resolution); // Not published yet, the lock is not needed
+        }
+        int labels = in.readInt();
+        for (int l = 0; l < labels; l++) {
+            GrowingArray<LongAdder> bars = series.distribution.computeIfAbsent(
+                    AggregateSnapshot.readString(in), k -> new GrowingArray<>(LongAdder::new));
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                long bar = in.readLong();
+                bars.get((int) Math.min(Math.max(bar, 0), MAX_BAR)).add(in.readLong());
+            }
+        }
+        labels = in.readInt();
+        for (int l = 0; l < labels; l++) {
+            GrowingArray<Mean> threads = series.timeVsThreads.computeIfAbsent(
+                    AggregateSnapshot.readString(in), k -> new GrowingArray<>(Mean::new));
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                threads.get(Math.max(in.readInt(), 0)).read(in);
+            }
+        }
+        int errorTypes = in.readInt();
+        for (int i = 0; i < errorTypes; i++) {
+            series.errorCounter(AggregateSnapshot.readString(in)).add(in.readLong());
+        }
+        series.begin.accumulate(in.readLong());
+        series.end.accumulate(in.readLong());
+        series.sampleCount.add(in.readLong());
+        series.errorCount.add(in.readLong());
+        return series;
+    }
+
+    /**
+     * @return rough estimate of heap held by buckets, distributions, errors and thread groups (bytes).
+     */
+    long estimatedBytes() {
+        long bytes = 512;
+        for (Resolution resolution : resolutions()) {
+            bytes += 4L * resolution.table.length();
+            for (Bucket bucket : resolution.buckets()) {
+                bytes += BUCKET_BYTES + LABEL_POINT_BYTES * bucket.labels.size();
+            }
+        }
+        for (GrowingArray<LongAdder> counts : distribution.values()) {
+            bytes += ENTRY_BYTES + (ADDER_BYTES + 4) * counts.length();
+        }
+        for (GrowingArray<Mean> means : timeVsThreads.values()) {
+            bytes += ENTRY_BYTES + (2 * ADDER_BYTES + 20) * means.length();
+        }
+        return bytes + ENTRY_BYTES * (errors.size() + 2L * threadGroups.size());
+    }
+
+    private synchronized List<Resolution> resolutions() {
+        List<Resolution> resolutions = new ArrayList<>(retired);
+        resolutions.add(current);
+        return resolutions;
+    }
+
+    /**
+     * @return start time of the first sample or Long.MAX_VALUE if there was no sample.
+     */
+    long getBegin() {
+        return begin.get();
+    }
+
+    /**
+     * @return end time of the last sample or Long.MIN_VALUE if there was no sample.
+     */
+    long getEnd() {
+        return end.get();
+    }
+
+    /**
+     * @return number of samples.
+     */
+    long getSampleCount() {
+        return sampleCount.sum();
+    }
+
+    /**
+     * @return number of failed samples.
+     */
+    long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    /**
+     * @return width of buckets currently filled by samples, final width of graph buckets can not be smaller.
+     */
+    long getGranularity() {
+        return current.granularity;
+    }
+
+    /**
+     * Merges all buckets to the given width.
+     *
+     * @param granularity width of buckets in milliseconds, power of two multiple of the current granularity.
+     * @return graphs of the merged buckets.
+     */
+    Frame frame(long granularity) {
+        SortedMap<Long, Bucket> merged = new TreeMap<>();
+        for (Resolution resolution : resolutions()) {
+            for (Bucket bucket : resolution.buckets()) {
+                long index = bucket.index * resolution.granularity / granularity;
+                bucket.mergeInto(merged.computeIfAbsent(index, Bucket::new));
+            }
+        }
+        return new Frame(merged, granularity);
+    }
+
+    /**
+     * @return number of errors per type of error.
+     */
+    Map<String, Long> getErrors() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : errors.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    /**
+     * Buckets merged to the final width, graphs of the website are created from them.
+     */
+    final class Frame {
+        private final SortedMap<Long, Bucket> buckets;
+        private final long granularity;
+
+        private Frame(SortedMap<Long, Bucket> buckets, long granularity) {
+            this.buckets = buckets;
+            this.granularity = granularity;
+        }
+
+        /**
+         * @return graph of hits per second.
+         */
+        Graph hitsPerSecond() {
+            Graph graph = new Graph("Hits Per Second", granularity);
+            Graph.Series hits = graph.addSeries("Hits");
+            for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+                hits.add(time(entry.getKey()), perSecond(entry.getValue().hits.sum()));
+            }
+            return graph;
+        }
+
+        /**
+         * @return graph of response codes per second, one series per code.
+         */
+        Graph codesPerSecond() {
+            Graph graph = new Graph("Codes Per Second", granularity);
+            Map<String, Graph.Series> series = new TreeMap<>();
+            for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+                for (Map.Entry<String, LongAdder> code : entry.getValue().codes.entrySet()) {
+                    series.computeIfAbsent(code.getKey(), graph::addSeries)
+                            .add(time(entry.getKey()), perSecond(code.getValue().sum()));
+                }
+            }
+            return graph;
+        }
+
+        /**
+         * @return graph of successful and failed transactions per second, two series per label.
+         */
+        Graph transactionsPerSecond() {
+            Graph graph = new Graph("Transactions Per Second", granularity);
+            Map<String, Graph.Series> series = new TreeMap<>();
+            for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+                for (Map.Entry<String, LabelPoint> label : entry.getValue().labels.entrySet()) {
+                    long x = time(entry.getKey());
+                    long success = label.getValue().success.sum();
+                    long failure = label.getValue().failure.sum();
+                    if (success > 0) {
+                        series.computeIfAbsent(label.getKey() + "-success", graph::addSeries).add(x, perSecond(success));
+                    }
+                    if (failure > 0) {
+                        series.computeIfAbsent(label.getKey() + "-failure", graph::addSeries).add(x, perSecond(failure));
+                    }
+                }
+            }
+            return graph;
+        }
+
+        /**
+         * @return graph of average response times, one series per label.
+         */
+        Graph responseTimesOverTime() {
+            return labelMeans("Response Time Over Time", 0);
+        }
+
+        /**
+         * @return graph of average latencies, one series per label.
+         */
+        Graph latenciesOverTime() {
+            return labelMeans("Latencies Over Time", 1);
+        }
+
+        /**
+         * @return graph of average connect times, one series per label.
+         */
+        Graph connectTimeOverTime() {
+            return labelMeans("Connect Time Over Time", 2);
+        }
+
+        /**
+         * @return graph of received and sent bytes per second.
+         */
+        Graph bytesThroughputOverTime() {
+            Graph graph = new Graph("Bytes Throughput Over Time", granularity);
+            Graph.Series received = graph.addSeries("Bytes received per second");
+            Graph.Series sent = graph.addSeries("Bytes sent per second");
+            for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+                long x = time(entry.getKey());
+                received.add(x, perSecond(entry.getValue().receivedBytes.sum()));
+                sent.add(x, perSecond(entry.getValue().sentBytes.sum()));
+            }
+            return graph;
+        }
+
+        /**
+         * @return graph of average number of active threads, one series per thread group.
+         */
+        Graph activeThreadsOverTime() {
+            Graph graph = new Graph("Active Threads Over Time", granularity);
+            Map<String, Graph.Series> series = new TreeMap<>();
+            for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+                for (Map.Entry<String, Mean> group : entry.getValue().threads.entrySet()) {
+                    series.computeIfAbsent(group.getKey(), graph::addSeries)
+                            .add(time(entry.getKey()), group.getValue().get());
+                }
+            }
+            return graph;
+        }
+
+        /**
+         * @return graph of minimal and maximal response time of successful samples.
+         */
+        Graph responseTimePercentilesOverTime() {
+            Graph graph = new Graph("Response Time Percentiles Over Time (successful requests only)", granularity);
+            Graph.Series min = graph.addSeries("Min");
+            Graph.Series max = graph.addSeries("Max");
+            for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+                Bucket bucket = entry.getValue();
+                if (bucket.successElapsed.count.sum() > 0) {
+                    long x = time(entry.getKey());
+                    min.add(x, bucket.minElapsed.get());
+                    max.add(x, bucket.maxElapsed.get());
+                }
+            }
+            return graph;
+        }
+
+        /**
+         * @return graph of average response time against throughput, for successful and failed samples.
+         */
+        Graph responseTimeVsRequest() {
+            return versusRequest("Response Time Vs Request", false);
+        }
+
+        /**
+         * @return graph of average latency against throughput, for successful and failed samples.
+         */
+        Graph latencyVsRequest() {
+            return versusRequest("Latencies Vs Request", true);
+        }
+
+        /**
+         * @return graph of number of samples per response time range, one series per label.
+         */
+        Graph responseTimeDistribution() {
+            Graph graph = new Graph("Response Time Distribution", DISTRIBUTION_GRANULARITY, Graph.Reduction.SUM);
+            for (Map.Entry<String, GrowingArray<LongAdder>> label : new TreeMap<>(distribution).entrySet()) {
+                Graph.Series series = graph.addSeries(label.getKey());
+                for (Map.Entry<Long, Long> bar : barCounts(label.getValue()).entrySet()) {
+                    series.add(bar.getKey() * DISTRIBUTION_GRANULARITY, bar.getValue());
+                }
+            }
+            return graph;
+        }
+
+        /**
+         * @return graph of average response time against number of active threads, one series per label.
+         */
+        Graph timeVsThreads() {
+            Graph graph = new Graph("Time VS Threads", 0, Graph.Reduction.MEAN);
+            for (Map.Entry<String, GrowingArray<Mean>> label : new TreeMap<>(timeVsThreads).entrySet()) {
+                Graph.Series series = graph.addSeries(label.getKey());
+                GrowingArray<Mean> threads = label.getValue();
+                for (int count = 0; count < threads.length(); count++) {
+                    Mean mean = threads.peek(count);
+                    if (mean != null) {
+                        series.add(count, mean.get(), mean.count.sum());
+                    }
+                }
+            }
+            return graph;
+        }
+
+        /**
+         * Graph of average values of every label.
+         *
+         * @param title title of the graph.
+         * @param metric 0 - response time, 1 - latency, 2 - connect time.
+         */
+        private Graph labelMeans(String title, int metric) {
+            Graph graph = new Graph(title, granularity);
+            Map<String, Graph.Series> series = new TreeMap<>();
+            for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+                for (Map.Entry<String, LabelPoint> label : entry.getValue().labels.entrySet()) {
+                    LabelPoint point = label.getValue();
+                    long count = point.count.sum();
+                    if (count == 0) {
+                        continue;
+                    }
+                    LongAdder sum = metric == 0 ? point.elapsedSum : metric == 1 ? point.latencySum : point.connectTimeSum;
+                    series.computeIfAbsent(label.getKey(), graph::addSeries)
+                            .add(time(entry.getKey()), (double) sum.sum() / count);
+                }
+            }
+            return graph;
+        }
+
+        /**
+         * Graph of average values against number of requests per second of the bucket.
+         *
+         * @param title title of the graph.
+         * @param latency true for latency, false for response time.
+         */
+        private Graph versusRequest(String title, boolean latency) {
+            Graph graph = new Graph(title, 0, Graph.Reduction.MEAN);
+            SortedMap<Long, Mean> successes = new TreeMap<>();
+            SortedMap<Long, Mean> failures = new TreeMap<>();
+            for (Bucket bucket : buckets.values()) {
+                long requests = Math.round(perSecond(bucket.hits.sum()));
+                Mean success = latency ? bucket.successLatency : bucket.successElapsed;
+                Mean failure = latency ? bucket.failureLatency : bucket.failureElapsed;
+                if (success.count.sum() > 0) {
+                    successes.computeIfAbsent(requests, r -> new Mean()).add(success);
+                }
+                if (failure.count.sum() > 0) {
+                    failures.computeIfAbsent(requests, r -> new Mean()).add(failure);
+                }
+            }
+            Graph.Series successSeries = graph.addSeries("Successes");
+            for (Map.Entry<Long, Mean> entry : successes.entrySet()) {
+                successSeries.add(entry.getKey(), entry.getValue().get(), entry.getValue().count.sum());
+            }
+            Graph.Series failureSeries = graph.addSeries("Failures");
+            for (Map.Entry<Long, Mean> entry : failures.entrySet()) {
+                failureSeries.add(entry.getKey(), entry.getValue().get(), entry.getValue().count.sum());
+            }
+            return graph;
+        }
+
+        private long time(long index) {
+            return index * granularity;
+        }
+
+        private double perSecond(long count) {
+            return count * 1000.0 / granularity;
+        }
+    }
+
+    /**
+     * Adds sample or other bucket to the bucket of given time, the bucket is created if it does not exist.
+     * Threads writing to a resolution are counted, the resolution is re-checked after the count is raised,
+     * so once it is retired no new write starts and {@link #coarsen(Resolution)} can wait for the running ones.
+     *
+     * @param time time of the sample.
+     * @param record sample, only its hits are added if group is null.
+     * @param group thread group of the sample.
+     * @param source bucket merged instead of the sample, or null.
+     */
+    private void addToBucket(long time, SampleRecord record, String group, Bucket source) {
+        while (true) {
+            Resolution resolution = current;
+            Bucket bucket = null;
+            resolution.writers.increment();
+            try {
+                if (resolution == current) {
+                    bucket = resolution.bucket(time / resolution.granularity); // Null if the table is full
+                }
+                if (bucket != null && source != null) {
+                    source.mergeInto(bucket);
+                } else if (bucket != null && group == null) {
+                    bucket.hits.add(record.sampleCount);
+                } else if (bucket != null) {
+                    bucket.add(record, group);
+                }
+            } finally {
+                resolution.finished.increment();
+            }
+            // Outside of the write, coarsen waits for writers of the retired resolution while holding the lock
+            if (bucket == null || resolution.size.get() > 2 * POINTS) {
+                coarsen(resolution);
+            }
+            if (bucket != null) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Doubles width of new buckets. Filled buckets are kept aside, samples which are still added to them
+     * by other threads are not lost. Buckets kept aside at the previous switch are merged into the new width
+     * after writers of them finished. The new table is large enough for all merged buckets, so no count is lost
+     * even if they are far apart.
+     *
+     * @param full resolution which has too many buckets.
+     */
+    private synchronized void coarsen(Resolution full) {
+        if (current != full) {
+            return;
+        }
+        int merged = 0;
+        for (Resolution old : retired) {
+            old.awaitWriters();
+            merged += old.size.get();
+        }
+        Resolution next = new Resolution(full.granularity * 2, Math.max(2 * POINTS, merged));
+        for (Resolution old : retired) {
+            for (Bucket bucket : old.buckets()) {
+                bucket.mergeInto(next.bucket(bucket.index * old.granularity / next.granularity));
+            }
+        }
+        retired.clear();
+        retired.add(full);
+        current = next;
+    }
+
+    /**
+     * Counter of errors of given type. Types over the limit share the counter of {@link #OTHER_ERRORS}.
+     */
+    private LongAdder errorCounter(String type) {
+        LongAdder counter = errors.get(type);
+        if (counter != null) {
+            return counter;
+        }
+        if (OTHER_ERRORS.equals(type) || errorTypes.get() >= MAX_ERROR_TYPES) {
+            return counter(errors, OTHER_ERRORS);
+        }
+        return errors.computeIfAbsent(type, t -> {
+            errorTypes.incrementAndGet();
+            return new LongAdder();
+        });
+    }
+
+    /**
+     * @param bars bars of the response time distribution of one label.
+     * @return number of samples by index of the bar, only non-empty bars.
+     */
+    private static SortedMap<Long, Long> barCounts(GrowingArray<LongAdder> bars) {
+        SortedMap<Long, Long> counts = new TreeMap<>();
+        for (int bar = 0; bar < bars.length(); bar++) {
+            LongAdder count = bars.peek(bar);
+            if (count != null && count.sum() > 0) {
+                counts.put((long) bar, count.sum());
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Name of thread group from name of thread ("Group name 1-5" gives "Group name"), names are cached
+     * to avoid creation of a substring for every sample.
+     */
+    private String threadGroup(String threadName) {
+        if (threadName == null) {
+            return "";
+        }
+        String group = threadGroups.get(threadName);
+        if (group == null) {
+            int space = threadName.lastIndexOf(' ');
+            group = space > 0 ? threadName.substring(0, space) : threadName;
+            threadGroups.put(threadName, group);
+        }
+        return group;
+    }
+
+    private static <K> LongAdder counter(ConcurrentMap<K, LongAdder> counters, K key) {
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> new LongAdder());
+        }
+        return counter;
+    }
+
+    /**
+     * Lock-free sum and count of values.
+     */
+    private static final class Mean {
+        private final LongAdder sum = new LongAdder();
+        private final LongAdder count = new LongAdder();
+
+        private void add(long value, long occurrences) {
+            sum.add(value);
+            count.add(occurrences);
+        }
+
+        private void add(Mean other) {
+            sum.add(other.sum.sum());
+            count.add(other.count.sum());
+        }
+
+        private void write(DataOutput out) throws IOException {
+            out.writeLong(sum.sum());
+            out.writeLong(count.sum());
+        }
+
+        private void read(DataInput in) throws IOException {
+            add(in.readLong(), in.readLong());
+        }
+
+        private double get() {
+            long c = count.sum();
+            return c == 0 ? 0 : (double) sum.sum() / c;
+        }
+    }
+
+    /**
+     * Counters of one label in one bucket.
+     */
+    private static final class LabelPoint {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder success = new LongAdder();
+        private final LongAdder failure = new LongAdder();
+        private final LongAdder elapsedSum = new LongAdder();
+        private final LongAdder latencySum = new LongAdder();
+        private final LongAdder connectTimeSum = new LongAdder();
+    }
+
+    /**
+     * Buckets of one width in an open addressing table keyed by the primitive index of the bucket.
+     * Consecutive indexes take consecutive slots, so lookups of a running test do not probe.
+     */
+    private static final class Resolution {
+        private final long granularity;
+        private final AtomicReferenceArray<Bucket> table;
+        private final int mask;
+        private final AtomicInteger size = new AtomicInteger();
+        private final LongAdder writers = new LongAdder(); // Threads which started a write
+        private final LongAdder finished = new LongAdder(); // Threads which finished a write
+
+        private Resolution(long granularity) {
+            this(granularity, 2 * POINTS);
+        }
+
+        /**
+         * @param granularity width of buckets in milliseconds.
+         * @param buckets expected number of buckets, the table is at most half full with them.
+         */
+        private Resolution(long granularity, int buckets) {
+            this.granularity = granularity;
+            int length = Integer.highestOneBit(Math.max(2 * buckets, 16) - 1) << 1;
+            table = new AtomicReferenceArray<>(length);
+            mask = length - 1;
+        }
+
+        /**
+         * @param index index of the bucket (start time divided by the granularity).
+         * @return bucket of the index, created if it does not exist, or null if the table is full.
+         */
+        private Bucket bucket(long index) {
+            int start = (int) index & mask;
+            for (int i = 0; i <= mask; i++) {
+                int slot = (start + i) & mask;
+                Bucket bucket = table.get(slot);
+                if (bucket == null) {
+                    Bucket created = new Bucket(index);
+                    if (table.compareAndSet(slot, null, created)) {
+                        size.incrementAndGet();
+                        return created;
+                    }
+                    bucket = table.get(slot);
+                }
+                if (bucket.index == index) {
+                    return bucket;
+                }
+            }
+            return null;
+        }
+
+        private void awaitWriters() {
+            // Finished writes are read first, both sums only grow, so equal sums mean no thread is writing
+            while (finished.sum() != writers.sum()) {
+                Thread.yield();
+            }
+        }
+
+        /**
+         * Inserts bucket read from a snapshot, bucket of the same index is merged with it.
+         */
+        private void insert(Bucket bucket) throws IOException {
+            Bucket target = bucket(bucket.index);
+            if (target == null) {
+                throw new IOException("Too many buckets of granularity " + granularity);
+            }
+            bucket.mergeInto(target);
+        }
+
+        /**
+         * @return all buckets in no particular order.
+         */
+        private List<Bucket> buckets() {
+            List<Bucket> buckets = new ArrayList<>(size.get());
+            for (int i = 0; i <= mask; i++) {
+                Bucket bucket = table.get(i);
+                if (bucket != null) {
+                    buckets.add(bucket);
+                }
+            }
+            return buckets;
+        }
+    }
+
+    /**
+     * Counters of one time bucket.
+     */
+    private static final class Bucket {
+        private final long index;
+        private final LongAdder hits = new LongAdder();
+        private final ConcurrentMap<String, LabelPoint> labels = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, LongAdder> codes = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, Mean> threads = new ConcurrentHashMap<>();
+        private final LongAdder receivedBytes = new LongAdder();
+        private final LongAdder sentBytes = new LongAdder();
+        private final LongAccumulator minElapsed = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        private final LongAccumulator maxElapsed = new LongAccumulator(Math::max, Long.MIN_VALUE);
+        private final Mean successElapsed = new Mean();
+        private final Mean failureElapsed = new Mean();
+        private final Mean successLatency = new Mean();
+        private final Mean failureLatency = new Mean();
+
+        private Bucket(long index) {
+            this.index = index;
+        }
+
+        private void add(SampleRecord record, String threadGroup) {
+            LabelPoint point = labels.get(record.label);
+            if (point == null) {
+                point = labels.computeIfAbsent(record.label, l -> new LabelPoint());
+            }
+            point.count.add(record.sampleCount);
+            point.elapsedSum.add(record.elapsed);
+            point.latencySum.add(record.latency);
+            point.connectTimeSum.add(record.connectTime);
+            (record.success ? point.success : point.failure).add(record.sampleCount);
+
+            counter(codes, record.responseCode == null ? "" : record.responseCode).add(record.sampleCount);
+
+            Mean active = threads.get(threadGroup);
+            if (active == null) {
+                active = threads.computeIfAbsent(threadGroup, g -> new Mean());
+            }
+            active.add(record.groupThreads, 1);
+
+            receivedBytes.add(record.receivedBytes);
+            sentBytes.add(record.sentBytes);
+            if (record.success) {
+                long perSample = record.sampleCount > 1 ? record.elapsed / record.sampleCount : record.elapsed;
+                minElapsed.accumulate(perSample);
+                maxElapsed.accumulate(perSample);
+                successElapsed.add(record.elapsed, record.sampleCount);
+                successLatency.add(record.latency, record.sampleCount);
+            } else {
+                failureElapsed.add(record.elapsed, record.sampleCount);
+                failureLatency.add(record.latency, record.sampleCount);
+            }
+        }
+
+        private void write(DataOutput out) throws IOException {
+            out.writeLong(index);
+            out.writeLong(hits.sum());
+            Map<String, LabelPoint> points = new TreeMap<>(labels);
+            out.writeInt(points.size());
+            for (Map.Entry<String, LabelPoint> entry : points.entrySet()) {
+                LabelPoint point = entry.getValue();
+                AggregateSnapshot.writeString(out, entry.getKey());
+                out.writeLong(point.count.sum());
+                out.writeLong(point.success.sum());
+                out.writeLong(point.failure.sum());
+                out.writeLong(point.elapsedSum.sum());
+                out.writeLong(point.latencySum.sum());
+                out.writeLong(point.connectTimeSum.sum());
+            }
+            Map<String, LongAdder> codeCounts = new TreeMap<>(codes);
+            out.writeInt(codeCounts.size());
+            for (Map.Entry<String, LongAdder> entry : codeCounts.entrySet()) {
+                AggregateSnapshot.writeString(out, entry.getKey());
+                out.writeLong(entry.getValue().sum());
+            }
+            Map<String, Mean> groups = new TreeMap<>(threads);
+            out.writeInt(groups.size());
+            for (Map.Entry<String, Mean> entry : groups.entrySet()) {
+                AggregateSnapshot.writeString(out, entry.getKey());
+                entry.getValue().write(out);
+            }
+            out.writeLong(receivedBytes.sum());
+            out.writeLong(sentBytes.sum());
+            out.writeLong(minElapsed.get());
+            out.writeLong(maxElapsed.get());
+            successElapsed.write(out);
+            failureElapsed.write(out);
+            successLatency.write(out);
+            failureLatency.write(out);
+        }
+
+        private static Bucket read(DataInput in) throws IOException {
+            Bucket bucket = new Bucket(in.readLong());
+            bucket.hits.add(in.readLong());
+            int labels = in.readInt();
+            for (int i = 0; i < labels; i++) {
+                LabelPoint point = bucket.labels.computeIfAbsent(AggregateSnapshot.readString(in), l -> new LabelPoint());
+                point.count.add(in.readLong());
+                point.success.add(in.readLong());
+                point.failure.add(in.readLong());
+                point.elapsedSum.add(in.readLong());
+                point.latencySum.add(in.readLong());
+                point.connectTimeSum.add(in.readLong());
+            }
+            int codes = in.readInt();
+            for (int i = 0; i < codes; i++) {
+                counter(bucket.codes, AggregateSnapshot.readString(in)).add(in.readLong());
+            }
+            int groups = in.readInt();
+            for (int i = 0; i < groups; i++) {
+                bucket.threads.computeIfAbsent(AggregateSnapshot.readString(in), g -> new Mean()).read(in);
+            }
+            bucket.receivedBytes.add(in.readLong());
+            bucket.sentBytes.add(in.readLong());
+            bucket.minElapsed.accumulate(in.readLong());
+            bucket.maxElapsed.accumulate(in.readLong());
+            bucket.successElapsed.read(in);
+            bucket.failureElapsed.read(in);
+            bucket.successLatency.read(in);
+            bucket.failureLatency.read(in);
+            return bucket;
+        }
+
+        /**
+         * Adds all counters of this bucket to the target bucket.
+         */
+        private void mergeInto(Bucket target) {
+            target.hits.add(hits.sum());
+            for (Map.Entry<String, LabelPoint> entry : labels.entrySet()) {
+                LabelPoint point = entry.getValue();
+                LabelPoint targetPoint = target.labels.computeIfAbsent(entry.getKey(), l -> new LabelPoint());
+                targetPoint.count.add(point.count.sum());
+                targetPoint.success.add(point.success.sum());
+                targetPoint.failure.add(point.failure.sum());
+                targetPoint.elapsedSum.add(point.elapsedSum.sum());
+                targetPoint.latencySum.add(point.latencySum.sum());
+                targetPoint.connectTimeSum.add(point.connectTimeSum.sum());
+            }
+            for (Map.Entry<String, LongAdder> entry : codes.entrySet()) {
+                counter(target.codes, entry.getKey()).add(entry.getValue().sum());
+            }
+            for (Map.Entry<String, Mean> entry : threads.entrySet()) {
+                target.threads.computeIfAbsent(entry.getKey(), g -> new Mean()).add(entry.getValue());
+            }
+            target.receivedBytes.add(receivedBytes.sum());
+            target.sentBytes.add(sentBytes.sum());
+            target.minElapsed.accumulate(minElapsed.get());
+            target.maxElapsed.accumulate(maxElapsed.get());
+            target.successElapsed.add(successElapsed);
+            target.failureElapsed.add(failureElapsed);
+            target.successLatency.add(successLatency);
+            target.failureLatency.add(failureLatency);
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.util.JMeterUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tracks unique URLs of one label.
+ * URLs are tracked exactly in a hash set until the configured limit is reached. After that the tracker switches
+ * to a HyperLogLog sketch, which estimates number of unique URLs in fixed memory, and to a bounded list
+ * of the most frequent URLs (Space-Saving algorithm).
+ *
+ * Sampler threads add URLs concurrently. A URL already seen in the exact phase is found without a lock, a new one
+ * takes the monitor of the tracker (at most "webgenerator.urls.exact_limit" times), so it can not be lost while
+ * the tracker switches to the sketch. Frequent URLs are counted in stripes selected by the hash of the URL,
+ * every stripe is a min-heap of counters reused for new URLs, so counting does not allocate.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class UrlTracker {
+    /** Number of unique URLs tracked exactly. */
+    static final int EXACT_LIMIT = JMeterUtils.getPropDefault("webgenerator.urls.exact_limit", 1000);
+    /** Number of the most frequent URLs kept after the exact limit is reached. */
+    static final int TOP_K = Math.max(1, JMeterUtils.getPropDefault("webgenerator.urls.top_k", 20));
+    /** Precision of HyperLogLog sketch, number of registers is 2^precision (standard error 1.04 / sqrt(2^precision)). */
+    static final int SKETCH_PRECISION = Math.min(Math.max(JMeterUtils.getPropDefault("webgenerator.urls.sketch_precision", 12), 4), 16);
+
+    private static final long URL_BYTES = 200; // Entry of the map, node of the queue and the string
+    private static final int STRIPES = 4; // Power of 2
+
+    private final Map<String, Boolean> exact = new ConcurrentHashMap<>();
+    private final Queue<String> order = new ConcurrentLinkedQueue<>(); // Order in which URLs appeared
+    private volatile Sketch sketch; // Set by the monitor of the tracker
+
+    /**
+     * Adds URL of a sample.
+     *
+     * @param url URL of the sample, null is ignored.
+     */
+    void add(String url) {
+        if (url == null) {
+            return;
+        }
+        Sketch current = sketch;
+        if (current == null) {
+            if (exact.containsKey(url)) {
+                return; // Copied to the sketch if the tracker is switching now
+            }
+            synchronized (this) {
+                current = sketch;
+                if (current == null) {
+                    if (exact.putIfAbsent(url, Boolean.TRUE) == null) {
+                        order.add(url);
+                        if (exact.size() > EXACT_LIMIT) {
+                            switchToSketch();
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+        current.hll.add(url);
+        current.count(url, 1, 0);
+    }
+
+    /**
+     * @return true if number of unique URLs is only estimated.
+     */
+    boolean isEstimated() {
+        return sketch != null;
+    }
+
+    /**
+     * @return exact or estimated number of unique URLs.
+     */
+    long getUniqueCount() {
+        Sketch current = sketch;
+        return current == null ? exact.size() : current.hll.estimate();
+    }
+
+    /**
+     * @return rough estimate of heap held by the tracker, an URL is counted as a string of 50 characters (bytes).
+     */
+    long estimatedBytes() {
+        Sketch current = sketch;
+        long bytes = 128 + URL_BYTES * exact.size();
+        if (current != null) {
+            bytes += 16 + 4L * current.hll.registers.length() + (URL_BYTES + 64) * STRIPES * TOP_K;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return all URLs in order of appearance or the most frequent URLs if the exact limit was reached.
+     */
+    List<String> getUrls() {
+        Sketch current = sketch;
+        if (current == null) {
+            return new ArrayList<>(order);
+        }
+        List<String> urls = new ArrayList<>();
+        for (Frequent frequent : current.frequent()) {
+            urls.add(frequent.url);
+        }
+        return urls;
+    }
+
+    /**
+     * Adds URLs tracked by other tracker. Exactly tracked URLs are added one by one in their order,
+     * sketches are merged register by register and counts of frequent URLs are summed.
+     * Other tracker may be updated concurrently, URLs added meanwhile may be missed.
+     *
+     * @param other source of URLs.
+     */
+    void merge(UrlTracker other) {
+        Sketch otherSketch = other.sketch;
+        if (otherSketch == null) {
+            for (String url : other.order) {
+                add(url);
+            }
+            return;
+        }
+        switchToSketch();
+        Sketch current = sketch;
+        current.hll.merge(otherSketch.hll);
+        for (Frequent frequent : otherSketch.frequent()) {
+            current.count(frequent.url, frequent.count, frequent.error);
+        }
+    }
+
+    /**
+     * Writes tracked URLs: exactly tracked URLs in their order or the sketch and the frequent URLs.
+     *
+     * @param out target of the data.
+     * @throws IOException if the data can not be written.
+     */
+    void write(DataOutput out) throws IOException {
+        Sketch current = sketch;
+        out.writeBoolean(current != null);
+        if (current == null) {
+            List<String> urls = new ArrayList<>(order);
+            out.writeInt(urls.size());
+            for (String url : urls) {
+                AggregateSnapshot.writeString(out, url);
+            }
+            return;
+        }
+        HyperLogLog hll = current.hll;
+        out.writeByte(hll.precision);
+        for (int i = 0; i < hll.registers.length(); i++) {
+            out.writeByte(hll.registers.get(i));
+        }
+        List<Frequent> frequent = current.frequent();
+        out.writeInt(frequent.size());
+        for (Frequent entry : frequent) {
+            AggregateSnapshot.writeString(out, entry.url);
+            out.writeLong(entry.count);
+            out.writeLong(entry.error);
+        }
+    }
+
+    /**
+     * Reads tracker written by {@link #write(DataOutput)}.
+     *
+     * @param in source of the data.
+     * @return tracker with the written URLs.
+     * @throws IOException if the data can not be read or the sketch has different precision.
+     */
+    static UrlTracker read(DataInput in) throws IOException {
+        UrlTracker tracker = new UrlTracker();
+        if (!in.readBoolean()) {
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                tracker.add(AggregateSnapshot.readString(in));
+            }
+            return tracker;
+        }
+        int precision = in.readByte();
+        if (precision != SKETCH_PRECISION) {
+            throw new IOException("Sketch precision " + precision + " differs from " + SKETCH_PRECISION);
+        }
+        Sketch read = new Sketch();
+        for (int i = 0; i < read.hll.registers.length(); i++) {
+            read.hll.registers.set(i, in.readByte());
+        }
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            read.count(AggregateSnapshot.readString(in), in.readLong(), in.readLong());
+        }
+        tracker.sketch = read;
+        return tracker;
+    }
+
+    /**
+     * Removes all tracked URLs.
+     */
+    synchronized void clear() {
+        sketch = null;
+        exact.clear();
+        order.clear();
+    }
+
+    /**
+     * Moves exactly tracked URLs to the sketch and releases the hash set.
+     */
+    private synchronized void switchToSketch() {
+        if (sketch != null) {
+            return;
+        }
+        Sketch created = new Sketch();
+        for (String url : order) {
+            created.hll.add(url);
+            created.count(url, 1, 0);
+        }
+        sketch = created;
+        exact.clear();
+        order.clear();
+    }
+
+    /**
+     * HyperLogLog sketch and counters of frequent URLs, published together.
+     */
+    private static final class Sketch {
+        private final HyperLogLog hll = new HyperLogLog(SKETCH_PRECISION);
+        private final SpaceSaving[] stripes = new SpaceSaving[STRIPES];
+
+        private Sketch() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new SpaceSaving(TOP_K);
+            }
+        }
+
+        private void count(String url, long count, long error) {
+            int hash = url.hashCode();
+            stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)].count(url, hash, count, error);
+        }
+
+        /**
+         * @return the most frequent URLs of all stripes, the most frequent first.
+         */
+        private List<Frequent> frequent() {
+            List<Frequent> all = new ArrayList<>(STRIPES * TOP_K);
+            for (SpaceSaving stripe : stripes) {
+                stripe.copyTo(all);
+            }
+            all.sort((a, b) -> Long.compare(b.count, a.count));
+            return all.size() > TOP_K ? new ArrayList<>(all.subList(0, TOP_K)) : all;
+        }
+    }
+
+    /**
+     * Counted URL copied from the counters.
+     */
+    private static final class Frequent {
+        private final String url;
+        private final long count;
+        private final long error;
+
+        private Frequent(String url, long count, long error) {
+            this.url = url;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Space-Saving counters of a part of the URLs. Counters form a min-heap by count and are found through
+     * an open-addressing index. When all counters are used, the least frequent one (the root) is given to the new
+     * URL, which inherits its count as an error bound. Nothing is allocated after construction.
+     */
+    private static final class SpaceSaving {
+        private final String[] urls; // Heap ordered by counts
+        private final long[] counts;
+        private final long[] errors;
+        private final String[] keys; // Index: URL -> position in the heap
+        private final int[] positions;
+        private final int mask;
+        private int size;
+
+        private SpaceSaving(int capacity) {
+            urls = new String[capacity];
+            counts = new long[capacity];
+            errors = new long[capacity];
+            int indexSize = Integer.highestOneBit(Math.max(4, capacity * 2 - 1)) << 1; // Load factor at most 1/2
+            keys = new String[indexSize];
+            positions = new int[indexSize];
+            mask = indexSize - 1;
+        }
+
+        private synchronized void count(String url, int hash, long count, long error) {
+            int slot = find(url, hash);
+            if (keys[slot] != null) {
+                int position = positions[slot];
+                counts[position] += count;
+                errors[position] += error;
+                siftDown(position);
+                return;
+            }
+            if (size < urls.length) {
+                int position = size++;
+                urls[position] = url;
+                counts[position] = count;
+                errors[position] = error;
+                keys[slot] = url;
+                positions[slot] = position;
+                siftUp(position);
+                return;
+            }
+            long min = counts[0];
+            remove(urls[0]);
+            slot = find(url, hash); // Removal may have moved the free slot of the URL
+            urls[0] = url;
+            counts[0] = min + count;
+            errors[0] = min + error;
+            keys[slot] = url;
+            positions[slot] = 0;
+            siftDown(0);
+        }
+
+        private synchronized void copyTo(List<Frequent> target) {
+            for (int i = 0; i < size; i++) {
+                target.add(new Frequent(urls[i], counts[i], errors[i]));
+            }
+        }
+
+        /**
+         * @return slot of the URL in the index or the free slot where it belongs.
+         */
+        private int find(String url, int hash) {
+            int slot = spread(hash) & mask;
+            String key = keys[slot];
+            while (key != null && !key.equals(url)) {
+                slot = (slot + 1) & mask;
+                key = keys[slot];
+            }
+            return slot;
+        }
+
+        /**
+         * Removes URL from the index, following entries of its probe sequence are shifted back (no tombstones).
+         */
+        private void remove(String url) {
+            int slot = find(url, url.hashCode());
+            keys[slot] = null;
+            int next = (slot + 1) & mask;
+            while (keys[next] != null) {
+                int home = spread(keys[next].hashCode()) & mask;
+                if (((next - home) & mask) >= ((next - slot) & mask)) { // Entry may move to the freed slot
+                    keys[slot] = keys[next];
+                    positions[slot] = positions[next];
+                    keys[next] = null;
+                    slot = next;
+                }
+                next = (next + 1) & mask;
+            }
+        }
+
+        private void siftUp(int position) {
+            while (position > 0) {
+                int parent = (position - 1) >>> 1;
+                if (counts[parent] <= counts[position]) {
+                    return;
+                }
+                swap(position, parent);
+                position = parent;
+            }
+        }
+
+        private void siftDown(int position) {
+            while (true) {
+                int child = 2 * position + 1;
+                if (child >= size) {
+                    return;
+                }
+                if (child + 1 < size && counts[child + 1] < counts[child]) {
+                    child++;
+                }
+                if (counts[position] <= counts[child]) {
+                    return;
+                }
+                swap(position, child);
+                position = child;
+            }
+        }
+
+        private void swap(int a, int b) {
+            String url = urls[a];
+            urls[a] = urls[b];
+            urls[b] = url;
+            long count = counts[a];
+            counts[a] = counts[b];
+            counts[b] = count;
+            long error = errors[a];
+            errors[a] = errors[b];
+            errors[b] = error;
+            positions[find(urls[a], urls[a].hashCode())] = a;
+            positions[find(urls[b], urls[b].hashCode())] = b;
+        }
+
+        private static int spread(int hash) {
+            return (hash * 0x9E3779B9) ^ (hash >>> 16);
+        }
+    }
+
+    /**
+     * HyperLogLog cardinality sketch with lock-free registers.
+     */
+    static final class HyperLogLog {
+        private final int precision;
+        private final AtomicIntegerArray registers;
+
+        HyperLogLog(int precision) {
+            this.precision = precision;
+            this.registers = new AtomicIntegerArray(1 << precision);
+        }
+
+        void add(String value) {
+            long hash = hash(value);
+            int index = (int) (hash >>> (64 - precision));
+            int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+            int current = registers.get(index);
+            while (rank > current && !registers.compareAndSet(index, current, rank)) {
+                current = registers.get(index);
+            }
+        }
+
+        /**
+         * Adds values of other sketch with the same precision (maximum of every register).
+         */
+        void merge(HyperLogLog other) {
+            for (int i = 0; i < registers.length(); i++) {
+                int rank = other.registers.get(i);
+                int current = registers.get(i);
+                while (rank > current && !registers.compareAndSet(i, current, rank)) {
+                    current = registers.get(i);
+                }
+            }
+        }
+
+        long estimate() {
+            int m = registers.length();
+            double sum = 0;
+            int zeros = 0;
+            for (int i = 0; i < m; i++) {
+                int r = registers.get(i);
+                sum += 1.0 / (1L << r);
+                if (r == 0) {
+                    zeros++;
+                }
+            }
+            double alpha = 0.7213 / (1 + 1.079 / m);
+            double estimate = alpha * m * m / sum;
+            if (estimate <= 2.5 * m && zeros > 0) {
+                estimate = m * Math.log((double) m / zeros); // Linear counting for small cardinalities
+            }
+            return Math.round(estimate);
+        }
+
+        /**
+         * 64-bit FNV-1a hash of characters finished with MurmurHash3 mixing.
+         */
+        private static long hash(String value) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < value.length(); i++) {
+                h ^= value.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
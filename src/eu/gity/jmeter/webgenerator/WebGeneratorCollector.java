@@ -0,0 +1,269 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.gui.GuiPackage;
+import org.apache.jmeter.report.dashboard.GenerationException;
+import org.apache.jmeter.reporters.ResultCollector;
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.samplers.SampleSaveConfiguration;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.util.JOrphanUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * Test element of the Web Generator.
+ * Collects results during testing and at the end of the test generates website. It does not use any GUI component,
+ * everything is driven by properties of the test element, so it works in GUI and in non-GUI (jmeter -n) runs.
+ * GUI class WebGenerator is only a view of this element.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+public class WebGeneratorCollector extends ResultCollector {
+    private static final long serialVersionUID = 240L; // UID of module WebGenerator
+
+    private static final Logger log = LoggerFactory.getLogger(WebGeneratorCollector.class);
+
+    static final String WSPATH = "WebGenerator.websitePath";
+    static final String GENAFTE = "WebGenerator.checkGenerateAfterTest";
+    static final String INCLTHN = "WebGenerator.inclThreadGrpName";
+
+    // Engine and test run are shared with clones, JMeter runs the test on a clone of the element shown in GUI
+    private transient WebGeneratorEngine engine;
+    private transient TestRun run;
+
+    /**
+     * Constructor of test element WebGenerator.
+     */
+    public WebGeneratorCollector() {
+        super();
+        configureSaving(this);
+    }
+
+    /**
+     * Modifies sample save config to save only necessary sample result fields into the result file
+     *
+     * @param rc ResultCollector of this visualizer
+     */
+    static void configureSaving(ResultCollector rc) {
+        SampleSaveConfiguration saveConfig = new SampleSaveConfiguration(false);
+        saveConfig.setTime(true);  //Elapsed time
+        saveConfig.setIdleTime(true); //Iddle time
+        saveConfig.setSuccess(true); //Success
+        saveConfig.setLabel(true); //Label
+        saveConfig.setThreadName(true); //Thread name
+        saveConfig.setTimestamp(true); //Timestamp
+        saveConfig.setCode(true); // Response code
+        saveConfig.setSentBytes(true); //sent byt count
+        saveConfig.setMessage(true); // response message?
+        saveConfig.setFieldNames(true); //Field names
+        saveConfig.setAssertionResultsFailureMessage(true);//Assertion Results Failure Message
+        saveConfig.setThreadCounts(true); //Active Thread counts
+        saveConfig.setLatency(true); //Latency
+        saveConfig.setSampleCount(true); //Sample and error count
+        saveConfig.setDataType(true); //Data type
+        saveConfig.setBytes(true); //received byte count
+        saveConfig.setUrl(true); //URL
+        saveConfig.setConnectTime(true); //connect time
+        saveConfig.setHostname(true); // hostname
+        rc.setSaveConfig(saveConfig);
+    }
+
+    /**
+     * @return engine of this element, created on first use (also after deserialization on remote engine).
+     */
+    synchronized WebGeneratorEngine getEngine() {
+        if (engine == null) {
+            engine = new WebGeneratorEngine();
+        }
+        return engine;
+    }
+
+    private synchronized TestRun getRun() {
+        if (run == null) {
+            run = new TestRun();
+        }
+        return run;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Clone shares engine with this element, so statistics collected by the running clone are visible in GUI.
+     */
+    @Override
+    public Object clone() {
+        WebGeneratorCollector clone = (WebGeneratorCollector) super.clone();
+        clone.engine = getEngine();
+        clone.run = getRun();
+        return clone;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Distributed test calls this method for every remote host, the engine and the spool are started
+     * only for the first one.
+     */
+    @Override
+    public void testStarted(String host) {
+        String filename = getFilename();
+        boolean spooled = ResultSpool.ENABLED && !filename.isEmpty();
+        if (spooled) {
+            // Without file name the super class doesn't open the CSV file, results are written to the spool only
+            setFilename("");
+            try {
+                super.testStarted(host);
+            } finally {
+                setFilename(filename);
+            }
+        } else {
+            super.testStarted(host);
+        }
+        TestRun testRun = getRun();
+        synchronized (testRun) {
+            if (testRun.hosts++ > 0) {
+                return;
+            }
+            if (spooled) {
+                try {
+                    testRun.spool = new ResultSpool.Writer(ResultSpool.spoolFile(filename));
+                } catch (IOException e) {
+                    log.error(JMeterUtils.getResString("web_generator_log_spool_failed") + " " + e);
+                }
+            }
+            getEngine().testStarted(getPropertyAsBoolean(INCLTHN), filename);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Result file is closed by super class, so the website can be generated from complete results.
+     * In distributed test the engine is stopped and the website generated only after the last host.
+     * In GUI the website is generated in background.
+     */
+    @Override
+    public void testEnded(String host) {
+        super.testEnded(host);
+        TestRun testRun = getRun();
+        synchronized (testRun) {
+            if (testRun.hosts == 0 || --testRun.hosts > 0) {
+                return;
+            }
+            closeSpool(testRun);
+        }
+        WebGeneratorEngine webEngine = getEngine();
+        webEngine.testEnded();
+        if (getPropertyAsBoolean(GENAFTE) && !getFilename().isEmpty()) {
+            if (GuiPackage.getInstance() != null) {
+                // GUI stays responsive and the next test can start while the website is written
+                webEngine.generateReportInBackground(getFilename(), folder -> setProperty(WSPATH, folder));
+                return;
+            }
+            try {
+                // Non-GUI JMeter exits after the test, so the website is generated before returning
+                setProperty(WSPATH, webEngine.generateReport(getFilename()));
+            } catch (GenerationException e) {
+                log.error(JMeterUtils.getResString("web_generator_log_problem_generating_website") + " " + e);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Sample is passed to the engine in addition to the result file and the visualizer.
+     * Snapshots of statistics sent by remote engines ({@link SnapshotSampleSender}) are only merged
+     * into the engine, they are not samples of the result file.
+     */
+    @Override
+    public void sampleOccurred(SampleEvent event) {
+        SampleResult result = event.getResult();
+        if (result instanceof SnapshotSampleSender.SnapshotResult) {
+            try {
+                getEngine().merge(((SnapshotSampleSender.SnapshotResult) result).getSnapshot());
+            } catch (RuntimeException e) {
+                log.error(JMeterUtils.getResString("web_generator_log_snapshot_failed") + " " + e);
+            }
+            return;
+        }
+        super.sampleOccurred(event);
+        if (isSampleWanted(result.isSuccessful())) {
+            getEngine().add(result);
+            TestRun testRun = getRun();
+            ResultSpool.Writer writer = testRun.spool;
+            if (writer != null) {
+                try {
+                    writer.write(result);
+                } catch (IOException e) {
+                    log.error(JMeterUtils.getResString("web_generator_log_spool_failed") + " " + e);
+                    testRun.spool = null;
+                    JOrphanUtils.closeQuietly(writer); // Stops the thread of the writer and closes the file
+                }
+            }
+        }
+    }
+
+    private static void closeSpool(TestRun testRun) {
+        ResultSpool.Writer writer = testRun.spool;
+        testRun.spool = null;
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.error(JMeterUtils.getResString("web_generator_log_spool_failed") + " " + e);
+            }
+        }
+    }
+
+    /**
+     * Removes all collected statistics.
+     */
+    public void clearData() {
+        getEngine().clearData();
+    }
+
+    /**
+     * Generates website from the result file of this element. Statistics collected during the test are used,
+     * result file is imported only if they were not collected for it.
+     *
+     * @return path to the folder with generated website.
+     * @throws GenerationException if folder is not empty or doesn't exists.
+     */
+    public String generateReport() throws GenerationException {
+        WebGeneratorEngine webEngine = getEngine();
+        webEngine.setIncludeGroupName(getPropertyAsBoolean(INCLTHN));
+        String folder = webEngine.generateReport(getFilename());
+        setProperty(WSPATH, folder);
+        return folder;
+    }
+
+    /**
+     * Generates website from the result file of this element in background, see {@link #generateReport()}.
+     * Progress is reported to the progress listener of the engine.
+     *
+     * @return task of the generation, result is path to the folder with generated website.
+     */
+    public Future<String> generateReportInBackground() {
+        WebGeneratorEngine webEngine = getEngine();
+        webEngine.setIncludeGroupName(getPropertyAsBoolean(INCLTHN));
+        return webEngine.generateReportInBackground(getFilename(), folder -> setProperty(WSPATH, folder));
+    }
+
+    /**
+     * Cancels website generation running in background.
+     */
+    public void cancelReport() {
+        getEngine().cancelReport();
+    }
+
+    /**
+     * Running test of the element and its clones. Hosts are counted like the instances of the result file
+     * of the super class: testStarted(host) and testEnded(host) are called once for every remote host.
+     */
+    private static final class TestRun {
+        private int hosts; // Guarded by the run
+        // Binary spool written instead of the CSV result file, null if the spool is disabled
+        private volatile ResultSpool.Writer spool;
+    }
+}
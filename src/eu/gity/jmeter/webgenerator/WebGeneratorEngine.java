@@ -0,0 +1,1159 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.engine.StandardJMeterEngine;
+import org.apache.jmeter.gui.GuiPackage;
+import org.apache.jmeter.gui.action.ActionNames;
+import org.apache.jmeter.gui.action.ActionRouter;
+import org.apache.jmeter.report.dashboard.GenerationException;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.util.JOrphanUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.event.ActionEvent;
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+
+/**
+ * Aggregation and report engine of the Web Generator.
+ * Class collecting results during testing, calculates other necessary statistics and generates website.
+ * It does not depend on GUI, so it is used the same way by JMeter GUI and by non-GUI runs.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class WebGeneratorEngine {
+    private static final Logger log = LoggerFactory.getLogger(WebGeneratorEngine.class);
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss"; // Format of begin and end of the test
+    private static final long DATA_COLLECTOR_BYTES = 160; // Estimated heap of a row without its URLs
+    // Percentiles written to the report, any value between 0 and 100 can be configured
+    private static final double[] PERCENTILES = parsePercentiles(
+            JMeterUtils.getPropDefault("webgenerator.percentiles", "90,95,99"));
+
+    private final String TOTAL_ROW_LABEL = JMeterUtils.getResString("web_generator_row_total");  //Name of "TOTAL" row
+    private final LabelIndex<dataCollector> arrayDataC = new LabelIndex<>(); // Object for statistics, one per label
+    private final dataCollector total = new dataCollector(); // Own object for statistics TOTAL
+    private final SampleAggregator aggregator = createAggregator(TOTAL_ROW_LABEL); // Statistics per label
+    private final LabelNormalizer labels = new LabelNormalizer(JMeterUtils.getResString("web_generator_row_other"));
+    private final TimeSeriesAggregator timeSeries = new TimeSeriesAggregator(); // Data of over-time graphs
+    private long granularity = TimeSeriesAggregator.MIN_GRANULARITY; // Width of points of over-time graphs
+    private final RollingCounters rates = new RollingCounters(); // Samples and errors per second of the last minutes
+    private final SlaMonitor sla = new SlaMonitor(rates, WebGeneratorEngine::stopTest); // Thresholds checked live
+    private final ThreadLocal<SampleRecord> scratchRecord = ThreadLocal.withInitial(SampleRecord::new);
+    private final SamplePipeline pipeline = SamplePipeline.fromProperties(this::aggregate); // null if disabled
+    private final GeneratorMetrics metrics = new GeneratorMetrics(pipeline, this::footprint); // Overhead of the engine
+
+    private volatile boolean includeGroupName = false; // Name of thread group is included in labels
+    private String reportOutputFolder = ""; // Variable for path to generating website
+    private String filePath;  // Variable for path to the folder with csv file
+    private volatile String collectedFile; // Result file of collected statistics, null if statistics are empty
+    private volatile Consumer<String> reportListener; // Notified with path to the folder of generated website
+    private volatile LiveReportServer liveServer; // Running only during the test if the live report is enabled
+    private volatile Checkpoint checkpoint; // Running only during the test if checkpoints are enabled
+    private volatile Consumer<ReportPhase> progressListener; // Notified with phases of website generation
+    private volatile Consumer<Boolean> stateListener; // Notified with true when the test starts, false when it ends
+    private ExecutorService reportExecutor; // Thread of background generation, created on first use
+    private volatile Future<String> report; // The last background generation
+    private volatile AtomicBoolean reportStarted; // The last background generation started to run
+    private final Object importLock = new Object(); // Guards import of result files not collected by this engine
+    private volatile WebGeneratorEngine importedEngine; // Statistics of the last imported result file
+
+    WebGeneratorEngine() {
+        clearData();
+    }
+
+    /**
+     * Parses comma separated list of percentiles.
+     *
+     * @param list list of percentiles (e.g. "50,90,99.9").
+     * @return array of percentiles in range 0 - 100.
+     */
+    private static double[] parsePercentiles(String list) {
+        ArrayList<Double> values = new ArrayList<>();
+        for (String item : list.split(",")) {
+            try {
+                double value = Double.parseDouble(item.trim());
+                if (value >= 0 && value <= 100) {
+                    values.add(value);
+                }
+            } catch (NumberFormatException e) {
+                log.warn(JMeterUtils.getResString("web_generator_log_wrong_percentile") + " " + item);
+            }
+        }
+        double[] result = new double[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Creates aggregator of statistics according to property "webgenerator.aggregation".
+     * Value "thread_local" selects accumulators owned by sampler threads, other values select lock-free rows per label.
+     *
+     * @param totalLabel name of the TOTAL row.
+     * @return new aggregator.
+     */
+    private static SampleAggregator createAggregator(String totalLabel) {
+        if ("thread_local".equalsIgnoreCase(JMeterUtils.getPropDefault("webgenerator.aggregation", "striped"))) {
+            return new ThreadLocalAggregator(totalLabel);
+        }
+        return new StripedAggregator(totalLabel);
+    }
+
+    /**
+     * Prepares engine for a new test. Collected statistics are removed.
+     *
+     * @param inclGroupName true if name of thread group has to be included in labels.
+     * @param resultFile path to the csv file written during the test, statistics of the test belong to it.
+     */
+    void testStarted(boolean inclGroupName, String resultFile) {
+        synchronized (this) { // Waits until a running generation takes its snapshot
+            includeGroupName = inclGroupName;
+            clearData();
+            collectedFile = resultFile;
+            if (Checkpoint.RESUME && resultFile != null) {
+                resumeCheckpoint(Checkpoint.checkpointFile(resultFile));
+            }
+        }
+        startPipeline();
+        metrics.testStarted();
+        startCheckpoints(resultFile);
+        startLiveServer();
+        sla.start();
+        notifyState(true);
+    }
+
+    /**
+     * Continues with statistics of the checkpoint written by the previous run of the test.
+     *
+     * @param file checkpoint file, nothing is done if it does not exist.
+     */
+    private void resumeCheckpoint(File file) {
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            merge(Checkpoint.read(file));
+            log.info(JMeterUtils.getResString("web_generator_log_checkpoint_resumed") + " " + file);
+        } catch (IOException e) { // Checkpoint is read completely before it is merged, statistics stay empty
+            log.error(JMeterUtils.getResString("web_generator_log_checkpoint_read_failed") + " " + e);
+        }
+    }
+
+    /**
+     * Starts periodic checkpoints of statistics if they are enabled.
+     *
+     * @param resultFile result file of the test, checkpoint is written next to it.
+     */
+    private void startCheckpoints(String resultFile) {
+        stopCheckpoints();
+        if (Checkpoint.INTERVAL > 0 && resultFile != null) {
+            Checkpoint started = new Checkpoint(Checkpoint.checkpointFile(resultFile), this::checkpointSnapshot);
+            started.start();
+            checkpoint = started;
+        }
+    }
+
+    /**
+     * Stops periodic checkpoints and writes the final checkpoint.
+     */
+    private void stopCheckpoints() {
+        Checkpoint running = checkpoint;
+        checkpoint = null;
+        if (running != null) {
+            running.stop();
+        }
+    }
+
+    /**
+     * State of the engine for a checkpoint. Label rows are copied, URL trackers and over-time data
+     * are written directly while sampling goes on.
+     *
+     * @return snapshot of all collected statistics.
+     */
+    private synchronized AggregateSnapshot checkpointSnapshot() {
+        JtlImporter.Chunk chunk = new JtlImporter.Chunk();
+        for (dataCollector dataC : arrayDataC.values()) { // Labels in order of their first samples
+            SampleStats row = aggregator.get(dataC.getName());
+            if (row != null) {
+                chunk.stats.put(row.getLabel(), row);
+                chunk.urls.put(row.getLabel(), dataC.urls);
+                chunk.totalUrls.merge(dataC.urls);
+            }
+        }
+        return new AggregateSnapshot(chunk, timeSeries);
+    }
+
+    /**
+     * @param inclGroupName true if name of thread group has to be included in labels of imported result files.
+     */
+    void setIncludeGroupName(boolean inclGroupName) {
+        includeGroupName = inclGroupName;
+    }
+
+    /**
+     * Finishes aggregation of the test. All queued samples are aggregated when the method returns.
+     */
+    void testEnded() {
+        sla.stop();
+        stopPipeline();
+        metrics.testEnded();
+        stopCheckpoints();
+        stopLiveServer();
+        notifyState(false);
+    }
+
+    /**
+     * Stops the test after a failed SLA rule. Threads finish their current samples, so the test ends as if
+     * it was shut down by the user. A local test is stopped by the engine of this JVM. Threads of a distributed
+     * test run on the remote engines, in GUI they are shut down by the action "Remote Shutdown All".
+     * Controller of a distributed test in non-GUI mode can not be reached from a listener.
+     *
+     * @return false if the test could not be stopped.
+     */
+    private static boolean stopTest() {
+        if (JMeterContextService.getNumberOfThreads() > 0) {
+            StandardJMeterEngine.stopEngine();
+            return true;
+        }
+        GuiPackage gui = GuiPackage.getInstance();
+        if (gui != null) {
+            JMeterUtils.runSafe(false, () -> ActionRouter.getInstance().doActionNow(
+                    new ActionEvent(gui.getMainFrame(), ActionEvent.ACTION_PERFORMED, ActionNames.REMOTE_SHUT_ALL)));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param running true if the test started, false if it ended.
+     */
+    private void notifyState(boolean running) {
+        Consumer<Boolean> listener = stateListener;
+        if (listener != null) {
+            listener.accept(running);
+        }
+    }
+
+    /**
+     * Starts HTTP server of the live report if the live report is enabled.
+     */
+    private void startLiveServer() {
+        stopLiveServer();
+        if (LiveReportServer.ENABLED) {
+            LiveReportServer server = new LiveReportServer(this, templateFolder());
+            try {
+                server.start();
+                liveServer = server;
+            } catch (IOException e) {
+                log.error(JMeterUtils.getResString("web_generator_log_live_failed") + " " + e);
+            }
+        }
+    }
+
+    /**
+     * Sends the final snapshot to pages of the live report and stops its server.
+     * Engine is not locked, snapshot thread of the server needs it to finish.
+     */
+    private void stopLiveServer() {
+        LiveReportServer server = liveServer;
+        liveServer = null;
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Sets listener which is notified after the website is generated.
+     *
+     * @param listener receives path to the folder with generated website, null removes the listener.
+     */
+    void setReportListener(Consumer<String> listener) {
+        reportListener = listener;
+    }
+
+    /**
+     * Sets listener which is notified when website generation enters a new phase.
+     *
+     * @param listener receives phases of generation, null removes the listener.
+     */
+    void setProgressListener(Consumer<ReportPhase> listener) {
+        progressListener = listener;
+    }
+
+    /**
+     * Sets listener which is notified when the test of the element starts and ends. Only the element owning
+     * the engine (and its clone running the test) notifies it, so the listener does not search the test plan.
+     *
+     * @param listener receives true when the test starts and false when it ends, null removes the listener.
+     */
+    void setStateListener(Consumer<Boolean> listener) {
+        stateListener = listener;
+    }
+
+    /**
+     * Generates website on the background thread of the engine. Generations are run one after another.
+     * Progress is reported to the progress listener, the report listener is notified when the website is generated.
+     *
+     * @param resultFile path to the csv file with results.
+     * @param onGenerated receives path to the folder with generated website, may be null.
+     * @return task of the generation, it can be cancelled by {@link #cancelReport()}.
+     */
+    synchronized Future<String> generateReportInBackground(String resultFile, Consumer<String> onGenerated) {
+        if (reportExecutor == null) {
+            reportExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "WebGenerator report");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        AtomicBoolean started = new AtomicBoolean();
+        Future<String> task = reportExecutor.submit(() -> {
+            started.set(true);
+            try {
+                String folder = generateReport(resultFile);
+                if (onGenerated != null) {
+                    onGenerated.accept(folder);
+                }
+                return folder;
+            } catch (CancellationException e) {
+                phase(ReportPhase.CANCELLED);
+                log.info(JMeterUtils.getResString("web_generator_phase_cancelled") + " " + resultFile);
+                throw e;
+            } catch (GenerationException | RuntimeException e) {
+                phase(ReportPhase.FAILED);
+                log.error(JMeterUtils.getResString("web_generator_log_problem_generating_website") + " " + e);
+                throw e;
+            }
+        });
+        report = task;
+        reportStarted = started;
+        return task;
+    }
+
+    /**
+     * Cancels website generation running in background. Partial website is removed.
+     */
+    void cancelReport() {
+        Future<String> task = report;
+        if (task != null && task.cancel(true) && !reportStarted.get()) {
+            phase(ReportPhase.CANCELLED); // Generation did not start, so it can not report the cancellation itself
+        }
+    }
+
+    /**
+     * Generates website from collected statistics. If statistics were not collected for the result file
+     * (website is generated after the fact), the result file is imported into a separate engine first,
+     * so statistics of a running test are not touched.
+     * Engine is locked only until snapshot of statistics is taken, website is written from the snapshot,
+     * so the next test can start while the website of the previous test is written.
+     *
+     * @param resultFile path to the csv file with results.
+     * @return path to the folder with generated website.
+     * @throws GenerationException if folder is not empty or doesn't exists or result file can not be read.
+     * @throws CancellationException if the generating thread was interrupted.
+     */
+    String generateReport(String resultFile) throws GenerationException {
+        if (!resultFile.equals(collectedFile)) {
+            return imported(resultFile).generateReport(resultFile);
+        }
+        String folder;
+        Map<String, Object> model;
+        ReportData data;
+        metrics.generationStarted();
+        synchronized (this) {
+            filePath = resultFile;
+            phase(ReportPhase.AGGREGATE);
+            outputFolder();
+            folder = reportOutputFolder;
+            model = createDataModel();
+            data = reportData();
+        }
+        try {
+            callGenerator(folder, model, data);
+        } catch (CancellationException | GenerationException e) {
+            if (e instanceof CancellationException || Thread.currentThread().isInterrupted()) {
+                deleteFolder(new File(folder));
+                throw new CancellationException();
+            }
+            throw e;
+        }
+        phase(ReportPhase.FINISHED);
+        Consumer<String> listener = reportListener;
+        if (listener != null) {
+            listener.accept(folder);
+        }
+        return folder;
+    }
+
+    /**
+     * Returns engine with statistics of a result file which were not collected by this engine. The file is imported
+     * into a new engine, which is kept until a website of another file is generated, so the file is not imported
+     * again for the next website. Engine of the import reports to listeners of this engine.
+     *
+     * @param resultFile path to the csv, spool or checkpoint file with results.
+     * @return engine with statistics of the file.
+     * @throws GenerationException if the file can not be read.
+     * @throws CancellationException if the generating thread was interrupted.
+     */
+    private WebGeneratorEngine imported(String resultFile) throws GenerationException {
+        synchronized (importLock) {
+            WebGeneratorEngine engine = importedEngine;
+            if (engine == null || !resultFile.equals(engine.collectedFile) || engine.includeGroupName != includeGroupName) {
+                importedEngine = null; // Statistics of the previous file are released before the next file is read
+                engine = new WebGeneratorEngine();
+                engine.includeGroupName = includeGroupName;
+                engine.progressListener = progressListener;
+                phase(ReportPhase.IMPORT);
+                try {
+                    engine.importResults(resultFile);
+                } catch (IOException e) {
+                    throw new GenerationException(JMeterUtils.getResString("web_generator_log_import_failed") + " " + resultFile, e);
+                }
+                importedEngine = engine;
+            }
+            engine.progressListener = progressListener;
+            engine.reportListener = reportListener;
+            return engine;
+        }
+    }
+
+    /**
+     * Notifies progress listener about the phase and stops generation if the generating thread was interrupted.
+     *
+     * @param phase phase of the generation.
+     * @throws CancellationException if the thread was interrupted.
+     */
+    private void phase(ReportPhase phase) {
+        metrics.phase(phase);
+        Consumer<ReportPhase> listener = progressListener;
+        if (listener != null) {
+            listener.accept(phase);
+        }
+        if (!phase.isFinal() && Thread.currentThread().isInterrupted()) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Removes folder of partially generated website.
+     *
+     * @param folder folder of the website.
+     */
+    private static void deleteFolder(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteFolder(file);
+            }
+        }
+        if (folder.exists() && !folder.delete()) {
+            log.warn(JMeterUtils.getResString("web_generator_log_delete_failed") + " " + folder);
+        }
+    }
+
+    /**
+     * Replaces collected statistics with statistics of the result file. CSV file is parsed in parallel,
+     * spool file (or spool written instead of the CSV file) is read sequentially, checkpoint file is merged.
+     *
+     * @param resultFile path to the csv, spool or checkpoint file with results.
+     * @throws IOException if the file can not be read.
+     */
+    void importResults(String resultFile) throws IOException {
+        clearData();
+        if (Checkpoint.isCheckpoint(resultFile)) {
+            merge(Checkpoint.read(new File(resultFile)));
+            collectedFile = resultFile;
+            return;
+        }
+        File file = new File(resultFile);
+        File spool = ResultSpool.spoolFile(resultFile);
+        JtlImporter.Chunk chunk;
+        if (ResultSpool.isSpool(resultFile) || !file.exists() && spool.exists()) {
+            JtlImporter.Chunk spooled = new JtlImporter.Chunk();
+            new ResultSpool.Reader(spool).read(includeGroupName, record -> {
+                record.label = labels.normalize(record.label);
+                spooled.add(record);
+                addOverTime(record);
+            });
+            chunk = spooled;
+        } else {
+            chunk = new JtlImporter(file, includeGroupName, labels::normalize, this::addOverTime).importFile();
+        }
+        mergeChunk(chunk);
+        if (chunk.skipped > 0) {
+            log.warn(JMeterUtils.getResString("web_generator_log_import_skipped") + " " + chunk.skipped);
+        }
+        collectedFile = resultFile;
+    }
+
+    /**
+     * Adds snapshot of statistics sent by a remote engine (see {@link SnapshotSampleSender}).
+     *
+     * @param snapshot statistics of samples of the remote engine since its previous snapshot.
+     */
+    synchronized void merge(AggregateSnapshot snapshot) {
+        mergeChunk(snapshot.getChunk());
+        timeSeries.merge(snapshot.getTimeSeries());
+        snapshot.countRates(rates);
+    }
+
+    /**
+     * Adds statistics and URLs per label of an imported file or of a remote engine.
+     *
+     * @param chunk statistics per label.
+     */
+    private void mergeChunk(JtlImporter.Chunk chunk) {
+        for (Map.Entry<String, SampleStats> row : chunk.stats.entrySet()) {
+            aggregator.merge(row.getValue());
+            getCollector(row.getKey()).urls.merge(chunk.urls.get(row.getKey()));
+        }
+    }
+
+    /**
+     * Starts aggregator threads of the pipeline if the pipeline mode is enabled.
+     */
+    private void startPipeline() {
+        if (pipeline != null) {
+            pipeline.resetCounters();
+            pipeline.start();
+        }
+    }
+
+    /**
+     * Waits until all queued samples are aggregated and stops aggregator threads.
+     */
+    private void stopPipeline() {
+        if (pipeline != null && pipeline.isRunning()) {
+            pipeline.stop();
+            if (pipeline.getDropped() > 0 || pipeline.getQueued() > 0) {
+                log.warn(JMeterUtils.getResString("web_generator_log_pipeline_overflow") + " dropped=" + pipeline.getDropped()
+                        + ", queued=" + pipeline.getQueued());
+            }
+        }
+    }
+
+    /**
+     * @return number of samples waiting for aggregation in the pipeline (0 if the pipeline mode is disabled).
+     */
+    long getPipelineQueueDepth() {
+        return pipeline == null ? 0 : pipeline.getQueueDepth();
+    }
+
+    /**
+     * @return number of samples dropped by the pipeline because its buffer was full.
+     */
+    long getPipelineDropped() {
+        return pipeline == null ? 0 : pipeline.getDropped();
+    }
+
+    /**
+     * @return number of samples moved to the overflow queue of the pipeline because its buffer was full.
+     */
+    long getPipelineQueued() {
+        return pipeline == null ? 0 : pipeline.getQueued();
+    }
+
+    /**
+     * This method gives from path to csv file only path without csv file.
+     *
+     * @param path path to csv file.
+     * @return path to folder.
+     */
+    private String getFolder(String path) {
+        int sep = path.lastIndexOf(File.separatorChar);
+        return path.substring(0, sep);
+    }
+
+    /**
+     * Generate path to folder with future website. This folder is nessesary to have unique name.
+     * This unique name is generated from actual date and time.
+     * Path to file is passes from getFolder method.
+     */
+    private void outputFolder() {
+        // Create date in format YearMonthDayHourMinute (Simpledateformat - template)
+        SimpleDateFormat ft = new SimpleDateFormat("yyyyMMdd_HHmmss");
+        Date date = new Date();
+
+        //Creating of final folder:
+        reportOutputFolder = (getFolder(filePath) + File.separatorChar + (ft.format(date)));
+    }
+
+    /**
+     * Mathod for dynamically set of granularity in graph. This granularity depends on lenght of testing.
+     * Longer test bigger granularity.
+     * Shorter test smaller granularity.
+     * Granularity is the smallest power of two multiple of the minimal granularity, which gives
+     * at most "webgenerator.graph.points" points for the whole test.
+     *
+     * @param startTimeMillis - Start time of test in miliseconds (unix time).
+     * @param endTimeMillis - End time of test in miliseconds (unix time).
+     */
+    private void setGranularity(long startTimeMillis, long endTimeMillis){
+        long duration = Math.max(endTimeMillis - startTimeMillis, 0);
+        long value = TimeSeriesAggregator.MIN_GRANULARITY;
+        while (value < Long.MAX_VALUE / 2 && duration / value >= TimeSeriesAggregator.POINTS) {
+            value *= 2;
+        }
+        granularity = Math.max(value, timeSeries.getGranularity());
+    }
+
+    /**
+     * @return folder with website template in JMeter installation.
+     */
+    static File templateFolder() {
+        String jmeterHomeDir;
+        if (System.getProperty("jmeter.home") == null) {
+            File userDir = new File(System.getProperty("user.dir"));
+            jmeterHomeDir = userDir.getAbsoluteFile().getParent();
+        } else {
+            jmeterHomeDir = System.getProperty("jmeter.home");
+        }
+        String pathToTemplate = jmeterHomeDir + "/lib/ext/webgenerator/report_template";
+        return new File(FilenameUtils.separatorsToSystem(pathToTemplate));
+    }
+
+    /**
+     * Method for generating website from template and collected statistics.
+     * Graphs are created from data collected during the test, result file is not parsed again.
+     *
+     * @param folder folder of the website.
+     * @param model data model of templates.
+     * @param data statistics, tables and graphs written to data files.
+     * @throws GenerationException if folder is not empty or doesn't exists or data can not be written.
+     */
+    private void callGenerator(String folder, Map<String, Object> model, ReportData data) throws GenerationException {
+        File reportOutputFolderAsFile = new File(folder);
+        //Check of target folder:
+        JOrphanUtils.canSafelyWriteToFolder(reportOutputFolderAsFile);
+        // Start generating:
+        WebsiteRenderer renderer = new WebsiteRenderer(templateFolder(), reportOutputFolderAsFile);
+        phase(ReportPhase.COPY_ASSETS);
+        renderer.copyAssets();
+        phase(ReportPhase.RENDER);
+        renderer.renderTemplates(model);
+
+        //Save data files of pages
+        phase(ReportPhase.WRITE_DATA);
+        try {
+            data.writeTo(reportOutputFolderAsFile);
+        } catch (IOException e) {
+            throw new GenerationException(JMeterUtils.getResString("web_generator_log_error_writing_js") + " " + folder, e);
+        }
+    }
+
+    /**
+     * Creates data model of website templates (variables of data.js.fmkr and pages).
+     *
+     * @return data model.
+     */
+    synchronized Map<String, Object> createDataModel() {
+        Map<String, Object> model = new HashMap<>();
+        SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+        long begin = timeSeries.getBegin();
+        long end = timeSeries.getEnd();
+        if (begin <= end) {
+            model.put("beginDate", '"' + dateFormat.format(new Date(begin)) + '"');
+            model.put("endDate", '"' + dateFormat.format(new Date(end)) + '"');
+            model.put("timeZoneOffset", TimeZone.getDefault().getOffset(begin));
+        }
+        model.put("testFile", filePath);
+        model.put("showControllersOnly", Boolean.FALSE);
+        model.put("filtersOnlySampleSeries", Boolean.FALSE);
+        return model;
+    }
+
+    /**
+     * Takes snapshot of tables and graphs written to data files of the website.
+     * Graphs are downsampled to the point limit.
+     *
+     * @return snapshot of the website data.
+     */
+    ReportData reportData() {
+        return reportData(true);
+    }
+
+    /**
+     * @param withGraphs false if only tables are needed.
+     * @return snapshot of the website data.
+     */
+    private synchronized ReportData reportData(boolean withGraphs) {
+        // Histograms of the labels are copied once, the copies serve rows, TOTAL, percentiles and footprint
+        List<SampleStats> stats = aggregator.snapshot();
+        List<ReportData.Row> rows = new ArrayList<>();
+        for (dataCollector row : fillTables(stats)) {
+            rows.add(row(row));
+        }
+        total.urls = totalUrls();
+        rows.add(row(total));
+        Map<String, Graph> graphs = Collections.emptyMap();
+        if (withGraphs) {
+            setGranularity(timeSeries.getBegin(), timeSeries.getEnd());
+            graphs = graphs(timeSeries.frame(granularity), stats);
+            for (Graph graph : graphs.values()) {
+                graph.downsample(TimeSeriesAggregator.POINTS);
+            }
+        }
+        return new ReportData(timeSeries.getSampleCount(), timeSeries.getErrorCount(), timeSeries.getErrors(),
+                rows, PERCENTILES.clone(), graphs, labels.getFolded(), metrics, footprint(stats), sla);
+    }
+
+    /**
+     * URLs of the TOTAL row merged from trackers of the labels, so sampler threads do not share one tracker.
+     *
+     * @return new tracker of all URLs.
+     */
+    private UrlTracker totalUrls() {
+        UrlTracker merged = new UrlTracker();
+        for (dataCollector dataC : arrayDataC.values()) {
+            merged.merge(dataC.urls);
+        }
+        return merged;
+    }
+
+    /**
+     * @return number of labels and URLs (of the last merged TOTAL row) and rough estimate of heap held
+     *         by collected statistics, read over JMX.
+     */
+    private synchronized GeneratorMetrics.Footprint footprint() {
+        return footprint(aggregator.snapshot());
+    }
+
+    /**
+     * @param stats snapshot of the label rows.
+     * @return number of labels and URLs (of the last merged TOTAL row) and rough estimate of heap held
+     *         by collected statistics.
+     */
+    private synchronized GeneratorMetrics.Footprint footprint(List<SampleStats> stats) {
+        long bytes = timeSeries.estimatedBytes() + rates.estimatedBytes();
+        for (SampleStats row : stats) {
+            bytes += row.estimatedBytes();
+        }
+        for (dataCollector row : arrayDataC.values()) {
+            bytes += DATA_COLLECTOR_BYTES + row.urls.estimatedBytes();
+        }
+        return new GeneratorMetrics.Footprint(arrayDataC.size(), total.urls.getUniqueCount(), total.urls.isEstimated(),
+                bytes);
+    }
+
+    /**
+     * Copies one row of the statistics table. Estimated number of unique URLs is prefixed by "~",
+     * the list then contains only the most frequent URLs.
+     *
+     * @param row statistics of the label.
+     * @return copy of the row.
+     */
+    private static ReportData.Row row(dataCollector row) {
+        double[] values = {row.getMean(), row.getMinDataC(), row.getMaxDataC(), row.getStDev(),
+                row.getErrorPercent(), row.getRate(), row.getReceivedBytes(), row.getSentBytes(), row.getAvgBytes(),
+                row.getLatency(), row.getConnectTime(), row.getResponseTime()};
+        return new ReportData.Row(row.getName(), row.getUserCount(), row.getLoopCount(), values,
+                (row.urls.isEstimated() ? "~" : "") + row.urls.getUniqueCount(),
+                new ArrayList<>(row.urls.getUrls()), row.getPercentiles().clone());
+    }
+
+    /**
+     * Graphs of the test at the current granularity, not downsampled. Used by the live report.
+     *
+     * @return graphs by names of variables of data.js.
+     */
+    synchronized Map<String, Graph> liveGraphs() {
+        setGranularity(timeSeries.getBegin(), timeSeries.getEnd());
+        return graphs(timeSeries.frame(granularity), aggregator.snapshot());
+    }
+
+    /**
+     * Creates all graphs of the website.
+     *
+     * @param frame over-time data merged to one granularity.
+     * @param stats snapshot of the label rows.
+     * @return graphs by names of variables of data.js.
+     */
+    private Map<String, Graph> graphs(TimeSeriesAggregator.Frame frame, List<SampleStats> stats) {
+        Map<String, Graph> graphs = new LinkedHashMap<>();
+        graphs.put("responseTimePercentiles", responseTimePercentiles(stats));
+        graphs.put("responseTimeDistribution", frame.responseTimeDistribution());
+        graphs.put("activeThreadsOverTime", frame.activeThreadsOverTime());
+        graphs.put("timeVsThreads", frame.timeVsThreads());
+        graphs.put("bytesThroughputOverTime", frame.bytesThroughputOverTime());
+        graphs.put("responseTimesOverTime", frame.responseTimesOverTime());
+        graphs.put("latenciesOverTime", frame.latenciesOverTime());
+        graphs.put("connectTimeOverTime", frame.connectTimeOverTime());
+        graphs.put("responseTimePercentilesOverTime", frame.responseTimePercentilesOverTime());
+        graphs.put("responseTimeVsRequest", frame.responseTimeVsRequest());
+        graphs.put("latencyVsRequest", frame.latencyVsRequest());
+        graphs.put("hitsPerSecond", frame.hitsPerSecond());
+        graphs.put("codesPerSecond", frame.codesPerSecond());
+        graphs.put("transactionsPerSecond", frame.transactionsPerSecond());
+        return graphs;
+    }
+
+    /**
+     * Graph of response time percentiles (0 - 100) of every label, taken from histograms of the aggregator.
+     *
+     * @param stats snapshot of the label rows.
+     * @return graph of percentiles.
+     */
+    private Graph responseTimePercentiles(List<SampleStats> stats) {
+        Graph graph = new Graph("Response Time Percentiles", 1, Graph.Reduction.NONE); // 101 points per label
+        for (SampleStats row : stats) {
+            Graph.Series series = graph.addSeries(row.getLabel());
+            for (int percent = 0; percent <= 100; percent++) {
+                series.add(percent, row.getPercentPoint(percent / 100.0));
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Destructor.
+     * Cleaning every variables.
+     */
+    synchronized void clearData() {
+        total.setPercentiles(new double[PERCENTILES.length]);
+        total.setUserCount(0);
+        total.setErrorPercent(0);
+        total.setMean(0);
+        total.setAvgBytes(0);
+        total.setRate(0);
+        total.setName("");
+        total.setMaxDataC(0);
+        total.setMinDataC(0);
+        total.setStDev(0);
+        total.setLatency(0);
+        total.setLoopCount(0);
+        total.setSentBytes(0);
+        total.setConnectTime(0);
+        total.setLoopCount(0);
+        total.setReceivedBytes(0);
+        total.setResponseTime(0);
+        total.urls = new UrlTracker();
+        SampleRecord.clearErrorTypes();
+
+        arrayDataC.clear();
+        aggregator.clear();
+        labels.clear();
+        timeSeries.clear();
+        rates.clear();
+        sla.clear();
+        collectedFile = null;
+    }
+
+    /**
+     * This method filling statistics with results of testing.
+     * @param sample is passes from core of JMeter.
+     */
+    void add(final SampleResult sample) {
+        final long start = metrics.startTiming();
+        final String sampleLabel = labels.normalize(sample.getSampleLabel(includeGroupName));
+        // Taken samples are aggregated later by aggregator threads, the stopped pipeline leaves the sample here
+        if (pipeline == null || !pipeline.offer(sampleLabel, sample)) {
+            aggregate(scratchRecord.get().set(sampleLabel, sample));
+        }
+        metrics.added(start);
+    }
+
+    /**
+     * Aggregates one sample. Called from sampler thread or from aggregator thread of the pipeline.
+     *
+     * @param record copy of the sample.
+     */
+    private void aggregate(SampleRecord record) {
+        aggregator.add(record); // Label row is created on first sample, TOTAL is merged when read
+        addOverTime(record);
+        sla.add(record);
+        addAddress(getCollector(record.label), record.url); // TOTAL URLs are merged when read
+    }
+
+    /**
+     * Adds sample to the over-time graphs and to the rates of the last minutes.
+     *
+     * @param record copy of the sample.
+     */
+    private void addOverTime(SampleRecord record) {
+        timeSeries.add(record);
+        rates.add(record);
+    }
+
+    /**
+     * Returns object dataCollector of given label. Object is created only for the first sample of the label,
+     * following samples of the label only look it up.
+     *
+     * @param sampleLabel label of the sample.
+     * @return object dataCollector of the label.
+     */
+    private dataCollector getCollector(String sampleLabel) {
+        dataCollector existing = arrayDataC.get(sampleLabel);
+        if (existing != null) {
+            return existing; // Checked first to avoid creation of the capturing lambda below
+        }
+        return arrayDataC.getOrCreate(sampleLabel, label -> {
+            dataCollector dataC = new dataCollector();
+            dataC.setName(label);
+            return dataC;
+        });
+    }
+
+    /**
+     * Adds URL to the tracker of tested addresses.
+     *
+     * @param dataC object dataCollector of the label.
+     * @param url URL of the sample.
+     */
+    private void addAddress(dataCollector dataC, String url) {
+        dataC.urls.add(url);
+    }
+
+    /**
+     * Saving data to collection ArrayList from statistics of aggregator.
+     *
+     * @param stats snapshot of statistics for every label, TOTAL is merged from it.
+     */
+    private void saveToList(List<SampleStats> stats) {
+        Map<String, SampleStats> byLabel = new HashMap<>();
+        SampleStats totalRow = new SampleStats(TOTAL_ROW_LABEL);
+        for (SampleStats row : stats) {
+            byLabel.put(row.getLabel(), row);
+            totalRow.merge(row);
+        }
+
+        for (dataCollector anArrayDataC : arrayDataC.values()) {
+            SampleStats row = byLabel.get(anArrayDataC.getName());
+            if (row != null) {
+                fillStatistics(anArrayDataC, row);
+            }
+        }
+
+        fillStatistics(total, totalRow);
+        total.setErrorPercent(total.getErrorPercent() * 100);
+        total.setUserCount(JMeterContextService.getTotalThreads());
+    }
+
+    /**
+     * Passes values of one statistics row to the object dataCollector.
+     *
+     * @param dataC object to fill.
+     * @param row statistics of the label.
+     */
+    private void fillStatistics(dataCollector dataC, SampleStats row) {
+        dataC.setName(row.getLabel());
+        dataC.setLoopCount((int) row.getCount());
+        dataC.setMean(row.getMean());
+        dataC.setMinDataC(row.getMin());
+        dataC.setMaxDataC(row.getMax());
+        dataC.setStDev(row.getStandardDeviation());
+        dataC.setErrorPercent(row.getErrorPercentage());
+        dataC.setRate(row.getRate());
+        dataC.setReceivedBytes(row.getKBPerSecond());
+        dataC.setSentBytes(row.getSentKBPerSecond());
+        dataC.setAvgBytes(row.getAvgPageBytes());
+        dataC.setUserCount(row.getMaxThreads());
+        dataC.setLatency((float) row.getMeanLatency());
+        dataC.setConnectTime((long) row.getMeanConnectTime());
+        dataC.setResponseTime((float) row.getMean());
+        //Passes percentiles ---------------------------------------------------------------------
+        double[] percentiles = new double[PERCENTILES.length];
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            percentiles[i] = row.getPercentPoint(PERCENTILES[i] / 100);
+        }
+        dataC.setPercentiles(percentiles);
+        // -----------------------------------------------------------------------------------------
+    }
+
+    /**
+     * Statistics tables for the live report, the same values as in data files of the website, and rates
+     * of the last minutes ({"summary": requestsSummary, "dataResult": [...], "percentile": [...], "rates": {...}}).
+     *
+     * @return JSON text.
+     */
+    String tablesJson() {
+        ReportData data = reportData(false);
+        StringBuilder rates = new StringBuilder(256);
+        this.rates.toJson(rates);
+        StringWriter out = new StringWriter(1024);
+        try {
+            JsonWriter json = new JsonWriter(out).beginObject();
+            data.writeTables(json);
+            json.name("rates").raw(rates.toString()).endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringWriter does not throw
+        }
+        return out.toString();
+    }
+
+    /**
+     * Passes statistics of the aggregator to objects dataCollector.
+     *
+     * @param stats snapshot of the label rows.
+     * @return rows of labels, without TOTAL.
+     */
+    private List<dataCollector> fillTables(List<SampleStats> stats) {
+        saveToList(stats); //Here is passes data from aggregator
+        total.setName(JMeterUtils.getResString("web_generator_row_total"));
+        return arrayDataC.values();
+    }
+
+    /**
+     * DataCollector class is for saving actual data during testing.
+     */
+    private class dataCollector {
+        private String Name = "";
+        private int UserCount = 0;
+        private double Mean;
+        private long MinDataC;
+        private long MaxDataC;
+        private double StDev;
+        private double Rate;
+        private double AvgBytes;
+        private double ErrorPercent;
+        private float Latency;
+        private float ResponseTime;
+        private int LoopCount;
+        private double ReceivedBytes;
+        private double SentBytes;
+        private long ConnectTime;
+        private double[] percentiles = new double[PERCENTILES.length];
+
+        private UrlTracker urls = new UrlTracker(); // Replaced for TOTAL row by merged trackers of labels
+
+        private String getName() {
+            return Name;
+        }
+
+        private void setName(String name) {
+            Name = name;
+        }
+
+        private int getUserCount() {
+            return UserCount;
+        }
+
+        private void setUserCount(int userCount) {
+            UserCount = userCount;
+        }
+
+        private float getLatency() {
+            return Latency;
+        }
+
+        private void setLatency(float Latency) {
+            this.Latency = Latency;
+        }
+
+        private float getResponseTime() {
+            return ResponseTime;
+        }
+
+        private void setResponseTime(float ResponseTime) {
+            this.ResponseTime = ResponseTime;
+        }
+
+        private int getLoopCount() {
+            return LoopCount;
+        }
+
+        private void setLoopCount(int loopCount) {
+            LoopCount = loopCount;
+        }
+
+        private double getReceivedBytes() {
+            return ReceivedBytes;
+        }
+
+        private void setReceivedBytes(double receivedBytes) {
+            ReceivedBytes = receivedBytes;
+        }
+
+        private double getSentBytes() {
+            return SentBytes;
+        }
+
+        private void setSentBytes(double sentBytes) {
+            SentBytes = sentBytes;
+        }
+
+        private long getConnectTime() {
+            return ConnectTime;
+        }
+
+        private void setConnectTime(long connectTime) {
+            ConnectTime = connectTime;
+        }
+
+        private long getMinDataC() {
+            return MinDataC;
+        }
+
+        private void setMinDataC(long minDataC) {
+            MinDataC = minDataC;
+        }
+
+        private long getMaxDataC() {
+            return MaxDataC;
+        }
+
+        private void setMaxDataC(long maxDataC) {
+            MaxDataC = maxDataC;
+        }
+
+        private double getStDev() {
+            return StDev;
+        }
+
+        private void setStDev(double stDev) {
+            StDev = stDev;
+        }
+
+        private double getAvgBytes() {
+            return AvgBytes;
+        }
+
+        private void setAvgBytes(double avgBytes) {
+            AvgBytes = avgBytes;
+        }
+
+        private double getRate() {
+            return Rate;
+        }
+
+        private void setRate(double rate) {
+            Rate = rate;
+        }
+
+        private double getErrorPercent() {
+            return ErrorPercent;
+        }
+
+        private void setErrorPercent(double errorPercent) {
+            ErrorPercent = errorPercent;
+        }
+
+        private double getMean() {
+            return Mean;
+        }
+
+        private void setMean(double mean) {
+            Mean = mean;
+        }
+
+        private double[] getPercentiles() {
+            return percentiles;
+        }
+
+        private void setPercentiles(double[] percentiles) {
+            this.percentiles = percentiles;
+        }
+    }
+}
@@ -2,10 +2,14 @@ package eu.gity.jmeter.webgenerator;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 import javax.swing.JOptionPane;
-import javax.swing.JTree;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
 import org.apache.jmeter.gui.GuiPackage;
 import org.apache.jmeter.gui.action.ActionRouter;
 import org.apache.jmeter.gui.action.AddToTree;
@@ -14,7 +18,6 @@ import org.apache.jmeter.gui.action.Duplicate;
 import org.apache.jmeter.gui.action.Paste;
 import org.apache.jmeter.gui.tree.JMeterTreeModel;
 import org.apache.jmeter.gui.tree.JMeterTreeNode;
-import org.apache.jmeter.reporters.ResultCollector;
 import org.apache.jmeter.testelement.TestElement;
 import org.apache.jmeter.util.JMeterUtils;
 
@@ -26,6 +29,9 @@ import org.apache.jmeter.util.JMeterUtils;
  * It's made final to improve performance because subclassing is not welcomed anyway as someone might try to create another instance (which
  * is defeated second time by a private ctor).
  * 
+ * Instances of Web Generator in the tree are kept in an index updated by insert and remove events of the tree model,
+ * so the guards check them without searching the whole test plan.
+ * 
  * @author Gity a.s.
  *
  */
@@ -35,6 +41,9 @@ public final class WebGeneratorTreeGuard {
 	
 	private boolean listenersRegistered = false;
 	
+	// Nodes of Web Generator in the tree, updated by events of the tree model in the event dispatch thread
+	private final Set<JMeterTreeNode> webGenerators = Collections.newSetFromMap(new IdentityHashMap<>());
+	
 	/**
 	 * Exists to defeat external instantiation (double-guarded together with declaring the class final)
 	 */
@@ -55,7 +64,8 @@ public final class WebGeneratorTreeGuard {
 	 * The purpose of the listeners is to prevent the user from adding more instances of WebGenerator to the tree
 	 */
 	public void registerListeners() {
-		if (!listenersRegistered) {
+		if (!listenersRegistered && GuiPackage.getInstance() != null) {
+			registerTreeModelListener();
 			registerClipboardListeners();
 			registerAddToTreeListener();
 			registerDuplicateListener();
@@ -64,26 +74,91 @@ public final class WebGeneratorTreeGuard {
 	}
 	
 	/**
-	 * Reload tree after moving nodes programmatically and shows user an error message 
+	 * @param node node of the tree.
+	 * @return true if the node is an instance of Web Generator.
 	 */
-	private void reloadTreeAndShowError() {
-		JTree jmeterTree = GuiPackage.getInstance().getMainFrame().getTree();
-		((JMeterTreeModel)jmeterTree.getModel()).reload();
-		for (int i = 0; i < jmeterTree.getRowCount(); i++) {
-			jmeterTree.expandRow(i);
-		}		
-		
-		JOptionPane.showMessageDialog(null, JMeterUtils.getResString("web_generator_error_insertion"),
-				JMeterUtils.getResString("web_generator_error"), JOptionPane.ERROR_MESSAGE);		
+	private static boolean isWebGenerator(JMeterTreeNode node) {
+		return node.getTestElement().getPropertyAsString(TestElement.GUI_CLASS).contains("WebGenerator");
+	}
+	
+	/**
+	 * Registration of listener keeping the index of Web Generator instances. Inserted and removed nodes are
+	 * checked together with their subtrees only, the index is rebuilt from the changed node if the structure
+	 * changes (e.g. a test plan is loaded).
+	 */
+	private void registerTreeModelListener() {
+		JMeterTreeModel jmeterTreeModel = GuiPackage.getInstance().getTreeModel();
+		jmeterTreeModel.addTreeModelListener(new TreeModelListener() {
+			
+			@Override
+			public void treeNodesInserted(TreeModelEvent e) {
+				for (Object child : e.getChildren()) {
+					index((JMeterTreeNode) child, true);
+				}
+			}
+			
+			@Override
+			public void treeNodesRemoved(TreeModelEvent e) {
+				for (Object child : e.getChildren()) {
+					index((JMeterTreeNode) child, false);
+				}
+			}
+			
+			@Override
+			public void treeStructureChanged(TreeModelEvent e) {
+				Object root = jmeterTreeModel.getRoot();
+				webGenerators.removeIf(node -> node.getRoot() != root);
+				if (e.getTreePath() != null) {
+					index((JMeterTreeNode) e.getTreePath().getLastPathComponent(), true);
+				}
+			}
+			
+			@Override
+			public void treeNodesChanged(TreeModelEvent e) {
+				// Name of the node changed, its class stays the same
+			}
+		});
+		index((JMeterTreeNode) jmeterTreeModel.getRoot(), true);
 	}
 	
+	/**
+	 * Adds or removes Web Generator instances of the subtree to/from the index.
+	 * 
+	 * @param subtree inserted or removed node.
+	 * @param inserted true if the subtree was inserted.
+	 */
+	private void index(JMeterTreeNode subtree, boolean inserted) {
+		Enumeration<?> nodes = subtree.depthFirstEnumeration();
+		while (nodes.hasMoreElements()) {
+			JMeterTreeNode node = (JMeterTreeNode) nodes.nextElement();
+			if (isWebGenerator(node)) {
+				if (inserted) {
+					webGenerators.add(node);
+				} else {
+					webGenerators.remove(node);
+				}
+			}
+		}
+	}
 	
+	/**
+	 * Removes the node added by the user action and shows user an error message. Only the parent of the node
+	 * is refreshed by the remove event, the rest of the tree keeps its state.
+	 * 
+	 * @param jmeterTreeModel model of the JMeter tree.
+	 * @param node node of Web Generator added by the user action.
+	 */
+	private void removeAndShowError(JMeterTreeModel jmeterTreeModel, JMeterTreeNode node) {
+		jmeterTreeModel.removeNodeFromParent(node);
+		JOptionPane.showMessageDialog(null, JMeterUtils.getResString("web_generator_error_insertion"),
+				JMeterUtils.getResString("web_generator_error"), JOptionPane.ERROR_MESSAGE);		
+	}
 	
 	/**
 	 * Registration of listeners to manage copy/cut&paste user action.
 	 * 
-	 * Pre-action listener of "Cut" event saves reference to parent of the cut node which may be needed 
-	 *  by following post-action listener of "Paste" event to revert the changes if they are not approved
+	 * Cut node is removed from the tree before it is pasted, so the index contains more instances only
+	 * if "copy" was performed.
 	 */
 	private void registerClipboardListeners() {
 				
@@ -95,7 +170,6 @@ public final class WebGeneratorTreeGuard {
 				JMeterTreeNode currentNode = GuiPackage.getInstance().getCurrentNode();				
 				JMeterTreeNode[] movedNodes = Copy.getCopiedNodes();
 				JMeterTreeModel jmeterTreeModel = GuiPackage.getInstance().getTreeModel();	
-				boolean correction = false;
 												
 				//Excludes TestPlan and WorkBench as the event is also triggered for them even if they don't have these nodes as children
 				if (currentNode.getParent() == null || currentNode.getParent() == jmeterTreeModel.getRoot()) {
@@ -105,35 +179,18 @@ public final class WebGeneratorTreeGuard {
 				for (JMeterTreeNode movedNode : movedNodes) {				
 					
 					TestElement movedNodeTE = movedNode.getTestElement();
-					String guiClass = movedNodeTE.getPropertyAsString(TestElement.GUI_CLASS);
 											
-					if (guiClass.contains("WebGenerator")) {
-						ArrayList<JMeterTreeNode> rcNodes = new ArrayList<JMeterTreeNode>(jmeterTreeModel.getNodesOfType(ResultCollector.class));
-						int count = 0;
-						for (JMeterTreeNode rcNode : rcNodes) {
-							if (rcNode.getTestElement().getPropertyAsString(TestElement.GUI_CLASS).contains("WebGenerator")) {
-								count++;
+					if (webGenerators.size() > 1 && isWebGenerator(movedNode)) { //Means "copy" was performed, not "cut"
+						//Pasted node is a new node created from the original node TE so it can be found by comparing
+						//of original TE with TEs of children
+						for (int i = 0; i < currentNode.getChildCount(); i++) {
+							JMeterTreeNode child = (JMeterTreeNode) currentNode.getChildAt(i);
+							if (child.getTestElement().equals(movedNodeTE)) {
+								removeAndShowError(jmeterTreeModel, child);
+								return;
 							}
-							if (count > 1) { //Means "copy" was performed, not "cut"
-								
-								//Can not directly remove movedNode from it's new parent parent because it doesn't have any parent but 
-								//new node is created from the original node TE so it can be found by comparing of original TE with TEs of children
-								for (int i = 0; i < currentNode.getChildCount(); i++) {
-									if (((JMeterTreeNode)currentNode.getChildAt(i)).getTestElement().equals(movedNodeTE)) {
-										currentNode.remove(i);
-										break;
-									}
-								}	
-								correction = true;
-								break;
-							}
-						}						
+						}	
 					}	
-						
-																		
-				}
-				if (correction) {
-					reloadTreeAndShowError();
 				}
 			}
 				
@@ -154,13 +211,8 @@ public final class WebGeneratorTreeGuard {
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				JMeterTreeNode currentNode = GuiPackage.getInstance().getCurrentNode();					 
-				JMeterTreeModel jmeterTreeModel = (JMeterTreeModel)GuiPackage.getInstance().getMainFrame().getTree().getModel();
-				if (currentNode.getTestElement().getPropertyAsString(TestElement.GUI_CLASS).contains("WebGenerator")) {
-					JMeterTreeNode parentNode = (JMeterTreeNode)currentNode.getParent();
-					jmeterTreeModel.removeNodeFromParent(currentNode);
-					jmeterTreeModel.reload(parentNode);
-					JOptionPane.showMessageDialog(null, JMeterUtils.getResString("web_generator_error_insertion"),
-							JMeterUtils.getResString("web_generator_error"), JOptionPane.ERROR_MESSAGE);					
+				if (isWebGenerator(currentNode)) {
+					removeAndShowError(GuiPackage.getInstance().getTreeModel(), currentNode);
 				}				
 			}	
 							
@@ -177,22 +229,9 @@ public final class WebGeneratorTreeGuard {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				JMeterTreeModel jmeterTreeModel = ((JMeterTreeModel)GuiPackage.getInstance().getMainFrame().getTree().getModel());
 				JMeterTreeNode currentNode = GuiPackage.getInstance().getCurrentNode();	
-				ArrayList<JMeterTreeNode> rcNodes = new ArrayList<JMeterTreeNode>(jmeterTreeModel.getNodesOfType(ResultCollector.class));
-				int count = 0;
-				for (JMeterTreeNode rcNode : rcNodes) {
-					if (rcNode.getTestElement().getPropertyAsString(TestElement.GUI_CLASS).contains("WebGenerator")) {
-						count++;
-					}
-					if (count > 1) {
-						JMeterTreeNode parentNode = (JMeterTreeNode)currentNode.getParent();
-						jmeterTreeModel.removeNodeFromParent(currentNode);
-						jmeterTreeModel.reload(parentNode);
-						JOptionPane.showMessageDialog(null, JMeterUtils.getResString("web_generator_error_insertion"),
-								JMeterUtils.getResString("web_generator_error"), JOptionPane.ERROR_MESSAGE);
-						break;
-					}
+				if (webGenerators.size() > 1 && isWebGenerator(currentNode)) {
+					removeAndShowError(GuiPackage.getInstance().getTreeModel(), currentNode);
 				}			
 			}			
 			
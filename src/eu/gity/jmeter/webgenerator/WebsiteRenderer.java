@@ -0,0 +1,301 @@
+package eu.gity.jmeter.webgenerator;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateExceptionHandler;
+import org.apache.jmeter.report.dashboard.GenerationException;
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Creates website from the template folder.
+ * Files with extension ".fmkr" are processed by FreeMarker with the data model of the test and saved
+ * without the extension, all other files are hard-linked from a shared folder or copied.
+ * Hard-linked files are one file for all reports of the template version, so they are made read-only
+ * on POSIX file systems: a file changed in place would change every report. To change a static file
+ * of one report, replace it (delete and create), or generate with "webgenerator.assets=copy".
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+final class WebsiteRenderer {
+    private static final Logger log = LoggerFactory.getLogger(WebsiteRenderer.class);
+    private static final String TEMPLATE_EXTENSION = ".fmkr";
+    private static final String SHARED_ASSETS = ".webgenerator-assets";
+    private static final boolean LINK_ASSETS = !"copy".equalsIgnoreCase(JMeterUtils.getPropDefault("webgenerator.assets", "link"));
+    private static final int RENDER_THREADS = Math.max(1,
+            JMeterUtils.getPropDefault("webgenerator.render.threads", Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService RENDER_POOL = renderPool(); // Shared by all reports, idle threads end
+
+    private final Path templateDir;
+    private final Path outputDir;
+
+    /**
+     * @param templateDir folder with website template.
+     * @param outputDir folder of generated website.
+     */
+    WebsiteRenderer(File templateDir, File outputDir) {
+        this.templateDir = templateDir.toPath();
+        this.outputDir = outputDir.toPath();
+    }
+
+    /**
+     * Creates FreeMarker configuration loading templates from the folder.
+     *
+     * @param templateDir folder with website template.
+     * @return configuration.
+     * @throws IOException if the folder can not be used.
+     */
+    static Configuration configuration(File templateDir) throws IOException {
+        Configuration configuration = new Configuration(Configuration.VERSION_2_3_23);
+        configuration.setDefaultEncoding(StandardCharsets.UTF_8.name());
+        configuration.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+        configuration.setDirectoryForTemplateLoading(templateDir);
+        return configuration;
+    }
+
+    /**
+     * Creates folders of the website and deploys static files of the template. By default
+     * ("webgenerator.assets=link") files are hard-linked from the shared asset folder of the template version,
+     * so a report costs only directory entries. Linked files are shared by the reports and read-only (see class doc). Files are copied if the shared folder can not be created
+     * or the file system does not support hard links ("webgenerator.assets=copy" always copies).
+     *
+     * @throws GenerationException if the website can not be written.
+     * @throws CancellationException if the thread was interrupted.
+     */
+    void copyAssets() throws GenerationException {
+        try {
+            List<Path> files = templateFiles();
+            Path source = LINK_ASSETS ? sharedAssets(files) : null;
+            for (Path file : files) {
+                checkInterrupted();
+                Path relative = templateDir.relativize(file);
+                Path target = outputDir.resolve(relative.toString());
+                if (Files.isDirectory(file)) {
+                    Files.createDirectories(target);
+                } else if (!isTemplate(file)) {
+                    if (source != null && !link(source.resolve(relative.toString()), target)) {
+                        source = null;
+                    }
+                    if (source == null) {
+                        Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new GenerationException(JMeterUtils.getResString("web_generator_log_problem_generating_website") + " " + templateDir, e);
+        }
+    }
+
+    /**
+     * Renders templates of pages to the folders created by {@link #copyAssets()}. Pages are rendered
+     * in parallel by the pool of "webgenerator.render.threads" threads shared by all reports, template configuration is shared
+     * and the data model is only read.
+     *
+     * @param model data model of templates.
+     * @throws GenerationException if template can not be read or processed or website can not be written.
+     * @throws CancellationException if the thread was interrupted.
+     */
+    void renderTemplates(Map<String, Object> model) throws GenerationException {
+        List<Future<?>> pages = new ArrayList<>();
+        try {
+            Configuration configuration = configuration(templateDir.toFile());
+            List<Path> templates = new ArrayList<>();
+            for (Path file : templateFiles()) {
+                if (isTemplate(file) && !Files.isDirectory(file)) {
+                    templates.add(file);
+                }
+            }
+            for (Path file : templates) {
+                pages.add(RENDER_POOL.submit(() -> {
+                    renderPage(configuration, file, model);
+                    return null;
+                }));
+            }
+            for (Future<?> page : pages) {
+                page.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                throw (CancellationException) e.getCause();
+            }
+            throw new GenerationException(JMeterUtils.getResString("web_generator_log_problem_generating_website") + " " + templateDir, e.getCause());
+        } catch (IOException e) {
+            throw new GenerationException(JMeterUtils.getResString("web_generator_log_problem_generating_website") + " " + templateDir, e);
+        } finally {
+            for (Future<?> page : pages) {
+                page.cancel(true);
+            }
+        }
+    }
+
+    private static ExecutorService renderPool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(RENDER_THREADS, RENDER_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "WebGenerator render");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private void renderPage(Configuration configuration, Path file, Map<String, Object> model) throws IOException, TemplateException {
+        checkInterrupted();
+        Path relative = templateDir.relativize(file);
+        Path target = outputDir.resolve(relative.toString());
+        String name = target.getFileName().toString();
+        target = target.resolveSibling(name.substring(0, name.length() - TEMPLATE_EXTENSION.length()));
+        Template template = configuration.getTemplate(relative.toString().replace(File.separatorChar, '/'));
+        try (Writer writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+            template.process(model, writer);
+        }
+    }
+
+    /**
+     * Finds or creates folder with static files of this template version next to the reports
+     * (".webgenerator-assets/version", version is a hash of names, sizes and modification times of the files).
+     * The folder is filled under a temporary name and renamed, so a report never links a partial copy.
+     *
+     * @param files files of the template.
+     * @return shared folder or null if it can not be created.
+     */
+    private Path sharedAssets(List<Path> files) {
+        Path parent = outputDir.getParent();
+        if (parent == null) {
+            return null;
+        }
+        Path shared = null;
+        Path temporary = null;
+        try {
+            shared = parent.resolve(SHARED_ASSETS).resolve(version(files));
+            if (Files.isDirectory(shared)) {
+                return shared;
+            }
+            Files.createDirectories(shared.getParent());
+            temporary = Files.createTempDirectory(shared.getParent(), shared.getFileName() + ".");
+            for (Path file : files) {
+                checkInterrupted();
+                Path target = temporary.resolve(templateDir.relativize(file).toString());
+                if (Files.isDirectory(file)) {
+                    Files.createDirectories(target);
+                } else if (!isTemplate(file)) {
+                    Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+                    readOnly(target);
+                }
+            }
+            Files.move(temporary, shared, StandardCopyOption.ATOMIC_MOVE);
+            temporary = null;
+            return shared;
+        } catch (IOException e) {
+            if (shared != null && Files.isDirectory(shared)) {
+                return shared; // Created by another generation in the meantime
+            }
+            log.warn(JMeterUtils.getResString("web_generator_log_shared_assets_failed") + " " + shared + " " + e);
+            return null;
+        } finally {
+            if (temporary != null) {
+                deleteTree(temporary);
+            }
+        }
+    }
+
+    /**
+     * Removes write permissions of a shared file, so it can not be changed in place through a link of one report.
+     * Only POSIX file systems, a read-only file on Windows could not be replaced or deleted with the report.
+     */
+    private static void readOnly(Path file) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(file, PosixFileAttributeView.class);
+        if (view != null) {
+            Set<PosixFilePermission> permissions = view.readAttributes().permissions();
+            permissions.removeAll(EnumSet.of(PosixFilePermission.OWNER_WRITE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE));
+            view.setPermissions(permissions);
+        }
+    }
+
+    /**
+     * @return false if the file system does not support hard links, the file is then copied.
+     */
+    private static boolean link(Path existing, Path link) throws IOException {
+        try {
+            Files.deleteIfExists(link);
+            Files.createLink(link, existing);
+            return true;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            log.info(JMeterUtils.getResString("web_generator_log_hard_link_failed") + " " + existing + " " + e);
+            return false;
+        }
+    }
+
+    private String version(List<Path> files) throws IOException {
+        CRC32 crc = new CRC32();
+        long length = 0;
+        for (Path file : files) {
+            if (Files.isDirectory(file) || isTemplate(file)) {
+                continue;
+            }
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            crc.update(templateDir.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+            crc.update(Long.toString(attributes.size()).getBytes(StandardCharsets.UTF_8));
+            crc.update(Long.toString(attributes.lastModifiedTime().toMillis()).getBytes(StandardCharsets.UTF_8));
+            length += attributes.size();
+        }
+        return Long.toHexString(crc.getValue()) + "-" + Long.toHexString(length);
+    }
+
+    private static void deleteTree(Path root) {
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            log.warn(JMeterUtils.getResString("web_generator_log_shared_assets_failed") + " " + root + " " + e);
+        }
+    }
+
+    private static boolean isTemplate(Path file) {
+        return file.getFileName().toString().endsWith(TEMPLATE_EXTENSION);
+    }
+
+    private List<Path> templateFiles() throws IOException {
+        try (Stream<Path> walk = Files.walk(templateDir)) {
+            return walk.collect(Collectors.toList());
+        }
+    }
+
+    private static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException();
+        }
+    }
+}
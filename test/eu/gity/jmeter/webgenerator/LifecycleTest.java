@@ -0,0 +1,109 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.util.JMeterUtils;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Repeated runs of one element, as in a long GUI session: start and end of the test must not leave
+ * listeners, threads or memory behind.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+public class LifecycleTest {
+    private static final int CYCLES = 1000;
+    private static final int MEASURED_FROM = 100; // Classes are loaded and pools created by then
+    private static final long HEAP_GROWTH_LIMIT = 4L * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void initJMeter() {
+        String home = System.getProperty("jmeter.home");
+        JMeterUtils.setJMeterHome(home);
+        JMeterUtils.loadJMeterProperties(new File(home, "bin/jmeter.properties").getPath());
+        JMeterUtils.initLocale();
+        // Threads of the pipeline and of checkpoints are started and stopped in every cycle
+        JMeterUtils.setProperty("webgenerator.pipeline.enabled", "true");
+        JMeterUtils.setProperty("webgenerator.checkpoint.interval", "60");
+    }
+
+    @Test
+    public void thousandRunsKeepThreadsAndHeapFlat() throws Exception {
+        WebGeneratorCollector element = new WebGeneratorCollector();
+        element.setFilename(new File(folder.getRoot(), "results.csv").getPath());
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger ended = new AtomicInteger();
+        element.getEngine().setStateListener(running -> (running ? started : ended).incrementAndGet());
+
+        int threads = 0;
+        long heap = 0;
+        for (int cycle = 1; cycle <= CYCLES; cycle++) {
+            WebGeneratorCollector running = (WebGeneratorCollector) element.clone();
+            running.testStarted();
+            running.sampleOccurred(new SampleEvent(sample(cycle), "Thread Group"));
+            running.testEnded();
+            if (cycle == MEASURED_FROM) {
+                threads = webGeneratorThreads();
+                heap = usedHeap();
+            }
+        }
+
+        assertEquals(CYCLES, started.get());
+        assertEquals(CYCLES, ended.get());
+        assertEquals("Threads of the engine", threads, webGeneratorThreads(threads));
+        long growth = usedHeap() - heap;
+        assertTrue("Heap grew by " + growth + " bytes", growth < HEAP_GROWTH_LIMIT);
+    }
+
+    private static SampleResult sample(int cycle) {
+        SampleResult sample = SampleResult.createTestSample(1000L * cycle, 1000L * cycle + 50);
+        sample.setSampleLabel("Home");
+        sample.setResponseCode("200");
+        sample.setSuccessful(true);
+        return sample;
+    }
+
+    /**
+     * Threads of the last cycle may still be finishing, they are given a few seconds.
+     */
+    private static int webGeneratorThreads(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        int count = webGeneratorThreads();
+        while (count > expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            count = webGeneratorThreads();
+        }
+        return count;
+    }
+
+    private static int webGeneratorThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("WebGenerator")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,120 @@
+package eu.gity.jmeter.webgenerator;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trip of samples through the result spool.
+ *
+ * @author Jan Benedikt, Gity a.s.
+ */
+public class ResultSpoolTest {
+    private static final String HOME = "http://example.com/home";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Every other sample has the same URL, the others have distinct URLs, so the dictionary of URLs
+     * reaches its limit (65,536 entries) in the middle of a block while samples of the block refer to old ids.
+     */
+    @Test
+    public void urlsSurviveDictionaryLimit() throws IOException {
+        File file = folder.newFile("results.wgs");
+        int samples = 140_000;
+        long[] starts = new long[samples];
+        try (ResultSpool.Writer writer = new ResultSpool.Writer(file)) {
+            for (int i = 0; i < samples; i++) {
+                SampleResult sample = sample(i, i % 2 == 0 ? HOME : "http://example.com/item/" + i);
+                starts[i] = sample.getStartTime();
+                writer.write(sample);
+            }
+        }
+        List<String> urls = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        new ResultSpool.Reader(file).read(false, record -> {
+            urls.add(record.url);
+            times.add(record.startTime);
+        });
+        assertEquals(samples, urls.size());
+        for (int i = 0; i < samples; i++) {
+            assertEquals("URL of sample " + i, i % 2 == 0 ? HOME : "http://example.com/item/" + i, urls.get(i));
+            assertEquals("Start of sample " + i, starts[i], times.get(i).longValue());
+        }
+    }
+
+    @Test
+    public void concurrentWritersKeepAllSamples() throws Exception {
+        File file = folder.newFile("concurrent.wgs");
+        int threads = 8;
+        int perThread = 20_000;
+        try (ResultSpool.Writer writer = new ResultSpool.Writer(file)) {
+            List<Thread> running = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                Thread sampler = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        try {
+                            writer.write(sample(i, "http://example.com/" + thread));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                });
+                sampler.start();
+                running.add(sampler);
+            }
+            for (Thread sampler : running) {
+                sampler.join();
+            }
+        }
+        AtomicInteger read = new AtomicInteger();
+        new ResultSpool.Reader(file).read(false, record -> read.incrementAndGet());
+        assertEquals(threads * perThread, read.get());
+    }
+
+    @Test
+    public void writeAfterCloseFails() throws IOException {
+        File file = folder.newFile("closed.wgs");
+        ResultSpool.Writer writer = new ResultSpool.Writer(file);
+        writer.write(sample(0, null));
+        writer.close();
+        writer.close(); // Second close does nothing
+        try {
+            writer.write(sample(1, HOME));
+            fail("Sample written to closed spool");
+        } catch (IOException expected) {
+            // Closed spool does not accept samples
+        }
+        List<String> urls = new ArrayList<>();
+        new ResultSpool.Reader(file).read(false, record -> urls.add(record.url));
+        assertEquals(1, urls.size());
+        assertEquals("", urls.get(0)); // SampleResult without URL returns empty text
+    }
+
+    private static SampleResult sample(int i, String url) throws IOException {
+        SampleResult sample = new SampleResult();
+        sample.setStampAndTime(1_000_000L + i, 10 + i % 100);
+        sample.setSampleLabel("Request " + i % 10);
+        if (url != null) {
+            sample.setURL(new URL(url));
+        }
+        sample.setSuccessful(true);
+        sample.setResponseCode("200");
+        sample.setResponseMessage("OK");
+        sample.setThreadName("Thread Group 1-1");
+        return sample;
+    }
+}